@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Encodes a packet as a one-byte opcode for its type followed by its sender, receiver and message.
+ * Every field is a varint length followed by the UTF-8 bytes, the length is stored plus one so that 0 means null.
+ * A type without an opcode is sent with opcode 0 and the type as an extra field.
+ * The request id follows as a varint and is left out when it is 0, so pushes and the messages kept in the
+ * mailboxes look the same as before request ids existed.
+ */
+public class BinaryCodec extends PacketCodec {
+    // index in this table is the opcode, do not reorder since the opcodes are part of the protocol
+    private static final String[] TYPES = {
+            null, "login", "register", "message", "broadcast", "whoelse", "whoelsesince", "block", "unblock",
+            "logout", "startprivate", "private", "exit", "messages", "timeout", "SERVER",
+            "messagesack", "ack", "join", "leave", "channel"
+    };
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+
+    static {
+        for (int i = 1; i < TYPES.length; i++) {
+            OPCODES.put(TYPES[i], i);
+        }
+    }
+
+    @Override
+    public byte getId() {
+        return BINARY_ID;
+    }
+
+    @Override
+    public byte[] encode(Packet packet) {
+        Integer opcode = OPCODES.get(packet.getType());
+        byte[] type = opcode == null ? utf8(packet.getType()) : null;
+        byte[] sender = utf8(packet.getSender());
+        byte[] receiver = utf8(packet.getReceiver());
+        byte[] message = utf8(packet.getMessage());
+
+        int length = 1 + fieldLength(sender) + fieldLength(receiver) + fieldLength(message);
+        if (opcode == null) {
+            length += fieldLength(type);
+        }
+        if (packet.getRequestId() != 0) {
+            length += varintLength(packet.getRequestId());
+        }
+
+        byte[] body = new byte[length];
+        int position = 0;
+        body[position++] = (byte) (opcode == null ? 0 : opcode);
+        if (opcode == null) {
+            position = putField(body, position, type);
+        }
+        position = putField(body, position, sender);
+        position = putField(body, position, receiver);
+        position = putField(body, position, message);
+        if (packet.getRequestId() != 0) {
+            putVarint(body, position, packet.getRequestId());
+        }
+        return body;
+    }
+
+    @Override
+    public Packet decode(byte[] body, int offset, int length) throws IOException {
+        Reader reader = new Reader(body, offset, offset + length);
+        int opcode = reader.nextByte();
+        String type;
+        if (opcode == 0) {
+            type = reader.nextField();
+        } else if (opcode < TYPES.length) {
+            type = TYPES[opcode];
+        } else {
+            throw new IOException("Unknown opcode " + opcode);
+        }
+
+        Packet packet = new Packet(reader.nextField(), type);
+        packet.setReceiver(reader.nextField());
+        packet.setMessage(reader.nextField());
+        if (reader.hasRemaining()) {
+            packet.setRequestId(reader.nextVarint());
+        }
+        return packet;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int fieldLength(byte[] field) {
+        if (field == null) {
+            return 1;
+        }
+        return varintLength(field.length + 1) + field.length;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int putVarint(byte[] body, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            body[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        body[position++] = (byte) value;
+        return position;
+    }
+
+    private static int putField(byte[] body, int position, byte[] field) {
+        position = putVarint(body, position, field == null ? 0 : field.length + 1);
+        if (field != null) {
+            System.arraycopy(field, 0, body, position, field.length);
+            position += field.length;
+        }
+        return position;
+    }
+
+    /**
+     * reads the fields of one frame body and rejects anything that runs past its end
+     */
+    private static class Reader {
+        private final byte[] body;
+        private final int end;
+        private int position;
+
+        Reader(byte[] body, int position, int end) {
+            this.body = body;
+            this.position = position;
+            this.end = end;
+        }
+
+        int nextByte() throws IOException {
+            if (position >= end) {
+                throw new EOFException("Truncated packet");
+            }
+            return body[position++] & 0xFF;
+        }
+
+        boolean hasRemaining() {
+            return position < end;
+        }
+
+        int nextVarint() throws IOException {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 28) {
+                    throw new IOException("Invalid varint");
+                }
+                b = nextByte();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        String nextField() throws IOException {
+            int value = nextVarint();
+            if (value == 0) {
+                return null;
+            }
+            int length = value - 1;
+            if (length < 0 || length > end - position) {
+                throw new EOFException("Truncated packet");
+            }
+            String field = new String(body, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return field;
+        }
+    }
+}
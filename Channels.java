@@ -0,0 +1,57 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The named channels and the users of this node who joined them.
+ * A message to a channel only visits the members of the channel, so its cost grows with the members and not with
+ * every user who is online. A channel exists while it has members, users leave every channel when they log out.
+ */
+public class Channels {
+    // the members of every channel and their sessions
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ClientSession>> members =
+            new ConcurrentHashMap<>();
+
+    /**
+     * add a user to a channel, creating the channel if it has no members yet
+     * @param channel the name of the channel
+     * @param username the user who joins
+     * @param session the session of the user
+     * @return false if the user is already a member else true
+     */
+    public boolean join(String channel, String username, ClientSession session) {
+        boolean[] added = new boolean[1];
+        // under the lock of the channel, so that it is not removed by the last member leaving at the same time
+        members.compute(channel, (name, current) -> {
+            if (current == null) {
+                current = new ConcurrentHashMap<>();
+            }
+            added[0] = current.putIfAbsent(username, session) == null;
+            return current;
+        });
+        return added[0];
+    }
+
+    /**
+     * remove a user from a channel, removing the channel once its last member left
+     * @param channel the name of the channel
+     * @param username the user who leaves
+     * @return false if the user was not a member else true
+     */
+    public boolean leave(String channel, String username) {
+        boolean[] removed = new boolean[1];
+        members.computeIfPresent(channel, (name, current) -> {
+            removed[0] = current.remove(username) != null;
+            return current.isEmpty() ? null : current;
+        });
+        return removed[0];
+    }
+
+    /**
+     * @param channel the name of the channel
+     * @return the members of the channel on this node and their sessions, empty if it has none
+     */
+    public Set<Map.Entry<String, ClientSession>> members(String channel) {
+        Map<String, ClientSession> current = members.get(channel);
+        return current == null ? Collections.emptySet() : current.entrySet();
+    }
+}
@@ -8,11 +8,19 @@
  * */
 
 import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Client {
-    private boolean isLoggedIn = false;
-    private String user = null;
+    // changed by the receiving thread, read by the sending thread
+    private volatile boolean isLoggedIn = false;
+    private volatile String user = null;
+    // console lines and login state changes in the order they happened, ClientSendMessage waits on this
+    private final LinkedBlockingQueue<Event> events = new LinkedBlockingQueue<>();
     private int portCount;
+    // the requests sent to the server that have not been answered yet, by request id
+    private final ConcurrentHashMap<Integer, String> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
 
     public void setLoginStatus(boolean isLoggedIn) {
         this.isLoggedIn = isLoggedIn;
@@ -30,6 +38,68 @@ public class Client {
         return this.user;
     }
 
+    /**
+     * hand a line typed on the console to the sending thread
+     * @param line the line without its line terminator
+     */
+    public void postLine(String line) {
+        events.add(new Event(Event.Kind.LINE, line));
+    }
+
+    /**
+     * let the sending thread know that the server changed the login state, i.e. answered a login or timed the
+     * user out, so that it shows the matching prompt
+     */
+    public void postLoginState() {
+        events.add(new Event(Event.Kind.LOGIN_STATE, null));
+    }
+
+    /**
+     * let the sending thread know that the console or the connection is gone
+     */
+    public void postEnd() {
+        events.add(new Event(Event.Kind.END, null));
+    }
+
+    /**
+     * wait for the next thing the sending thread has to react to
+     * @return the next event
+     * @throws InterruptedException throw this exception when the sending thread is interrupted while waiting
+     */
+    public Event takeEvent() throws InterruptedException {
+        return events.take();
+    }
+
+    /**
+     * remember a request that is about to be sent so that its reply can be matched to it
+     * @param command the command of the request
+     * @return the id to tag the request with, never 0 since 0 marks a push from the server
+     */
+    public int newRequest(String command) {
+        int requestId;
+        do {
+            requestId = nextRequestId.incrementAndGet();
+        } while (requestId == 0);
+        pendingRequests.put(requestId, command);
+        return requestId;
+    }
+
+    /**
+     * forget a request once its reply arrived
+     * @param requestId the id the reply is tagged with
+     * @return the command of the request or null if no request with the id is outstanding
+     */
+    public String completeRequest(int requestId) {
+        return pendingRequests.remove(requestId);
+    }
+
+    /**
+     * @return the number of requests that are still waiting for their reply
+     */
+    public int getPendingRequests() {
+        return pendingRequests.size();
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length != 2) {
             System.out.println("===== Error usage: java TCPClient SERVER_IP SERVER_PORT =====");
@@ -42,19 +112,26 @@ public class Client {
 
         Client client = new Client();
 
-        // Start the P2P server
-        ServerSocket p2pSocket = new ServerSocket(0);
-        P2P p2p = new P2P(p2pSocket);
+        // Start the P2P server, a single thread carries every private chat of this client
+        P2P p2p = new P2P();
+        p2p.start();
 
         try {
             // define socket for client
             Socket clientSocket = new Socket(serverHost, serverPort);
+            // agree on how packets are encoded, -Dcodec=serialized talks to servers without the binary codec
+            PacketCodec preferred = "serialized".equals(System.getProperty("codec")) ? PacketCodec.SERIALIZED :
+                                    PacketCodec.BINARY;
+            // large messages and offline backlogs come compressed unless -Dcompression=false
+            boolean compression = Boolean.parseBoolean(System.getProperty("compression", "true"));
+            PacketCodec codec = PacketCodec.negotiate(clientSocket, preferred, compression);
 
             // function for sending messages to the server
             ClientSendMessage clientSendMessageThread = new ClientSendMessage(client, clientSocket, p2p,
-                                                                              p2pSocket.getLocalPort());
+                                                                              p2p.getPort(), codec);
             // function for receiving messages from the server
-            ClientReceiveMessage clientReceiveMessageThread = new ClientReceiveMessage(client, clientSocket, p2p, p2pSocket.getLocalPort());
+            ClientReceiveMessage clientReceiveMessageThread = new ClientReceiveMessage(client, clientSendMessageThread,
+                                                                                       clientSocket, p2p, codec);
 
             clientSendMessageThread.start();
             clientReceiveMessageThread.start();
@@ -62,4 +139,30 @@ public class Client {
             System.out.println("The server has not yet been initialized.");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * a console line or a change of the login state
+     */
+    static class Event {
+        enum Kind { LINE, LOGIN_STATE, END }
+
+        private final Kind kind;
+        private final String line;
+
+        Event(Kind kind, String line) {
+            this.kind = kind;
+            this.line = line;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the line that was typed, null unless the event is a LINE
+         */
+        public String getLine() {
+            return line;
+        }
+    }
+}
@@ -4,10 +4,13 @@ import java.util.*;
 
 public class ClientReceiveMessage extends Thread {
     private Client client;
-    private ObjectInputStream inputStream;
+    private final ClientSendMessage sendThread;
+    private DataInputStream inputStream;
     private Socket clientSocket;
     private P2P p2p;
-    private int p2pPort;
+    private PacketCodec codec;
+    // true while the rest of a chunked list of unread messages is still to come
+    private boolean readingBacklog;
 
     // Text coloring for text
     final String ANSI_RESET = "\u001B[0m";
@@ -17,13 +20,15 @@ public class ClientReceiveMessage extends Thread {
     final String ANSI_RED = "\u001B[31m";
     final String ANSI_USER_MENTION = ANSI_RED + "\u001B[4m";
 
-    ClientReceiveMessage(Client client, Socket clientSocket, P2P p2p, int p2pPort) throws IOException {
+    ClientReceiveMessage(Client client, ClientSendMessage sendThread, Socket clientSocket, P2P p2p,
+                         PacketCodec codec) throws IOException {
         this.client = client;
+        this.sendThread = sendThread;
         this.clientSocket = clientSocket;
         this.p2p = p2p;
-        this.p2pPort = p2pPort;
-        // define ObjectOutputStream instance which would be used to send message to the server
-        inputStream = new ObjectInputStream(clientSocket.getInputStream());
+        this.codec = codec;
+        // define DataInputStream instance which would be used to receive packets from the server
+        inputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
     }
 
     /**
@@ -35,79 +40,17 @@ public class ClientReceiveMessage extends Thread {
 
         while (true) {
             try {
-                Packet packet = (Packet) inputStream.readObject();
-                String type = packet.getType();
-                String sender = packet.getSender();
-                String[] messageBody = packet.getMessage().split(" ");
-
-                switch (type) {
-                    case "login" -> {
-                        String username = messageBody[0];
-                        String loginStatus = messageBody[1];
-                        login(loginStatus, username);
-                    }
-                    case "register" -> {
-                        String username = messageBody[0];
-                        String loginStatus = messageBody[1];
-                        register(loginStatus, username);
-                    }
-                    case "broadcast" -> {
-                        if (sender.equals("SERVER")) {
-                            System.out.println(
-                                    ANSI_SERVER + sender + ANSI_RESET + ": " + ANSI_USER_MENTION + messageBody[0] +
-                                    ANSI_RESET + " " +
-                                    String.join(" ", Arrays.copyOfRange(messageBody, 1, messageBody.length)));
-                        } else if (sender.equals("server")) {
-                            System.out.println(
-                                    ANSI_SERVER + "SERVER" + ANSI_RESET + ": " + String.join(" ", messageBody));
-                        } else {
-                            System.out.println(
-                                    ANSI_USER + sender + ANSI_RESET + ": " + String.join(" ", messageBody));
-                        }
-                    }
-                    case "message" -> {
-                        message(messageBody);
-                    }
-                    case "whoelse", "whoelsesince" -> {
-                        System.out.println(ANSI_SERVER + sender + ANSI_RESET + ": " + String.join(" ", messageBody));
-                    }
-                    case "block" -> {
-                        blockUser(messageBody);
-                    }
-                    case "unblock" -> {
-                        unblockUser(messageBody);
-                    }
-                    case "exit" -> {
-                        System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": Good Bye!");
-                        inputStream.close();
-                    }
-                    case "messages" -> {
-                        if (messageBody[0].equals("NONE")) {
-                            System.out.println(ANSI_SERVER + sender + ANSI_RESET + ": you have no unread messages.");
-                        } else {
-                            System.out.println(
-                                    ANSI_SERVER + sender + ANSI_RESET + ": " + String.join(" ", messageBody));
-                        }
-                    }
-                    case "timeout" -> {
-                        System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": " + String.join(" ", messageBody));
-                        System.out.println(ANSI_BOLD +
-                                           "----------------------------------------------------------------------" +
-                                           ANSI_RESET);
-                        client.setLoginStatus(false);
-                        client.setUser(null);
-                    }
-                    case "startprivate" -> {
-                        String responseType = messageBody[0];
-                        String[] responseMsg = Arrays.copyOfRange(messageBody, 1, messageBody.length);
-                        startPrivateMsg(responseType, responseMsg);
-                    }
-                    case "SERVER" -> {
-                        System.out.println(String.join(" ", messageBody));
-                    }
+                Packet packet = codec.read(inputStream);
+                if (packet.isPush()) {
+                    push(packet);
+                } else {
+                    // a reply is matched to the request it answers, several requests can be in flight at once
+                    String command = client.completeRequest(packet.getRequestId());
+                    reply(command != null ? command : packet.getType(), packet);
                 }
             } catch (Exception e) {
                 System.out.println("Something went wrong! Goodbye.");
+                client.postEnd();
                 try {
                     inputStream.close();
                     clientSocket.close();
@@ -119,6 +62,151 @@ public class ClientReceiveMessage extends Thread {
         }
     }
 
+    /**
+     * Handles the reply to a request this client sent
+     *
+     * @param command the command of the request
+     * @param packet  the reply from the server
+     * @throws Exception throw exception when an error occurs
+     */
+    private void reply(String command, Packet packet) throws Exception {
+        if (packet.getType().equals("ack")) {
+            // the request was handled and has nothing to report
+            return;
+        }
+        String sender = packet.getSender();
+        String[] messageBody = packet.getMessage().split(" ");
+        if (!command.equals("login") && !command.equals("register") && messageBody[0].equals("UNAVAILABLE")) {
+            // the other user is on a server of the cluster that can not be reached
+            System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": the server of " + ANSI_USER_MENTION +
+                               messageBody[1] + ANSI_RESET + " can not be reached right now, please try again later.");
+            return;
+        }
+
+        switch (command) {
+            case "login", "register" -> {
+                String username = messageBody[0];
+                String loginStatus = messageBody[1];
+                if (loginStatus.equals("MOVED")) {
+                    // the user belongs to another server of the cluster, the sending thread keeps waiting for the
+                    // answer from there
+                    moveServer(messageBody[2]);
+                } else if (command.equals("login")) {
+                    login(loginStatus, username);
+                    client.postLoginState();
+                } else {
+                    register(loginStatus, username);
+                    client.postLoginState();
+                }
+            }
+            case "broadcast" -> {
+                System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": " + String.join(" ", messageBody));
+            }
+            case "message" -> {
+                message(messageBody);
+            }
+            case "whoelse", "whoelsesince" -> {
+                System.out.println(ANSI_SERVER + sender + ANSI_RESET + ": " + String.join(" ", messageBody));
+            }
+            case "block" -> {
+                blockUser(messageBody);
+            }
+            case "unblock" -> {
+                unblockUser(messageBody);
+            }
+            case "join", "leave", "channel" -> {
+                channel(command, messageBody);
+            }
+            case "exit" -> {
+                System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": Good Bye!");
+                inputStream.close();
+            }
+            case "startprivate" -> {
+                String responseType = messageBody[0];
+                String[] responseMsg = Arrays.copyOfRange(messageBody, 1, messageBody.length);
+                startPrivateMsg(responseType, responseMsg);
+            }
+        }
+    }
+
+    /**
+     * Handles what the server sent on its own: messages from other users, presence, unread messages, timeouts
+     * and private messaging invitations
+     *
+     * @param packet the packet from the server
+     * @throws Exception throw exception when an error occurs
+     */
+    private void push(Packet packet) throws Exception {
+        String sender = packet.getSender();
+        String[] messageBody = packet.getMessage().split(" ");
+
+        switch (packet.getType()) {
+            case "broadcast" -> {
+                if (sender.equals("SERVER")) {
+                    System.out.println(
+                            ANSI_SERVER + sender + ANSI_RESET + ": " + ANSI_USER_MENTION + messageBody[0] +
+                            ANSI_RESET + " " +
+                            String.join(" ", Arrays.copyOfRange(messageBody, 1, messageBody.length)));
+                } else {
+                    System.out.println(ANSI_USER + sender + ANSI_RESET + ": " + String.join(" ", messageBody));
+                }
+            }
+            case "channel" -> {
+                System.out.println(ANSI_BOLD + "[" + messageBody[0] + "] " + ANSI_RESET + ANSI_USER + sender +
+                                   ANSI_RESET + ": " +
+                                   String.join(" ", Arrays.copyOfRange(messageBody, 1, messageBody.length)));
+            }
+            case "messages" -> {
+                if (messageBody[0].equals("NONE")) {
+                    System.out.println(ANSI_SERVER + sender + ANSI_RESET + ": you have no unread messages.");
+                } else if (messageBody[0].equals("CHUNK")) {
+                    offlineMessages(sender, packet.getMessage());
+                } else {
+                    System.out.println(ANSI_SERVER + sender + ANSI_RESET + ": " + String.join(" ", messageBody));
+                }
+            }
+            case "timeout" -> {
+                System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": " + String.join(" ", messageBody));
+                System.out.println(ANSI_BOLD +
+                                   "----------------------------------------------------------------------" +
+                                   ANSI_RESET);
+                client.setLoginStatus(false);
+                client.setUser(null);
+                client.postLoginState();
+            }
+            case "startprivate" -> {
+                String responseType = messageBody[0];
+                String[] responseMsg = Arrays.copyOfRange(messageBody, 1, messageBody.length);
+                startPrivateMsg(responseType, responseMsg);
+            }
+            case "SERVER" -> {
+                System.out.println(String.join(" ", messageBody));
+            }
+        }
+    }
+
+    /**
+     * connect to the server of the cluster that keeps the user and send the login or registration there again
+     *
+     * @param address "<host>:<port>" of that server
+     * @throws Exception throw exception when the server can not be reached
+     */
+    private void moveServer(String address) throws Exception {
+        int colon = address.lastIndexOf(':');
+        Socket socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        // ask the new server for compression only if the previous one was asked for it
+        PacketCodec agreed = PacketCodec.negotiate(socket, codec, codec instanceof CompressedCodec);
+
+        Socket previous = clientSocket;
+        PacketCodec previousCodec = codec;
+        clientSocket = socket;
+        inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        codec = agreed;
+        sendThread.moveServer(socket, agreed);
+        previous.close();
+        previousCodec.release();
+    }
+
     /**
      * Handles responses from the server regarding user's login status
      *
@@ -178,6 +266,12 @@ public class ClientReceiveMessage extends Thread {
         if (loginStatus.equals("USERNAME")) {
             System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": account with this username is already " +
                                "existed! Please try a different username.");
+        } else if (loginStatus.equals("ONLINE")) {
+            System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": this account is already logged in " +
+                               "somewhere else. Please try another account!");
+        } else if (loginStatus.equals("ERROR")) {
+            System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": the account could not be created right " +
+                               "now. Please try again later.");
         } else {
             client.setLoginStatus(true);
             client.setUser(username);
@@ -187,6 +281,28 @@ public class ClientReceiveMessage extends Thread {
         }
     }
 
+    /**
+     * print a chunk of the unread messages and acknowledge it so that the server sends the next one
+     *
+     * @param sender the sender of the chunk
+     * @param body "CHUNK <cursor> <MORE|END>" on the first line followed by the messages
+     * @throws Exception throw exception when the acknowledgement can not be sent
+     */
+    private void offlineMessages(String sender, String body) throws Exception {
+        int headerEnd = body.indexOf('\n');
+        String[] header = body.substring(0, headerEnd).split(" ");
+        String messages = body.substring(headerEnd + 1);
+
+        if (readingBacklog) {
+            // the messages of a later chunk carry on the list the first chunk started
+            System.out.println(messages.substring(1));
+        } else {
+            System.out.println(ANSI_SERVER + sender + ANSI_RESET + ": " + messages);
+        }
+        readingBacklog = header[2].equals("MORE");
+        sendThread.acknowledge(header[1]);
+    }
+
     /**
      * Handles responses from the server regarding the status of the message that the user requested to send out
      *
@@ -274,6 +390,40 @@ public class ClientReceiveMessage extends Thread {
         }
     }
 
+    /**
+     * Handles responses from the server for user's attempt to join, leave or send a message to a channel
+     *
+     * @param command  "join", "leave" or "channel"
+     * @param response response from the server
+     */
+    private void channel(String command, String[] response) {
+        String status = response[0];
+        switch (status) {
+            case "SUCCESS" -> {
+                System.out.println(
+                        ANSI_SERVER + "SERVER" + ANSI_RESET + ": you have " +
+                        (command.equals("join") ? "joined " : "left ") + ANSI_BOLD + response[1] + ANSI_RESET + ".");
+            }
+            case "JOINED" -> {
+                System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": you are already in " + ANSI_BOLD +
+                                   response[1] + ANSI_RESET + ".");
+            }
+            case "NOTMEMBER" -> {
+                String hint = command.equals("channel") ?
+                              ", type " + ANSI_RED + "join " + response[1] + ANSI_RESET + " first." : ".";
+                System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": you are not in " + ANSI_BOLD +
+                                   response[1] + ANSI_RESET + hint);
+            }
+            case "EMPTY" -> {
+                System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": message can not be empty!");
+            }
+            case "BLOCKED" -> {
+                System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": the message is sent to most members of " +
+                                   ANSI_BOLD + response[1] + ANSI_RESET + " except for some.");
+            }
+        }
+    }
+
     /**
      * Handles responds from the server regarding private messaging
      *
@@ -305,9 +455,11 @@ public class ClientReceiveMessage extends Thread {
                                 "Please wait for an response.");
                     }
                     case "SUCCESS" -> {
+                        // the invited user sent the address and port it accepts private connections on
                         String target = response[1];
-                        p2p.start();
-                        if (p2p.createConnection(client.getUser(), response[1], p2pPort)) {
+                        String host = response[2];
+                        int port = Integer.parseInt(response[3]);
+                        if (p2p.createConnection(client.getUser(), target, host, port)) {
                             System.out.println(ANSI_SERVER + "SERVER" + ANSI_RESET + ": start private " +
                                                "messaging with " + ANSI_USER_MENTION + target + ANSI_RESET + ".");
                             System.out.println(ANSI_BOLD + "================= PRIVATE MESSAGING " +
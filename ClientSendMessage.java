@@ -1,44 +1,56 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
 
 public class ClientSendMessage extends Thread {
     private Client client;
     private Socket clientSocket;
-    private final ObjectOutputStream outputStream;
+    private DataOutputStream outputStream;
     private final BufferedReader reader;
+    // lines typed while waiting for the server to answer a login, handled once it did
+    private final ArrayDeque<String> deferredLines = new ArrayDeque<>();
     private boolean isLoggedIn;
     private String user;
     private P2P p2p;
+    private PacketCodec codec;
     private int p2pPort;
+    // the last login or registration, sent again when the server says the user belongs to another server
+    private String loginType;
+    private String loginMessage;
 
     // coloring text
     final String ANSI_RESET = "\u001B[0m";
     final String ANSI_RED = "\u001B[31m";
     final String ANSI_BOLD = "\u001B[1m";
 
-    ClientSendMessage(Client client, Socket clientSocket, P2P p2p, int p2pPort) throws IOException {
+    ClientSendMessage(Client client, Socket clientSocket, P2P p2p, int p2pPort,
+                      PacketCodec codec) throws IOException {
         this.client = client;
         this.clientSocket = clientSocket;
-        // define ObjectInputStream instance which would be used to receive response from the server
-        this.outputStream = new ObjectOutputStream(clientSocket.getOutputStream());
+        // define DataOutputStream instance which would be used to send packets to the server
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
         this.p2p = p2p;
         this.p2pPort = p2pPort;
+        this.codec = codec;
 
         // define a BufferedReader to get command from command line i.e., standard command from keyboard
         this.reader = new BufferedReader(new InputStreamReader(System.in));
     }
 
     /**
-     * Main function that deals with handling the responses from the console to the server
+     * Main function that deals with handling the responses from the console to the server.
+     * Console lines come from a reader thread of their own, so this thread only wakes up when a line was typed or
+     * when the receiving thread reports that the login state changed
      */
     @Override
     public void run() {
         super.run();
+        startConsoleReader();
 
-        while (true) {
+        boolean running = true;
+        while (running) {
             try {
-                Thread.sleep(100);
                 isLoggedIn = client.isLoggedIn();
                 user = client.getUser();
 
@@ -48,7 +60,10 @@ public class ClientSendMessage extends Thread {
                                            "=============" + ANSI_RESET);
                         System.out.print("login or register: ");
 
-                        String choice = reader.readLine();
+                        String choice = nextLine();
+                        if (choice == null) {
+                            break;
+                        }
 
                         switch (choice) {
                             case "login" -> {
@@ -56,24 +71,36 @@ public class ClientSendMessage extends Thread {
                                         "------------- " + ANSI_BOLD + "Login" + ANSI_RESET + " -------------");
                                 // ask to log in if user hasn't logged in yet
                                 System.out.print("Username: ");
-                                String username = reader.readLine();
+                                String username = nextLine();
 
                                 System.out.print("Password: ");
-                                String password = reader.readLine();
+                                String password = nextLine();
 
-                                sendMessage("login", username + " " + password);
+                                if (username == null || password == null) {
+                                    // the console was closed halfway through the prompt
+                                    running = false;
+                                } else {
+                                    sendMessage("login", username + " " + password);
+                                    running = awaitLoginState();
+                                }
                             }
                             case "register" -> {
                                 System.out.println("------------ " + ANSI_BOLD + "Register" + ANSI_RESET + " " +
                                                    "------------");
                                 // get user username
                                 System.out.print("Username: ");
-                                String username = reader.readLine();
+                                String username = nextLine();
                                 // get new password
                                 System.out.print("Password: ");
-                                String password = reader.readLine();
+                                String password = nextLine();
 
-                                sendMessage("register", username + " " + password);
+                                if (username == null || password == null) {
+                                    // the console was closed halfway through the prompt
+                                    running = false;
+                                } else {
+                                    sendMessage("register", username + " " + password);
+                                    running = awaitLoginState();
+                                }
                             }
                             default -> {
                                 // prevent user from using other commands before logged in
@@ -85,90 +112,140 @@ public class ClientSendMessage extends Thread {
                         }
                     } else {
                         // ask user to re-enter their password if username is valid but wrong password
-                        String password = reader.readLine();
+                        String password = nextLine();
+                        if (password == null) {
+                            break;
+                        }
                         sendMessage("login", user + " " + password);
+                        running = awaitLoginState();
                     }
                 } else {
-                    // if user hasn't entered any input, go back to top of the loop
-                    // this is for when server send multiple responses back to the client that would chanage the login
-                    // status
-                    if (reader.ready()) {
-                        // allow users to use excluded features after they logged in
-                        String[] command = reader.readLine().split(" ");
-
-                        switch (command[0]) {
-                            case "message" -> {
-                                try {
-                                    String messageBody = String.join(" ", Arrays.copyOfRange(command, 1,
-                                                                                             command.length));
-                                    sendMessage("message", messageBody);
-                                } catch (Exception e) {
-                                    System.out.println(invalidCommandMsg(command[0]));
-                                }
+                    // wait for the next line, or for the server to log the user out
+                    Client.Event event = nextEvent();
+                    if (event.getKind() == Client.Event.Kind.END) {
+                        break;
+                    }
+                    if (event.getKind() == Client.Event.Kind.LOGIN_STATE) {
+                        continue;
+                    }
+
+                    // allow users to use excluded features after they logged in
+                    String[] command = event.getLine().split(" ");
+                    switch (command[0]) {
+                        case "message" -> {
+                            try {
+                                String messageBody = String.join(" ", Arrays.copyOfRange(command, 1,
+                                                                                         command.length));
+                                sendMessage("message", messageBody);
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
-                            case "broadcast" -> {
-                                try {
-                                    String messageBody =
-                                            String.join(" ", Arrays.copyOfRange(command, 1, command.length));
-                                    sendMessage("broadcast", messageBody);
-                                } catch (Exception e) {
-                                    System.out.println(invalidCommandMsg(command[0]));
-                                }
+                        }
+                        case "broadcast" -> {
+                            try {
+                                String messageBody =
+                                        String.join(" ", Arrays.copyOfRange(command, 1, command.length));
+                                sendMessage("broadcast", messageBody);
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
-                            case "whoelse" -> {
-                                sendMessage("whoelse", "N/A");
+                        }
+                        case "whoelse" -> {
+                            sendMessage("whoelse", "N/A");
+                        }
+                        case "whoelsesince" -> {
+                            try {
+                                sendMessage("whoelsesince", command[1]);
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
-                            case "whoelsesince" -> {
-                                try {
-                                    sendMessage("whoelsesince", command[1]);
-                                } catch (Exception e) {
-                                    System.out.println(invalidCommandMsg(command[0]));
-                                }
+                        }
+                        case "block" -> {
+                            try {
+                                sendMessage("block", command[1]);
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
-                            case "block" -> {
-                                try {
-                                    sendMessage("block", command[1]);
-                                } catch (Exception e) {
-                                    System.out.println(invalidCommandMsg(command[0]));
-                                }
+                        }
+                        case "unblock" -> {
+                            try {
+                                sendMessage("unblock", command[1]);
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
-                            case "unblock" -> {
-                                try {
-                                    sendMessage("unblock", command[1]);
-                                } catch (Exception e) {
-                                    System.out.println(invalidCommandMsg(command[0]));
-                                }
+                        }
+                        case "join", "leave" -> {
+                            try {
+                                sendMessage(command[0], command[1]);
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
-                            case "logout" -> {
-                                logout();
-                                sendMessage("logout", "N/A");
+                        }
+                        case "channel" -> {
+                            try {
+                                String messageBody = command[1] + " " +
+                                                     String.join(" ", Arrays.copyOfRange(command, 2, command.length));
+                                sendMessage("channel", messageBody);
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
-                            case "startprivate" -> {
-                                sendMessage(command[0], String.join(" ", Arrays.copyOfRange(command, 1, command.length)));
+                        }
+                        case "logout" -> {
+                            logout();
+                            sendMessage("logout", "N/A");
+                        }
+                        case "startprivate" -> {
+                            String messageBody = String.join(" ", Arrays.copyOfRange(command, 1, command.length));
+                            if (command.length == 3 && command[2].equals("yes")) {
+                                // the requester connects to this port once the server passed it on
+                                messageBody += " " + p2pPort;
+                                p2p.expect(command[1]);
                             }
-                            case "private" -> {
+                            sendMessage(command[0], messageBody);
+                        }
+                        case "private" -> {
+                            try {
                                 String target = command[1];
-                                String msg = String.join(" ", Arrays.copyOfRange(command, 1, command.length));
+                                String msg = String.join(" ", Arrays.copyOfRange(command, 2, command.length));
                                 p2p.sendMessage(target, msg);
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
-                            case "stopprivate" -> {
-                                p2p.sendMessage(command[1], "stopprivate");
-                            }
-                            case "exit" -> {
-                                logout();
-                                // send a message to server to close input stream
-                                sendMessage("exit", "N/A");
-                                clientSocket.close();
-                                outputStream.close();
+                        }
+                        case "sendfile" -> {
+                            try {
+                                String target = command[1];
+                                String path = String.join(" ", Arrays.copyOfRange(command, 2, command.length));
+                                if (path.isEmpty()) {
+                                    throw new IllegalArgumentException();
+                                }
+                                p2p.sendFile(user, target, Paths.get(path));
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
-                            default -> {
-                                // prevent user from using invalid commands before logged in
-                                System.out.println(ANSI_RED + ANSI_BOLD + "Error" + ANSI_RESET + ": Invalid Command!");
-                                System.out.println(ANSI_BOLD +
-                                                   "----------------------------------------------------------------------" +
-                                                   ANSI_RESET);
+                        }
+                        case "stopprivate" -> {
+                            try {
+                                p2p.closeConnection(command[1]);
+                            } catch (Exception e) {
+                                System.out.println(invalidCommandMsg(command[0]));
                             }
                         }
+                        case "exit" -> {
+                            logout();
+                            // send a message to server to close input stream
+                            sendMessage("exit", "N/A");
+                            clientSocket.close();
+                            outputStream.close();
+                            running = false;
+                        }
+                        default -> {
+                            // prevent user from using invalid commands before logged in
+                            System.out.println(ANSI_RED + ANSI_BOLD + "Error" + ANSI_RESET + ": Invalid Command!");
+                            System.out.println(ANSI_BOLD +
+                                               "----------------------------------------------------------------------" +
+                                               ANSI_RESET);
+                        }
                     }
                 }
             } catch (Exception e) {
@@ -178,6 +255,79 @@ public class ClientSendMessage extends Thread {
         }
     }
 
+    /**
+     * read the console on a thread of its own and hand every line over as an event, so that the sending thread
+     * never polls the console
+     */
+    private void startConsoleReader() {
+        Thread consoleReader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    client.postLine(line);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            client.postEnd();
+        }, "console-reader");
+        consoleReader.setDaemon(true);
+        consoleReader.start();
+    }
+
+    /**
+     * wait for the next event, lines typed while waiting for the server to answer a login come first
+     * @return the next event
+     * @throws InterruptedException throw this exception when the thread is interrupted while waiting
+     */
+    private Client.Event nextEvent() throws InterruptedException {
+        String line = deferredLines.poll();
+        if (line != null) {
+            return new Client.Event(Client.Event.Kind.LINE, line);
+        }
+        return client.takeEvent();
+    }
+
+    /**
+     * wait for the next console line, a login state change does not matter while a prompt is being answered
+     * @return the line or null once the console or the connection is gone
+     * @throws InterruptedException throw this exception when the thread is interrupted while waiting
+     */
+    private String nextLine() throws InterruptedException {
+        while (true) {
+            Client.Event event = nextEvent();
+            switch (event.getKind()) {
+                case LINE -> {
+                    return event.getLine();
+                }
+                case END -> {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * wait until the receiving thread handled the answer to a login or register request, keeping the lines typed
+     * in the meantime for later
+     * @return false if the console or the connection is gone else true
+     * @throws InterruptedException throw this exception when the thread is interrupted while waiting
+     */
+    private boolean awaitLoginState() throws InterruptedException {
+        while (true) {
+            Client.Event event = client.takeEvent();
+            switch (event.getKind()) {
+                case LINE -> deferredLines.add(event.getLine());
+                case LOGIN_STATE -> {
+                    return true;
+                }
+                case END -> {
+                    return false;
+                }
+            }
+        }
+    }
+
     /**
      * send a message to the server in order to handle the inputs from the console
      *
@@ -185,11 +335,40 @@ public class ClientSendMessage extends Thread {
      * @param message message body of the packet
      * @throws Exception throw exception when error occur
      */
-    private void sendMessage(String type, String message) throws Exception {
+    private synchronized void sendMessage(String type, String message) throws Exception {
+        if (type.equals("login") || type.equals("register")) {
+            loginType = type;
+            loginMessage = message;
+        }
         Packet toSend = new Packet(null, type);
         toSend.setMessage(message);
-        outputStream.writeObject(toSend);
-        outputStream.flush();
+        toSend.setRequestId(client.newRequest(type));
+        codec.write(outputStream, toSend);
+    }
+
+    /**
+     * switch to another server of the cluster and send the last login or registration to it, called by the
+     * receiving thread which already reads from the new connection
+     *
+     * @param socket the connection to the other server
+     * @param codec the codec agreed on with the other server
+     * @throws Exception throw exception when error occur
+     */
+    public synchronized void moveServer(Socket socket, PacketCodec codec) throws Exception {
+        this.clientSocket = socket;
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.codec = codec;
+        sendMessage(loginType, loginMessage);
+    }
+
+    /**
+     * confirm that a chunk of unread messages was shown, sent from the receiving thread
+     *
+     * @param cursor the cursor at the end of the chunk
+     * @throws Exception throw exception when error occur
+     */
+    public void acknowledge(String cursor) throws Exception {
+        sendMessage("messagesack", cursor);
     }
 
     /**
@@ -198,6 +377,7 @@ public class ClientSendMessage extends Thread {
      * @throws Exception throw exception when error occur
      */
     private void logout() throws Exception {
+        p2p.closeConnections();
         client.setLoginStatus(false);
         client.setUser(null);
         user = null;
@@ -222,9 +402,21 @@ public class ClientSendMessage extends Thread {
             case "whoelsesince" -> {
                 toReturn += " <time in seconds>";
             }
-            case "block", "unblock" -> {
+            case "block", "unblock", "stopprivate" -> {
                 toReturn += " <user>";
             }
+            case "private" -> {
+                toReturn += " <user> <message>";
+            }
+            case "join", "leave" -> {
+                toReturn += " <channel>";
+            }
+            case "channel" -> {
+                toReturn += " <channel> <message>";
+            }
+            case "sendfile" -> {
+                toReturn += " <user> <path>";
+            }
         }
         return toReturn;
     }
@@ -0,0 +1,809 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.time.LocalDateTime;
+
+/**
+ * The state and command handling of one connected client, independent of how the packets reach the server.
+ * ClientThread drives a session from a blocking socket, NioConnection drives it from an event loop.
+ */
+public abstract class ClientSession {
+    protected final Server server;
+    protected final String clientID;
+    // the address the client connects from, handed to the peers it starts private messaging with
+    protected final String remoteHost;
+    protected User user;
+    // the end of the chunk of offline messages the client has not acknowledged yet, -1 when none is outstanding
+    private long unackedCursor = -1;
+    private int unackedMessages;
+    private boolean moreOfflineMessages;
+    // logs the user out after TIMEOUT seconds without a packet, null while nobody is logged in
+    private TimerWheel.Timeout idleTimer;
+    // the id of the request that is being handled, copied onto its reply
+    private int replyTo;
+    // the bytes written to the client, counted by whichever thread writes them
+    private final AtomicLong outboundBytes = new AtomicLong();
+    // the channels the user joined, left when the user logs out
+    private final Set<String> joinedChannels = new HashSet<>();
+    // the packets for the client are not written before this completes, so that no reply reports a change that
+    // is not saved yet
+    private volatile CompletableFuture<Void> writeBarrier = CompletableFuture.completedFuture(null);
+
+    // Text coloring for text
+    final String ANSI_RESET = "\u001B[0m";
+    final String ANSI_USER = "\u001B[35m" + "\u001B[1m";
+    final String ANSI_BOLD = "\u001B[1m";
+    final String ANSI_SERVER = "\u001B[34m" + ANSI_BOLD;
+
+    // a chunk of offline messages ends at whichever limit it reaches first
+    private static final int CHUNK_MESSAGES = 100;
+    private static final int CHUNK_BYTES = 32 * 1024;
+
+    ClientSession(Server server, InetSocketAddress remoteAddress) {
+        this.server = server;
+        this.remoteHost = remoteAddress.getAddress().getHostAddress();
+        this.clientID = "(" + remoteHost + ", " + remoteAddress.getPort() + ")";
+    }
+
+    /**
+     * get the user who is using the current server
+     * @return the user if a user is logged in else return null
+     */
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * send a packet to the client of this session
+     * @param packet the packet to be sent
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    protected abstract void send(Packet packet) throws IOException;
+
+    /**
+     * send a packet that is sent to many clients at once to the client of this session
+     * @param frame the packet and its frames, shared by every client it is sent to
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    protected void send(SharedFrame frame) throws IOException {
+        send(frame.getPacket());
+    }
+
+    /**
+     * send the reply to a request of this client, a client that does not read its replies holds up its own
+     * requests rather than being dropped
+     * @param packet the reply to be sent
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    protected abstract void sendReply(Packet packet) throws IOException;
+
+    /**
+     * send a packet to the client of this session after a delay, without holding up the caller's transport
+     * @param packet the packet to be sent
+     * @param delayMillis the delay in milliseconds
+     * @throws Exception throw exception when an error occurs
+     */
+    protected abstract void sendDelayed(Packet packet, long delayMillis) throws Exception;
+
+    /**
+     * log the user out due to inactivity on the thread that owns this session, called by the timer when the
+     * inactivity timeout fired so it must only hand the work over
+     */
+    protected abstract void idleTimeoutFired();
+
+    /**
+     * @return the number of packets waiting to be written to the client
+     */
+    public abstract int getOutboundQueueDepth();
+
+    /**
+     * @return the number of bytes written to the client so far
+     */
+    public long getOutboundBytes() {
+        return outboundBytes.get();
+    }
+
+    /**
+     * count bytes that were written to the client
+     * @param bytes the number of bytes
+     */
+    protected void countOutbound(long bytes) {
+        outboundBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return completes once the packets queued for the client so far may be written, completes exceptionally when
+     * a change they report could not be saved, the connection is then closed without writing them
+     */
+    protected CompletableFuture<Void> getWriteBarrier() {
+        return writeBarrier;
+    }
+
+    /**
+     * hold back the packets queued for the client from now on until the changes the current thread made are saved,
+     * without waiting for them here
+     */
+    private synchronized void holdWrites() {
+        CompletableFuture<Void> changes = server.takeChanges();
+        CompletableFuture<Void> barrier = writeBarrier;
+        if (changes.isDone() && !changes.isCompletedExceptionally() || barrier.isCompletedExceptionally()) {
+            // a failed barrier stays until the connection is closed
+            return;
+        }
+        writeBarrier = barrier.isDone() ? changes : CompletableFuture.allOf(barrier, changes);
+    }
+
+    /**
+     * start logging the user out after TIMEOUT seconds without any packet from the client
+     */
+    protected void startIdleTimer() {
+        idleTimer = server.getTimers().schedule(this::idleTimeoutFired, server.TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * stop the inactivity timer once the user is logged out
+     */
+    protected void stopIdleTimer() {
+        if (idleTimer != null) {
+            idleTimer.cancel();
+            idleTimer = null;
+        }
+    }
+
+    /**
+     * check on the owning thread that the inactivity timeout still holds, a packet may have come in after the timer
+     * fired and before the work was handed over
+     * @return true if the user should be logged out
+     */
+    protected boolean isIdleTimeoutDue() {
+        return idleTimer != null && idleTimer.isExpired();
+    }
+
+    /**
+     * Function that handles one enquiry from the client and records how long it took
+     * @param packet the packet received from the client
+     * @return false if the client asked to exit else true
+     * @throws Exception throw exception when the enquiry can not be handled
+     */
+    protected boolean handle(Packet packet) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean alive = dispatch(packet);
+            failed = false;
+            return alive;
+        } finally {
+            holdWrites();
+            server.getMetrics().recordCommand(packet.getType(), System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * check whether handling a request may wait on the disk: a login or a registration reads the credential file
+     * and the mailbox, and an acknowledgement writes the read cursor and reads the next chunk
+     * @param packet the request
+     * @return true if the request must not be handled on an event loop
+     */
+    protected static boolean mayBlock(Packet packet) {
+        return switch (packet.getType()) {
+            case "login", "register", "messagesack" -> true;
+            default -> false;
+        };
+    }
+
+    private boolean dispatch(Packet packet) throws Exception {
+        if (idleTimer != null) {
+            idleTimer.reschedule();
+        }
+        replyTo = packet.getRequestId();
+        String type = packet.getType();
+        String[] messageBody = packet.getMessage().split(" ");
+
+        switch (type) {
+            case "login" -> {
+                // get username and password from client
+                String username = messageBody[0];
+                String password = messageBody[1];
+                String status = login(username, password);
+
+                Packet outputPacket = new Packet("SERVER", "login");
+                outputPacket.setMessage(username + " " + status);
+                reply(outputPacket);
+
+                if (status.equals("SUCCESS")) {
+                    loginSuccess();
+                }
+            }
+            case "register" -> {
+                String username = messageBody[0];
+                String password = messageBody[1];
+                String status = register(username, password);
+                Packet outputPacket = new Packet("SERVER", "register");
+                outputPacket.setMessage(username + " " + status);
+                reply(outputPacket);
+
+                if (status.equals("SUCCESS")) {
+                    loginSuccess();
+                }
+            }
+            case "message" -> {
+                Packet newPacket = new Packet(user.getUsername(), "broadcast");
+                newPacket.setReceiver(messageBody[0]);
+                String messageText = String.join(" ", Arrays.copyOfRange(messageBody, 1, messageBody.length));
+                newPacket.setMessage(messageText);
+                sendMessage(newPacket);
+            }
+            case "broadcast" -> {
+                String username = user.getUsername();
+                Packet broadcastMsg = new Packet(username, "broadcast");
+                broadcastMsg.setMessage(String.join(" ", messageBody));
+                if (server.broadcast("message", broadcastMsg)) {
+                    // inform the sender about the status of the message
+                    Packet confirmationMsg = new Packet("server", "broadcast");
+                    confirmationMsg.setMessage("the message is successfully sent to most users except for some.");
+                    reply(confirmationMsg);
+                } else {
+                    replyDone();
+                }
+            }
+            case "whoelse" -> {
+                reply(server.listAllOnlineUsers(user.getUsername()));
+            }
+            case "whoelsesince" -> {
+                LocalDateTime dateTime = (LocalDateTime.now()).minusSeconds(Long.parseLong(messageBody[0]));
+                reply(server.getUsersSince(user.getUsername(), dateTime));
+            }
+            case "block" -> {
+                blockUser(messageBody[0]);
+            }
+            case "unblock" -> {
+                unblockUser(messageBody[0]);
+            }
+            case "logout" -> {
+                logout();
+                replyDone();
+            }
+            case "startprivate" -> {
+                String target = messageBody[0];
+
+                // response to an invitation: <user> <response> [private messaging port if the response is yes]
+                // request to start a private messaging: <user>
+                if (messageBody.length < 2) {
+                    startPrivateMsg(target);
+                } else {
+                    createConnection(target, messageBody[1], messageBody.length > 2 ? messageBody[2] : null);
+                }
+            }
+            case "private" -> {
+                replyDone();
+            }
+            case "join" -> {
+                joinChannel(messageBody[0]);
+            }
+            case "leave" -> {
+                leaveChannel(messageBody[0]);
+            }
+            case "channel" -> {
+                String messageText = String.join(" ", Arrays.copyOfRange(messageBody, 1, messageBody.length));
+                sendToChannel(messageBody[0], messageText);
+            }
+            case "messagesack" -> {
+                acknowledgeOfflineMessages(Long.parseLong(messageBody[0]));
+                replyDone();
+            }
+            case "exit" -> {
+                Packet outputPacket = new Packet("SERVER", "exit");
+                outputPacket.setMessage("N/A");
+                reply(outputPacket);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * send the reply to the request that is being handled, tagged with the id the client gave the request. It is
+     * written once the changes the request made are saved, the thread that handles the request does not wait
+     * @param packet the reply
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    private void reply(Packet packet) throws IOException {
+        packet.setRequestId(replyTo);
+        holdWrites();
+        sendReply(packet);
+    }
+
+    /**
+     * complete a request that has nothing to report, so that a client with many requests in flight knows it was
+     * handled. A client that does not tag its requests gets nothing, as before
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    private void replyDone() throws IOException {
+        if (replyTo != 0) {
+            Packet outputPacket = new Packet("SERVER", "ack");
+            outputPacket.setMessage("N/A");
+            reply(outputPacket);
+        }
+    }
+
+    /**
+     * have the node of another user handle the part of a command that concerns that user and reply with its
+     * status. A user of this node is handled right away, for a user of another node the reply is sent from the
+     * thread of the cluster bus once the node answered
+     * @param target the other user
+     * @param request the command, its receiver is the other user
+     * @param toReply builds the reply from the status
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    private void askHome(String target, Packet request, Function<String, Packet> toReply) throws IOException {
+        request.setReceiver(target);
+        int requestId = replyTo;
+        String status = server.ask(target, request, remoteStatus -> {
+            Packet packet = remoteStatus.equals(Cluster.UNAVAILABLE) ? unavailable(request.getType(), target) :
+                            toReply.apply(remoteStatus);
+            packet.setRequestId(requestId);
+            holdWrites();
+            try {
+                send(packet);
+            } catch (IOException e) {
+                // the client is gone
+            }
+        });
+        if (status != null) {
+            reply(toReply.apply(status));
+        }
+    }
+
+    private static Packet unavailable(String type, String target) {
+        Packet packet = new Packet("SERVER", type);
+        packet.setMessage(Cluster.UNAVAILABLE + " " + target);
+        return packet;
+    }
+
+    /**
+     * log the user out after the client has been inactive for TIMEOUT seconds
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    protected void timeout() throws IOException {
+        Packet outputPacket = new Packet("SERVER", "timeout");
+        outputPacket.setMessage("you have logged out due to inactivity.");
+
+        logout();
+        send(outputPacket);
+    }
+
+    /**
+     * log the current user out and let other users know
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    private void logout() throws IOException {
+        user.setLoginStatus("OFFLINE");
+        server.updateUser(user);
+        server.removeSession(user.getUsername(), this);
+        for (String channel : joinedChannels) {
+            server.leaveChannel(channel, user.getUsername());
+        }
+        joinedChannels.clear();
+        sendPresenceBroadcast("offline");
+        user = null;
+        // a chunk that was not acknowledged is sent again on the next login
+        unackedCursor = -1;
+        stopIdleTimer();
+    }
+
+    /**
+     * release everything the session holds once its connection is closed, a user who is still logged in is logged
+     * out so that the user can log in again
+     */
+    protected void disconnect() {
+        server.removeClient(this);
+        if (user != null) {
+            try {
+                logout();
+            } catch (IOException e) {
+                // the connection is already gone
+            }
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                        User Authentication                     │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * Verify the login information
+     * @param username username of the user who is trying to log in
+     * @param password password of the user who is trying to log in
+     * @return the response after the information is assessed
+     */
+    private String login(String username, String password) {
+        if (!server.isHome(username)) {
+            // in cluster mode a user logs in on the node that keeps its data
+            return "MOVED " + server.getHomeAddress(username);
+        }
+        User loginUser = server.getUser(username);
+        if (loginUser == null){
+            // check valid username
+            return "USERNAME";
+        } else if (loginUser.isBlocked()) {
+            // check if the system blocked the user or not
+            return "BLOCKED";
+        } else if (loginUser.getLoginStatus().equals("ONLINE")) {
+            return "ONLINE";
+        } else if (loginUser.isCorrectPassword(password)) {
+            if (!server.addSession(username, this)) {
+                // another client logged in as the same user at the same time
+                return "ONLINE";
+            }
+            loginUser.resetAttempts();
+            loginUser.setLoginStatus("ONLINE");
+            server.recordLogin(loginUser, LocalDateTime.now());
+            server.updateUser(loginUser);
+            user = loginUser;
+            return "SUCCESS";
+        } else {
+            // two clients guessing at the same time may both get past the third attempt
+            if (loginUser.getLoginAttempts() >= 3) {
+                server.blockLogin(loginUser);
+                server.updateUser(loginUser);
+                return "BLOCKED";
+            }
+            return "PASSWORD";
+        }
+    }
+
+    /**
+     * Verify entered information to register
+     * @param username username of the user who is trying to register a new account
+     * @param password password of the user who is trying to register a new account
+     * @return the response after the information is assessed
+     */
+    private String register(String username, String password) {
+        if (!server.isHome(username)) {
+            return "MOVED " + server.getHomeAddress(username);
+        }
+        try {
+            if (!server.addUser(username, password)) {
+                return "USERNAME";
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "ERROR";
+        }
+        if (!server.addSession(username, this)) {
+            // someone logged in to the new account between its registration and here
+            return "ONLINE";
+        }
+        user = server.getUser(username);
+        user.setLoginStatus("ONLINE");
+        server.recordLogin(user, LocalDateTime.now());
+        server.updateUser(user);
+        return "SUCCESS";
+    }
+
+    /**
+     * Perform the following actions when a user logged in successfully
+     * @throws IOException connection error with client streams
+     */
+    private void loginSuccess() throws IOException {
+        // start the inactivity timer of the client
+        startIdleTimer();
+        // send presence broadcast to other online users
+        sendPresenceBroadcast("online");
+
+        // start streaming the unread messages, the rest follows as the client acknowledges each chunk
+        sendOfflineMessages(true, server.offlineMessagesStart(user.getUsername()));
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                            Broadcasts                          │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * receive broadcast that was sent by other users
+     * @param packet packet contains information about the message
+     * @throws IOException throw this exception when an error occurs with the input/output stream that connects
+     * to the client
+     */
+    public void receiveBroadcast(Packet packet) throws IOException {
+        send(packet);
+    }
+
+    /**
+     * receive a broadcast or a channel message that many other users receive as well
+     * @param frame the packet and its frames, built once for every user who receives it
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    public void receiveBroadcast(SharedFrame frame) throws IOException {
+        send(frame);
+    }
+
+    /**
+     * a helper function to send presence broadcast to other users
+     * @param type "offline" if a user logged out, "online" if a user logged in
+     * @throws IOException throw this exception when an error occurs with the input/output stream that connects
+     *  to the client
+     */
+    private void sendPresenceBroadcast(String type) throws IOException {
+        String username = user.getUsername();
+        Packet broadcastMsg = new Packet(username, "broadcast");
+        broadcastMsg.setMessage(username + " is " + type);
+        server.broadcast("presence", broadcastMsg);
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                              Channels                          │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * join a channel, the channel is created by its first member
+     * @param channel the name of the channel
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    private void joinChannel(String channel) throws IOException {
+        Packet outputPacket = new Packet("SERVER", "join");
+        if (server.joinChannel(channel, user.getUsername(), this)) {
+            joinedChannels.add(channel);
+            outputPacket.setMessage("SUCCESS" + " " + channel);
+        } else {
+            outputPacket.setMessage("JOINED" + " " + channel);
+        }
+        reply(outputPacket);
+    }
+
+    /**
+     * leave a channel
+     * @param channel the name of the channel
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    private void leaveChannel(String channel) throws IOException {
+        Packet outputPacket = new Packet("SERVER", "leave");
+        if (server.leaveChannel(channel, user.getUsername())) {
+            joinedChannels.remove(channel);
+            outputPacket.setMessage("SUCCESS" + " " + channel);
+        } else {
+            outputPacket.setMessage("NOTMEMBER" + " " + channel);
+        }
+        reply(outputPacket);
+    }
+
+    /**
+     * send a message to the other members of a channel the user joined
+     * @param channel the name of the channel
+     * @param messageText the message
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    private void sendToChannel(String channel, String messageText) throws IOException {
+        Packet outputPacket = new Packet("SERVER", "channel");
+        if (!joinedChannels.contains(channel)) {
+            outputPacket.setMessage("NOTMEMBER" + " " + channel);
+            reply(outputPacket);
+            return;
+        } else if (messageText.isEmpty()) {
+            outputPacket.setMessage("EMPTY");
+            reply(outputPacket);
+            return;
+        }
+
+        Packet channelMsg = new Packet(user.getUsername(), "channel");
+        channelMsg.setMessage(channel + " " + messageText);
+        if (server.sendToChannel(channel, channelMsg)) {
+            // inform the sender that a member who blocked it did not get the message
+            outputPacket.setMessage("BLOCKED" + " " + channel);
+            reply(outputPacket);
+        } else {
+            replyDone();
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                          Message Forwarding                    │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * send direct message to a user
+     * @param packet the packet that contains the information about the message
+     * @throws IOException throw this exception when an error occurs with the input/output stream that connects
+     * to the client
+     */
+    private void sendMessage(Packet packet) throws IOException {
+        String sender = packet.getSender();
+        String target = packet.getReceiver();
+
+        if (sender.equals(target)) {
+            Packet sendClient = new Packet(sender, "message");
+            sendClient.setMessage("SELF");
+            reply(sendClient);
+            return;
+        }
+        // the node of the target checks the rest, then delivers the message or keeps it until the target logs in
+        askHome(target, packet, status -> {
+            Packet sendClient = new Packet(sender, "message");
+            if (status.equals("USERNAME") || status.equals("EMPTY")) {
+                sendClient.setMessage(status);
+            } else {
+                sendClient.setMessage(status + " " + target);
+            }
+            return sendClient;
+        });
+    }
+
+    /**
+     * Check user's eligibility to start a private messaging.
+     * If eligible, send an invitation request to the target user
+     * @param target the target user
+     * @throws IOException throw an exception when an error occurs
+     */
+    private void startPrivateMsg(String target) throws IOException {
+        String username = user.getUsername();
+        if (target.equals(username)) {
+            Packet outputPacket = new Packet(username, "startprivate");
+            outputPacket.setMessage("REQUEST SELF");
+            reply(outputPacket);
+            return;
+        }
+        // the node of the target checks the target and sends it the invitation
+        askHome(target, new Packet(username, "startprivate"), status -> {
+            Packet outputPacket = new Packet(username, "startprivate");
+            outputPacket.setMessage("REQUEST " + status);
+            return outputPacket;
+        });
+    }
+
+    /**
+     * Attempt to create a private connection after target user
+     * accepted the invitation to a private messaging
+     * @param target the requester who initiated the private connection
+     * @param response the response to the invitation
+     * @param port the port the user accepts private connections on, passed on to the requester with the address
+     *  of the user so that the requester can connect
+     */
+    private void createConnection(String target, String response, String port) throws Exception {
+        // send the response of an invitation back to the requester
+        Packet targetPacket = new Packet("SERVER", "startprivate");
+        Packet outputPacket = new Packet("SERVER", "startprivate");
+        String targetMsg = "";
+        String outputMsg = "";
+        if (response.equals("yes")){
+            targetMsg = "REQUEST SUCCESS " + user.getUsername() + " " + remoteHost + " " + port;
+            targetPacket.setMessage(targetMsg);
+            server.deliver(target, targetPacket);
+
+            // give the requester some time to connect before confirming
+            outputMsg = "RESPONSE YES " + target;
+            outputPacket.setMessage(outputMsg);
+            outputPacket.setRequestId(replyTo);
+            sendDelayed(outputPacket, 100);
+
+        } else {
+            targetMsg = "REQUEST FAIL " + user.getUsername();
+            targetPacket.setMessage(targetMsg);
+            server.deliver(target, targetPacket);
+            replyDone();
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                           Offline Messaging                    │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * send the next chunk of the offline messages for a user that just logged in.
+     * A chunk is a "messages" packet whose body starts with "CHUNK <cursor> <MORE|END>", the client acknowledges
+     * the cursor once it showed the chunk and only then the messages are removed and the next chunk is sent, so
+     * a large backlog is never held in memory at once and is not lost if the client disconnects halfway
+     * @param first true for the first chunk, which says how many messages are unread
+     * @param cursor the cursor of the first message in the chunk
+     * @throws IOException throw this exception when the messages can not be read or sent
+     */
+    private void sendOfflineMessages(boolean first, long cursor) throws IOException {
+        String username = user.getUsername();
+        MailboxStore.Chunk chunk = server.readOfflineMessages(username, cursor, CHUNK_MESSAGES, CHUNK_BYTES);
+        Packet outputPacket = new Packet("SERVER", "messages");
+
+        if (first && chunk.getPackets().isEmpty()) {
+            outputPacket.setMessage("NONE");
+            send(outputPacket);
+            return;
+        }
+
+        StringBuilder messageBody = new StringBuilder();
+        messageBody.append("CHUNK ").append(chunk.getNext()).append(chunk.hasMore() ? " MORE" : " END").append("\n");
+        if (first) {
+            messageBody.append("you have ").append(server.countOfflineMessages(username))
+                       .append(" unread messages.");
+        }
+        for (Packet message : chunk.getPackets()) {
+            messageBody.append("\n").append("   ").append(ANSI_USER).append(message.getSender()).append(ANSI_RESET)
+                       .append(": ").append(message.getMessage());
+        }
+        outputPacket.setMessage(messageBody.toString());
+        unackedCursor = chunk.getNext();
+        unackedMessages = chunk.getPackets().size();
+        moreOfflineMessages = chunk.hasMore();
+        send(outputPacket);
+    }
+
+    /**
+     * forget the offline messages the client confirmed it received and send the next chunk if there is one
+     * @param cursor the cursor at the end of the chunk that was received
+     * @throws IOException throw this exception when the mailbox can not be changed or the next chunk not sent
+     */
+    private void acknowledgeOfflineMessages(long cursor) throws IOException {
+        // only the chunk that is outstanding can be acknowledged, anything else is stale or made up
+        if (user == null || cursor != unackedCursor) {
+            return;
+        }
+        unackedCursor = -1;
+        server.acknowledgeOfflineMessages(user.getUsername(), cursor, unackedMessages);
+        if (moreOfflineMessages) {
+            sendOfflineMessages(false, cursor);
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                           Blacklisting                         │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * block another user from getting the user's presence notification, sending broadcast messages, and direct
+     * messages
+     * @param username the username of the user to be blocked
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    private void blockUser(String username) throws IOException {
+        User blocker = user;
+
+        if (blocker.getUsername().equals(username)) {
+            Packet outputPacket = new Packet("SERVER", "block");
+            outputPacket.setMessage("SELF");
+            reply(outputPacket);
+            return;
+        }
+        // the node of the other user records who blocked it first
+        askHome(username, new Packet(blocker.getUsername(), "block"), status -> {
+            Packet outputPacket = new Packet("SERVER", "block");
+            if (status.equals("SUCCESS")) {
+                server.addBlacklistUser(blocker, username);
+                server.updateUser(blocker);
+                outputPacket.setMessage("SUCCESS" + " " + username);
+            } else {
+                outputPacket.setMessage(status);
+            }
+            return outputPacket;
+        });
+    }
+
+    /**
+     * unblock an user
+     * @param username the username of the user that is being unblocked
+     * @throws IOException throw this exception when an error occurs with the connection to the client
+     */
+    private void unblockUser(String username) throws IOException {
+        User blocker = user;
+
+        if (blocker.getUsername().equals(username)) {
+            Packet outputPacket = new Packet("SERVER", "unblock");
+            outputPacket.setMessage("SELF");
+            reply(outputPacket);
+            return;
+        }
+        askHome(username, new Packet(blocker.getUsername(), "unblock"), status -> {
+            Packet outputPacket = new Packet("SERVER", "unblock");
+            if (status.equals("USERNAME")) {
+                outputPacket.setMessage(status);
+            } else if (!blocker.isUserBlacklisted(username)) {
+                outputPacket.setMessage("UNBLOCKED" + " " + username);
+            } else {
+                server.removeBlacklistUser(blocker, username);
+                server.updateUser(blocker);
+                outputPacket.setMessage("SUCCESS" + " " + username);
+            }
+            return outputPacket;
+        });
+    }
+}
@@ -1,34 +1,41 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.time.LocalDateTime;
-
-public class ClientThread extends Thread {
-    private final Server server;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves one client with blocking socket streams, run on a platform thread or on a virtual thread.
+ * Packets for the client are queued and written by a writer task of its own, so other clients sending to this one
+ * never wait for its socket. The writer runs on the same kind of thread as the reader, so in thread mode every
+ * connection takes two platform threads.
+ */
+public class ClientThread extends ClientSession implements Runnable {
     private final Socket clientSocket;
-    private User user;
-    // used to send data to client
-    private ObjectOutputStream objectOutputStream;
+    // used to send data to client, only the writer task writes to it after the handshake
+    private DataOutputStream outputStream;
     // used to acquire input from client
-    private ObjectInputStream objectInputStream;
-
-    // Text coloring for text
-    final String ANSI_RESET = "\u001B[0m";
-    final String ANSI_USER = "\u001B[35m" + "\u001B[1m";
-    final String ANSI_BOLD = "\u001B[1m";
-    final String ANSI_SERVER = "\u001B[34m" + ANSI_BOLD;
-
-    ClientThread(Server server, Socket clientSocket) {
-        this.server = server;
+    private DataInputStream inputStream;
+    // agreed on with the client when it connects
+    private PacketCodec codec;
+    // packets waiting to be written to the client
+    private final OutboundQueue outbound;
+    // runs the writer task, the same kind of thread as the client thread itself
+    private final Executor writers;
+    // the reader and the inactivity timeout both change the session, one at a time
+    private final ReentrantLock sessionLock = new ReentrantLock();
+    // frames this reader could not queue for other clients under the BLOCK policy, in the order they were sent. The
+    // reader waits for room once it let go of its session lock, so that two clients sending to each other while
+    // both their queues are full can not deadlock
+    private final ArrayList<Parked> parked = new ArrayList<>();
+    private static final ThreadLocal<ClientThread> READER = new ThreadLocal<>();
+
+    ClientThread(Server server, Socket clientSocket, Executor writers) {
+        super(server, (InetSocketAddress) clientSocket.getRemoteSocketAddress());
         this.clientSocket = clientSocket;
-    }
-
-    /**
-     * get the user who is using the current server
-     * @return the user if a user is logged in else return null
-     */
-    public User getUser() {
-        return user;
+        this.writers = writers;
+        this.outbound = new OutboundQueue(server.OUTBOUND_CAPACITY, server.OVERFLOW_POLICY);
     }
 
     /**
@@ -36,441 +43,250 @@ public class ClientThread extends Thread {
      */
     @Override
     public void run() {
-        super.run();
-
-        // get client Internet Address and port number
-        String clientAddress = clientSocket.getInetAddress().getHostAddress();
-        int clientPort = clientSocket.getPort();
-        String clientID = "(" + clientAddress + ", " + clientPort + ")";
-
         System.out.println("===== New connection created for user - " + clientID);
         boolean clientAlive = true;
 
         try {
-            objectOutputStream = new ObjectOutputStream(this.clientSocket.getOutputStream());
-            objectInputStream = new ObjectInputStream(this.clientSocket.getInputStream());
+            outputStream = new DataOutputStream(new BufferedOutputStream(this.clientSocket.getOutputStream()));
+            inputStream = new DataInputStream(new BufferedInputStream(this.clientSocket.getInputStream()));
+
+            // the client starts with the id of the codec it would like to use and whether it wants compression
+            codec = server.codecFor(inputStream.readUnsignedByte());
+            outputStream.writeByte(codec.getHandshake());
+            outputStream.flush();
+
+            writers.execute(this::writeLoop);
         } catch (Exception e) {
             e.printStackTrace();
+            System.out.println("===== the user disconnected, user - " + clientID);
+            closeSocket();
+            return;
         }
 
+        READER.set(this);
         while (clientAlive) {
             try {
-                Packet packet = (Packet) objectInputStream.readObject();
-                String type = packet.getType();
-                String[] messageBody = packet.getMessage().split(" ");
-
-                switch (type) {
-                    case "login" -> {
-                        // get username and password from client
-                        String username = messageBody[0];
-                        String password = messageBody[1];
-                        String status = login(username, password);
-
-                        Packet outputPacket = new Packet("SERVER", "login");
-                        outputPacket.setMessage(username + " " + status);
-                        objectOutputStream.writeObject(outputPacket);
-                        objectOutputStream.flush();
-
-                        if (status.equals("SUCCESS")) {
-                            loginSuccess();
-                        }
-                    }
-                    case "register" -> {
-                        String username = messageBody[0];
-                        String password = messageBody[1];
-                        String status = register(username, password);
-                        Packet outputPacket = new Packet("SERVER", "register");
-                        outputPacket.setMessage(username + " " + status);
-                        objectOutputStream.writeObject(outputPacket);
-                        objectOutputStream.flush();
-
-                        if (status.equals("SUCCESS")) {
-                            loginSuccess();
-                        }
-                    }
-                    case "message" -> {
-                        Packet newPacket = new Packet(user.getUsername(), "broadcast");
-                        newPacket.setReceiver(messageBody[0]);
-                        String messageText = String.join(" ", Arrays.copyOfRange(messageBody, 1, messageBody.length));
-                        newPacket.setMessage(messageText);
-                        sendMessage(newPacket);
-                    }
-                    case "broadcast" -> {
-                        String username = user.getUsername();
-                        Packet broadcastMsg = new Packet(username, "broadcast");
-                        broadcastMsg.setMessage(String.join(" ", messageBody));
-                        server.broadcast("message", broadcastMsg);
-                    }
-                    case "whoelse" -> {
-                        Packet outputPacket = server.listAllOnlineUsers(user.getUsername());
-                        objectOutputStream.writeObject(outputPacket);
-                        objectOutputStream.flush();
-                    }
-                    case "whoelsesince" -> {
-                        LocalDateTime dateTime = (LocalDateTime.now()).minusSeconds(Long.parseLong(messageBody[0]));
-                        Packet outputPacket = server.getUsersSince(user.getUsername(), dateTime);
-                        objectOutputStream.writeObject(outputPacket);
-                        objectOutputStream.flush();
-                    }
-                    case "block" -> {
-                        String status = blockUser(messageBody[0]);
-                        Packet outputPacket = new Packet("SERVER", "block");
-                        outputPacket.setMessage(status);
-                        objectOutputStream.writeObject(outputPacket);
-                        objectOutputStream.flush();
-                    }
-                    case "unblock" -> {
-                        String status = unblockUser(messageBody[0]);
-                        Packet outputPacket = new Packet("SERVER", "unblock");
-                        outputPacket.setMessage(status);
-                        objectOutputStream.writeObject(outputPacket);
-                        objectOutputStream.flush();
-                    }
-                    case "logout" -> {
-                        user.setLoginStatus("OFFLINE");
-                        server.updateUser(user);
-                        sendPresenceBroadcast("offline");
-                        user = null;
-                        clientSocket.setSoTimeout(0);
-                    }
-                    case "startprivate" -> {
-                        String target = messageBody[0];
-
-                        // response to an invitation: <user> <response>
-                        // request to start a private messaging: <user>
-                        if (messageBody.length < 2) {
-                            startPrivateMsg(target);
-                        } else {
-                            createConnection(target, messageBody[1]);
-                        }
-                    }
-                    case "private" -> {
-                        String target = messageBody[0];
-
-                    }
-                    case "exit" -> {
-                        Packet outputPacket = new Packet("SERVER", "exit");
-                        outputPacket.setMessage("N/A");
-                        objectOutputStream.writeObject(outputPacket);
-                        objectOutputStream.flush();
-
-                        System.out.println("===== the user disconnected, user - " + clientID);
-                        clientAlive = false;
-                    }
-                }
-            } catch (SocketTimeoutException timeout) {
-                // timeout due to inactivity from the client
-                Packet outputPacket = new Packet("SERVER", "timeout");
-                outputPacket.setMessage("you have logged out due to inactivity.");
-
+                Packet packet = codec.read(inputStream);
+                sessionLock.lock();
                 try {
-                    // logout
-                    user.setLoginStatus("OFFLINE");
-                    server.updateUser(user);
-                    sendPresenceBroadcast("offline");
-                    user = null;
-
-                    clientSocket.setSoTimeout(0);
-                    objectOutputStream.writeObject(outputPacket);
-                    objectOutputStream.flush();
-
-                } catch (Exception e) {
+                    clientAlive = handle(packet);
+                } finally {
+                    sessionLock.unlock();
+                }
+                deliverParked();
+                if (!clientAlive) {
                     System.out.println("===== the user disconnected, user - " + clientID);
-                    clientAlive = false;
                 }
-
             } catch (Exception e) {
                 e.printStackTrace();
                 System.out.println("===== the user disconnected, user - " + clientID);
                 clientAlive = false;
             }
         }
-    }
-
-    /* ┌────────────────────────────────────────────────────────────────┐ */
-    /* │                        User Authentication                     │ */
-    /* └────────────────────────────────────────────────────────────────┘ */
 
-        /**
-         * Verify the login information
-         * @param username username of the user who is trying to log in
-         * @param password password of the user who is trying to log in
-         * @return the response after the information is assessed
-         */
-        private String login(String username, String password) {
-            User loginUser = server.getUser(username);
-            if (loginUser == null){
-                // check valid username
-                return "USERNAME";
-            } else if (loginUser.isBlocked(server.BLOCK_DURATION)) {
-                // check if the system blocked the user or not
-                return "BLOCKED";
-            } else if (loginUser.getLoginStatus().equals("ONLINE")) {
-                return "ONLINE";
-            } else if (loginUser.isCorrectPassword(password)) {
-                loginUser.resetAttempts();
-                loginUser.setLoginStatus("ONLINE");
-                loginUser.setLastLogin(LocalDateTime.now());
-                server.updateUser(loginUser);
-                user = loginUser;
-                return "SUCCESS";
-            } else {
-                if (loginUser.getLoginAttempts() == 3) {
-                    loginUser.setLoginStatus("BLOCKED");
-                    loginUser.setBlockedTime(LocalDateTime.now());
-                    server.updateUser(loginUser);
-                    return "BLOCKED";
-                }
-                return "PASSWORD";
-            }
+        // the writer closes the socket once the packets that are still queued are written
+        sessionLock.lock();
+        try {
+            disconnect();
+        } finally {
+            sessionLock.unlock();
         }
+        deliverParked();
+        READER.remove();
+    }
 
-        /**
-         * Verify entered information to register
-         * @param username username of the user who is trying to register a new account
-         * @param password password of the user who is trying to register a new account
-         * @return the response after the information is assessed
-         */
-        private String register(String username, String password) {
-            if (server.getUser(username) != null) {
-                return "USERNAME";
-            } else {
-                server.addUser(username, password);
-                user = server.getUser(username);
-                user.setLoginStatus("ONLINE");
-                user.setLastLogin(LocalDateTime.now());
-                server.updateUser(user);
-                return "SUCCESS";
-            }
+    /**
+     * queue the frames that found the queue of their client full, waiting up to OUTBOUND_BLOCK_MILLIS for each,
+     * called by the reader with no session lock held
+     */
+    private void deliverParked() {
+        for (Parked frame : parked) {
+            frame.target.offerOrDrop(frame.frame, server.OUTBOUND_BLOCK_MILLIS);
         }
+        parked.clear();
+    }
 
-        /**
-         * Perform the following actions when a user logged in successfully
-         * @throws SocketException error when the socket timeout
-         * @throws IOException connection error with client streams
-         */
-        private void loginSuccess() throws SocketException, IOException {
-            // set timeout to the client socket
-            clientSocket.setSoTimeout((int) server.TIMEOUT * 1000);
-            // send presence broadcast to other online users
-            sendPresenceBroadcast("online");
-
-            // read all unread messages
-            Packet outputPacket = offlineMessages();
-            objectOutputStream.writeObject(outputPacket);
-            objectOutputStream.flush();
+    /**
+     * queue a frame for this client, dropping the client if there is no room in time
+     * @param frame the frame to be written
+     * @param waitMillis how long to wait for room under the BLOCK policy, 0 to not wait
+     * @return false if the client was dropped else true
+     */
+    private boolean offerOrDrop(ByteBuffer frame, long waitMillis) {
+        boolean queued;
+        try {
+            queued = waitMillis == 0 ? outbound.offer(frame) : outbound.offer(frame, waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
         }
+        if (!queued) {
+            drop();
+        }
+        return queued;
+    }
 
-    /* ┌────────────────────────────────────────────────────────────────┐ */
-    /* │                            Broadcasts                          │ */
-    /* └────────────────────────────────────────────────────────────────┘ */
-
-        /**
-         * receive broadcast that was sent by other users
-         * @param packet packet contains information about the message
-         * @throws IOException throw this exception when an error occurs with the input/output stream that connects
-         * to the client
-         */
-        public void receiveBroadcast(Packet packet) throws IOException {
-                objectOutputStream.writeObject(packet);
-                objectOutputStream.flush();
-            }
+    /**
+     * the client stopped reading, drop it rather than letting its queue grow or its senders wait. Closing the socket
+     * also wakes up the writer if it is stuck writing to it
+     */
+    private void drop() {
+        System.out.println("===== the user is too slow, dropping user - " + clientID);
+        closeSocket();
+    }
 
-        /**
-         * a helper function to send presence broadcast to other users
-         * @param type "offline" if a user logged out, "online" if a user logged in
-         * @throws IOException throw this exception when an error occurs with the input/output stream that connects
-         *  to the client
-         */
-        private void sendPresenceBroadcast(String type) throws IOException {
-                String username = user.getUsername();
-                Packet broadcastMsg = new Packet(username, "broadcast");
-                broadcastMsg.setMessage(username + " is " + type);
-                server.broadcast("presence", broadcastMsg);
+    /**
+     * write the queued packets to the client until the queue is closed, flushing only when nothing else is
+     * waiting so that a burst of packets goes out together
+     */
+    private void writeLoop() {
+        try {
+            ByteBuffer frame;
+            while ((frame = outbound.take()) != null) {
+                awaitWriteBarrier();
+                outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                countOutbound(frame.remaining());
+                if (outbound.isEmpty()) {
+                    outputStream.flush();
+                }
             }
+            outputStream.flush();
+        } catch (Exception e) {
+            // the client is gone, the reader finds out on its next read
+        } finally {
+            outbound.close();
+            closeSocket();
+            codec.release();
+        }
+    }
 
-    /* ┌────────────────────────────────────────────────────────────────┐ */
-    /* │                          Message Forwarding                    │ */
-    /* └────────────────────────────────────────────────────────────────┘ */
-
-        /**
-         * send direct message to a user
-         * @param packet the packet that contains the information about the message
-         * @throws IOException throw this exception when an error occurs with the input/output stream that connects
-         * to the client
-         */
-        private void sendMessage(Packet packet) throws IOException {
-            String sender = packet.getSender();
-            String target = packet.getReceiver();
-            User targetUser = server.getUser(target);
-            Packet sendClient = new Packet(sender, "message");
+    /**
+     * wait until the changes reported by the queued packets are saved, only the writer task waits here
+     * @throws IOException throw this exception when a change could not be saved, the packets must not go out then
+     */
+    private void awaitWriteBarrier() throws InterruptedException, IOException {
+        try {
+            getWriteBarrier().get();
+        } catch (ExecutionException e) {
+            throw new IOException("A change reported to the client could not be saved", e.getCause());
+        }
+    }
 
-            if (sender.equals(target)) {
-                sendClient.setMessage("SELF");
-            }else if (targetUser == null) {
-                sendClient.setMessage("USERNAME");
-            }else if (targetUser.isUserBlacklisted(sender)) {
-                sendClient.setMessage("BLOCKED" + " " + target);
-            } else if (packet.getMessage().equals("")) {
-                sendClient.setMessage("EMPTY");
-            } else if (!targetUser.getLoginStatus().equals("ONLINE")) {
-                targetUser.addOfflineMessage(packet);
-                sendClient.setMessage("OFFLINE" + " " + target);
-            } else {
-                ClientThread targetServer = server.getClientServer(target);
-                targetServer.receiveBroadcast(packet);
-                sendClient.setMessage("SUCCESS" + " " + target);
-            }
-            objectOutputStream.writeObject(sendClient);
-            objectOutputStream.flush();
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
 
-        /**
-         * Check user's eligibility to start a private messaging.
-         * If eligible, send an invitation request to the target user
-         * @param target the target user
-         * @throws IOException throw an exception when an error occurs
-         */
-        private void startPrivateMsg(String target) throws IOException {
-            User targetInfo = server.getUser(target);
-            Packet outputPacket = new Packet(user.getUsername(), "startprivate");
-            String msg = "";
-            if (target.equals(user.getUsername())) {
-                msg = "REQUEST SELF";
-                outputPacket.setMessage(msg);
-                objectOutputStream.writeObject(outputPacket);
-                objectOutputStream.flush();
-            } else if (targetInfo == null) {
-                msg = " REQUEST USERNAME";
-                outputPacket.setMessage(msg);
-                objectOutputStream.writeObject(outputPacket);
-                objectOutputStream.flush();
-            } else if (targetInfo.isUserBlacklisted(user.getUsername())) {
-                msg = "REQUEST BLOCKED";
-                outputPacket.setMessage(msg);
-                objectOutputStream.writeObject(outputPacket);
-                objectOutputStream.flush();
-            } else {
-                msg = "REQUEST SENT";
-                outputPacket.setMessage(msg);
-                objectOutputStream.writeObject(outputPacket);
-                objectOutputStream.flush();
+    @Override
+    protected void send(Packet packet) throws IOException {
+        queue(codec.frame(packet));
+    }
 
-                // send a request to target user to ask for permission
-                ClientThread clientThread = server.getClientServer(target);
-                Packet requestInvite = new Packet(user.getUsername(), "startprivate");
-                requestInvite.setMessage("INVITE " + user.getUsername());
-                clientThread.receiveBroadcast(requestInvite);
-            }
+    @Override
+    protected void send(SharedFrame frame) throws IOException {
+        queue(frame.frameFor(codec));
+    }
 
+    private void queue(ByteBuffer frame) {
+        // the sender may hold its session lock, so under BLOCK the reader of a blocking connection puts the frame
+        // aside and waits for room later, any other thread drops the client like an event loop does
+        ClientThread reader = READER.get();
+        if (server.OVERFLOW_POLICY == OutboundQueue.OverflowPolicy.BLOCK && reader == this) {
+            // only its own writer has to make room, which never needs a session lock
+            offerOrDrop(frame, server.OUTBOUND_BLOCK_MILLIS);
+            return;
         }
+        if (server.OVERFLOW_POLICY == OutboundQueue.OverflowPolicy.BLOCK && reader != null) {
+            if (reader.hasParked(this) || !outbound.offer(frame)) {
+                reader.parked.add(new Parked(this, frame));
+            }
+            return;
+        }
+        offerOrDrop(frame, 0);
+    }
 
-        /**
-         * Attempt to create a private connection after target user
-         * accepted the invitation to a private messaging
-         * @param target the requester who initiated the private connection
-         * @param response the response to the invitation
-         */
-        private void createConnection(String target, String response) throws Exception {
-            // send the response of an invitation back to the requester
-            Packet targetPacket = new Packet("SERVER", "startprivate");
-            Packet outputPacket = new Packet("SERVER", "startprivate");
-            String targetMsg = "";
-            String outputMsg = "";
-            if (response.equals("yes")){
-                targetMsg = "REQUEST SUCCESS " + user.getUsername();
-                targetPacket.setMessage(targetMsg);
-                ClientThread requesterThread = server.getClientServer(target);
-                requesterThread.receiveBroadcast(targetPacket);
-
-                Thread.sleep(100);
-                outputMsg = "RESPONSE YES " + target;
-                outputPacket.setMessage(outputMsg);
-                objectOutputStream.writeObject(outputPacket);
-                objectOutputStream.flush();
-
-            } else {
-                targetMsg = "REQUEST FAIL " + user.getUsername();
-                targetPacket.setMessage(targetMsg);
-                ClientThread requesterThread = server.getClientServer(target);
-                requesterThread.receiveBroadcast(targetPacket);
+    /**
+     * @param target a client
+     * @return true if this reader put frames aside for the client, later frames must then wait behind them
+     */
+    private boolean hasParked(ClientThread target) {
+        for (Parked frame : parked) {
+            if (frame.target == target) {
+                return true;
             }
         }
+        return false;
+    }
 
-    /* ┌────────────────────────────────────────────────────────────────┐ */
-    /* │                           Offline Messaging                    │ */
-    /* └────────────────────────────────────────────────────────────────┘ */
+    @Override
+    protected void sendReply(Packet packet) throws IOException {
+        boolean queued;
+        try {
+            // only the reader of this client waits here, which stops it from taking more requests
+            queued = outbound.put(codec.frame(packet), server.OUTBOUND_BLOCK_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (!queued) {
+            // the reader gives up the session lock on the way out, so the idle timeout is not stuck behind it
+            drop();
+            throw new IOException("Client stopped reading its replies");
+        }
+    }
 
-        /**
-         * get all the offline messages for a user that just logged in
-         * @return the packet that contains the information of this request
-                *  if the user has unread messages, then a list of unread messages is included in the message body
-                *  else "NONE" will be in the message body indicates that no unread message
-         */
-        private Packet offlineMessages() {
-            Packet outputPacket = new Packet("SERVER", "messages");
-            Packet[] messages = user.getMessages().toArray(new Packet[0]);
+    @Override
+    public int getOutboundQueueDepth() {
+        return outbound.size();
+    }
 
-            String messageBody = "";
-            if (messages.length != 0) {
-                messageBody += "you have " + String.valueOf(messages.length) + " unread messages.";
+    @Override
+    protected void disconnect() {
+        super.disconnect();
+        outbound.close();
+    }
 
-                for (Packet message: messages) {
-                    String sender = message.getSender();
-                    String senderMsg = message.getMessage();
-                    messageBody += ("\n" + "   " + ANSI_USER + sender + ANSI_RESET + ": " + senderMsg);
-                }
-                user.resetMessages();
-                server.updateUser(user);
-            } else {
-                messageBody  = "NONE";
+    @Override
+    protected void sendDelayed(Packet packet, long delayMillis) {
+        // the reader holds the session lock while it handles the request, so it must not wait out the delay itself
+        server.getTimers().schedule(() -> writers.execute(() -> {
+            try {
+                send(packet);
+            } catch (IOException e) {
+                closeSocket();
             }
-            outputPacket.setMessage(messageBody);
-            return outputPacket;
-        }
-
-    /* ┌────────────────────────────────────────────────────────────────┐ */
-    /* │                           Blacklisting                         │ */
-    /* └────────────────────────────────────────────────────────────────┘ */
-
-        /**
-         * block another user from getting the user's presence notification, sending broadcast messages, and direct
-         * messages
-         * @param username the username of the user to be blocked
-         * @return the status of the attempted action
-         */
-        private String blockUser(String username) {
-            User target = server.getUser(username);
+        }), delayMillis, TimeUnit.MILLISECONDS);
+    }
 
-            if (user.getUsername().equals(username)) {
-                return "SELF";
-            } else if (target == null) {
-                return "USERNAME";
-            } else {
-                user.addBlacklistUser(username);
-                server.updateUser(user);
-                return "SUCCESS" + " " + username;
+    @Override
+    protected void idleTimeoutFired() {
+        writers.execute(() -> {
+            sessionLock.lock();
+            try {
+                if (isIdleTimeoutDue()) {
+                    timeout();
+                }
+            } catch (Exception e) {
+                closeSocket();
+            } finally {
+                sessionLock.unlock();
             }
-        }
+        });
+    }
 
-        /**
-         * unblock an user
-         * @param username the username of the user that is being unblocked
-         * @return the status of the attempted action
-         */
-        private String unblockUser(String username) {
-            User target = server.getUser(username);
+    /**
+     * a frame for another client that waits for room in its queue
+     */
+    private static class Parked {
+        private final ClientThread target;
+        private final ByteBuffer frame;
 
-            if (user.getUsername().equals(username)) {
-                return "SELF";
-            } else if (target == null) {
-                return "USERNAME";
-            } else if (!user.isUserBlacklisted(username)) {
-                return "UNBLOCKED" + " " + username;
-            } else {
-                user.removeBlacklistUser(username);
-                server.updateUser(user);
-                return "SUCCESS" + " " + username;
-            }
+        Parked(ClientThread target, ByteBuffer frame) {
+            this.target = target;
+            this.frame = frame;
         }
+    }
 }
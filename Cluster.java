@@ -0,0 +1,374 @@
+import java.io.*;
+import java.net.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+
+/**
+ * Cluster mode: several servers share the users and pass what concerns users of other nodes over a TCP bus.
+ * Every user belongs to one node, picked by consistent hashing of the username. The node of a user holds its
+ * credentials, its offline messages and its blacklist, and the user logs in there, a login on any other node is
+ * answered with the address of the right one. Logins and logouts are sent to every node so that whoelse and
+ * whoelsesince see the whole cluster, broadcasts and presence changes are sent once to every node which delivers
+ * them to its own users, and so are messages to channels, which every node delivers to the members it has. A
+ * command that concerns a user of another node (message, block, unblock, startprivate) is asked of that node, which
+ * answers with the status to reply with.
+ *
+ * -Dcluster.nodes=<host>:<client port>:<bus port>,... lists every node in the same order on every node
+ * -Dcluster.node=<index> is the position of this node in that list
+ * Every node dials the nodes before it in the list and is dialed by the nodes after it, a lost connection is
+ * dialed again every second.
+ */
+public class Cluster {
+    // kinds of the frames on the bus
+    // a user of the sending node logged in, the message is the time of the login
+    static final byte LOGIN = 1;
+    // a user of the sending node logged out
+    static final byte LOGOUT = 2;
+    static final byte PRESENCE = 3;
+    static final byte BROADCAST = 4;
+    // a command for a user of the receiving node, the request id is answered by a result
+    static final byte REQUEST = 5;
+    static final byte RESULT = 6;
+    // a packet for a user of the receiving node, the receiver of the packet is the user
+    static final byte DELIVER = 7;
+    // a message to a channel, delivered to the members on the receiving node
+    static final byte CHANNEL = 8;
+
+    // the status a command gets when the node of the other user can not be reached
+    static final String UNAVAILABLE = "UNAVAILABLE";
+    private static final long REDIAL_MILLIS = 1000;
+
+    private final Server server;
+    private final int self;
+    private final List<InetSocketAddress> clientAddresses = new ArrayList<>();
+    private final List<InetSocketAddress> busAddresses = new ArrayList<>();
+    private final HashRing ring;
+    // the connection to every other node, null while it is down
+    private final AtomicReferenceArray<ClusterLink> links;
+    // the commands asked of other nodes that were not answered yet, by request id
+    private final ConcurrentHashMap<Integer, PendingRequest> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    /**
+     * @param server the server of this node
+     * @param nodes "<host>:<client port>:<bus port>" of every node separated by commas
+     * @param self the index of this node in the list
+     */
+    Cluster(Server server, String nodes, int self) {
+        this.server = server;
+        this.self = self;
+        ArrayList<String> names = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            String[] fields = node.trim().split(":");
+            clientAddresses.add(new InetSocketAddress(fields[0], Integer.parseInt(fields[1])));
+            busAddresses.add(new InetSocketAddress(fields[0], Integer.parseInt(fields[2])));
+            names.add(fields[0] + ":" + fields[1]);
+        }
+        if (self < 0 || self >= names.size()) {
+            throw new IllegalArgumentException("cluster.node " + self + " is not in cluster.nodes");
+        }
+        this.ring = new HashRing(names);
+        this.links = new AtomicReferenceArray<>(names.size());
+    }
+
+    /**
+     * @return the port this node accepts clients on according to the list of nodes
+     */
+    public int getClientPort() {
+        return clientAddresses.get(self).getPort();
+    }
+
+    /**
+     * listen for the nodes after this one and dial the nodes before it
+     * @throws IOException throw this exception when the bus port can not be bound
+     */
+    public void start() throws IOException {
+        ServerSocket busSocket = new ServerSocket(busAddresses.get(self).getPort(), 64);
+        System.out.println("===== Node " + self + " of " + links.length() + " is on the cluster bus at " +
+                           busAddresses.get(self) + " =====");
+        Thread acceptor = new Thread(() -> acceptLoop(busSocket), "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (int node = 0; node < self; node++) {
+            int peer = node;
+            Thread dialer = new Thread(() -> dialLoop(peer), "cluster-dialer-" + peer);
+            dialer.setDaemon(true);
+            dialer.start();
+        }
+    }
+
+    private void acceptLoop(ServerSocket busSocket) {
+        while (true) {
+            try {
+                Socket socket = busSocket.accept();
+                Thread reader = new Thread(() -> {
+                    try {
+                        int node = new DataInputStream(socket.getInputStream()).readInt();
+                        if (node <= self || node >= links.length()) {
+                            // not a node after this one in the list
+                            socket.close();
+                            return;
+                        }
+                        runLink(new ClusterLink(this, socket, node));
+                    } catch (IOException e) {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }, "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    private void dialLoop(int node) {
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(busAddresses.get(node));
+                DataOutputStream handshake = new DataOutputStream(socket.getOutputStream());
+                handshake.writeInt(self);
+                handshake.flush();
+                runLink(new ClusterLink(this, socket, node));
+            } catch (IOException e) {
+                // the node is not up yet
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * put a new connection to a node in place, tell the node who is logged in here and serve the connection until
+     * it is lost
+     * @param link the new connection
+     */
+    private void runLink(ClusterLink link) {
+        synchronized (this) {
+            ClusterLink previous = links.getAndSet(link.getNode(), null);
+            if (previous != null) {
+                // the node came back before the old connection was found to be lost
+                server.nodeLeft(link.getNode());
+                previous.close();
+            }
+            links.set(link.getNode(), link);
+            // under the same lock as the logins and logouts, so that none of them is sent before the ones that
+            // came earlier
+            try {
+                for (String username : server.getLoginHistory()) {
+                    if (isHome(username)) {
+                        User user = server.getUser(username);
+                        link.send(ClusterLink.frame(LOGIN, loginPacket(username, user.getLastLogin())));
+                        if (server.getClientServer(username) == null) {
+                            link.send(ClusterLink.frame(LOGOUT, new Packet(username, "logout")));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("===== Connected to node " + link.getNode() + " of the cluster =====");
+        link.run();
+    }
+
+    /**
+     * forget a connection that was lost, along with who was logged in on that node and the commands it did not
+     * answer
+     * @param link the connection that was lost
+     */
+    void disconnected(ClusterLink link) {
+        // a connection that was already replaced by a newer one leaves the users of the node alone
+        if (links.compareAndSet(link.getNode(), link, null)) {
+            System.out.println("===== Lost the connection to node " + link.getNode() + " of the cluster =====");
+            server.nodeLeft(link.getNode());
+        }
+        for (Map.Entry<Integer, PendingRequest> entry : pending.entrySet()) {
+            if (entry.getValue().link == link && pending.remove(entry.getKey()) != null) {
+                entry.getValue().onStatus.accept(UNAVAILABLE);
+            }
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                             Routing                            │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * check whether a user belongs to this node
+     * @param username the user
+     * @return true if the user logs in here and its data is kept here
+     */
+    public boolean isHome(String username) {
+        return ring.nodeFor(username) == self;
+    }
+
+    /**
+     * @param username the user
+     * @return "<host>:<port>" of the node the user logs in on
+     */
+    public String getHomeAddress(String username) {
+        InetSocketAddress address = clientAddresses.get(ring.nodeFor(username));
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * tell every node that a user of this node logged in
+     * @param username the user
+     * @param lastLogin the time of the login
+     */
+    public synchronized void publishLogin(String username, LocalDateTime lastLogin) {
+        publish(LOGIN, loginPacket(username, lastLogin));
+    }
+
+    /**
+     * tell every node that a user of this node logged out
+     * @param username the user
+     */
+    public synchronized void publishLogout(String username) {
+        publish(LOGOUT, new Packet(username, "logout"));
+    }
+
+    /**
+     * send a broadcast, a presence change or a channel message of a user of this node to every node
+     * @param kind PRESENCE, BROADCAST or CHANNEL
+     * @param packet the broadcast, sent by the user
+     */
+    public void publish(byte kind, Packet packet) {
+        byte[] frame;
+        try {
+            frame = ClusterLink.frame(kind, packet);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (int node = 0; node < links.length(); node++) {
+            ClusterLink link = links.get(node);
+            if (link != null) {
+                link.send(frame);
+            }
+        }
+    }
+
+    /**
+     * ask the node of a user to handle the part of a command that concerns that user
+     * @param username the user, of another node
+     * @param request the command, its receiver is the user
+     * @param onStatus called with the status the node answered with, or UNAVAILABLE if the node is not reachable
+     */
+    public void request(String username, Packet request, Consumer<String> onStatus) {
+        ClusterLink link = links.get(ring.nodeFor(username));
+        if (link == null) {
+            onStatus.accept(UNAVAILABLE);
+            return;
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        pending.put(requestId, new PendingRequest(link, onStatus));
+        request.setRequestId(requestId);
+        try {
+            link.send(ClusterLink.frame(REQUEST, request));
+        } catch (IOException e) {
+            pending.remove(requestId);
+            onStatus.accept(UNAVAILABLE);
+            return;
+        }
+        if (!link.isOpen() && pending.remove(requestId) != null) {
+            // lost while the request was queued
+            onStatus.accept(UNAVAILABLE);
+        }
+    }
+
+    /**
+     * send a packet to a user of another node, dropped if the node is not reachable
+     * @param username the user
+     * @param packet the packet to be sent
+     */
+    public void deliver(String username, Packet packet) {
+        ClusterLink link = links.get(ring.nodeFor(username));
+        if (link == null) {
+            return;
+        }
+        packet.setReceiver(username);
+        try {
+            link.send(ClusterLink.frame(DELIVER, packet));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * handle a frame from another node, called by the reader of the link
+     * @param link the connection the frame came in on
+     * @param kind the kind of the frame
+     * @param packet the packet in the frame
+     */
+    void receive(ClusterLink link, byte kind, Packet packet) {
+        try {
+            switch (kind) {
+                case LOGIN -> server.remoteLogin(packet.getSender(), LocalDateTime.parse(packet.getMessage()),
+                                                 link.getNode());
+                case LOGOUT -> server.remoteLogout(packet.getSender(), link.getNode());
+                case PRESENCE -> server.receiveBroadcast("presence", packet);
+                case BROADCAST -> server.receiveBroadcast("message", packet);
+                case REQUEST -> {
+                    int requestId = packet.getRequestId();
+                    // what reaches a client from here is a push, not the reply to one of its requests
+                    packet.setRequestId(0);
+                    Packet result = new Packet("SERVER", "result");
+                    result.setMessage(server.answer(packet));
+                    result.setRequestId(requestId);
+                    byte[] frame = ClusterLink.frame(RESULT, result);
+                    // the asking node replies to its client with the result, so it waits for the changes to be saved
+                    server.takeChanges().whenComplete((saved, e) -> link.send(frame));
+                }
+                case RESULT -> {
+                    PendingRequest request = pending.remove(packet.getRequestId());
+                    if (request != null) {
+                        request.onStatus.accept(packet.getMessage());
+                    }
+                }
+                case DELIVER -> server.deliver(packet.getReceiver(), packet);
+                case CHANNEL -> server.receiveChannel(packet);
+            }
+        } catch (Exception e) {
+            // a frame this node could not handle must not cost the whole link
+            e.printStackTrace();
+        }
+    }
+
+    private static Packet loginPacket(String username, LocalDateTime lastLogin) {
+        Packet packet = new Packet(username, "login");
+        packet.setMessage(lastLogin.toString());
+        return packet;
+    }
+
+    /**
+     * a command asked of another node and who to tell its status
+     */
+    private static class PendingRequest {
+        // the connection the request was sent on, its answer can only come back on it
+        private final ClusterLink link;
+        private final Consumer<String> onStatus;
+
+        PendingRequest(ClusterLink link, Consumer<String> onStatus) {
+            this.link = link;
+            this.onStatus = onStatus;
+        }
+    }
+}
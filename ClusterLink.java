@@ -0,0 +1,131 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The bus connection between this node and one other node of the cluster.
+ * Every frame is a 4-byte length, a kind byte and a packet encoded with the binary codec. The node that opened
+ * the connection starts with its index in the cluster. Frames are queued by any thread and written by a writer
+ * thread of the link, which writes everything that queued up before it flushes, so a busy node sends its
+ * broadcasts and presence changes in few large writes.
+ */
+public class ClusterLink {
+    static final int HEADER_LENGTH = 5;
+    // frames written before the next flush
+    private static final int MAX_BATCH = 256;
+
+    private final Cluster cluster;
+    private final Socket socket;
+    private final int node;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private final LinkedBlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    ClusterLink(Cluster cluster, Socket socket, int node) throws IOException {
+        this.cluster = cluster;
+        this.socket = socket;
+        this.node = node;
+        socket.setTcpNoDelay(true);
+        this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        this.writer = new Thread(this::writeLoop, "cluster-writer-" + node);
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * build a frame once so that it can be queued on every link
+     * @param kind what the frame means to the receiving node
+     * @param packet the packet the frame carries
+     * @return the frame ready to be written
+     * @throws IOException throw this exception when the packet can not be encoded
+     */
+    static byte[] frame(byte kind, Packet packet) throws IOException {
+        byte[] body = PacketCodec.BINARY.encode(packet);
+        return ByteBuffer.allocate(HEADER_LENGTH + body.length).putInt(body.length).put(kind).put(body).array();
+    }
+
+    /**
+     * @return the index of the node at the other end
+     */
+    public int getNode() {
+        return node;
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * queue a frame for the other node, from any thread
+     * @param frame the frame built by frame()
+     */
+    void send(byte[] frame) {
+        if (!closed) {
+            outgoing.add(frame);
+        }
+    }
+
+    /**
+     * read frames and hand them to the cluster until the connection is lost, run by the thread that opened or
+     * accepted the connection
+     */
+    void run() {
+        writer.start();
+        try {
+            while (!closed) {
+                int length = inputStream.readInt();
+                PacketCodec.checkLength(length);
+                byte kind = inputStream.readByte();
+                byte[] body = new byte[length];
+                inputStream.readFully(body);
+                cluster.receive(this, kind, PacketCodec.BINARY.decode(body, 0, length));
+            }
+        } catch (IOException e) {
+            // the other node is gone, the cluster finds out below
+        } finally {
+            close();
+        }
+    }
+
+    private void writeLoop() {
+        ArrayList<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!closed) {
+                batch.add(outgoing.take());
+                outgoing.drainTo(batch, MAX_BATCH - 1);
+                for (byte[] frame : batch) {
+                    outputStream.write(frame);
+                }
+                batch.clear();
+                if (outgoing.isEmpty()) {
+                    outputStream.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // the reader finds out on its next read
+        } finally {
+            close();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        writer.interrupt();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        outgoing.clear();
+        cluster.disconnected(this);
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
+
+/**
+ * The codec of one connection whose two sides agreed on compression when it connected.
+ * A packet that encodes to at least -Dcompression.threshold bytes (1024 by default) is sent deflated when that
+ * makes it smaller: the length of the frame has COMPRESSED_FLAG set and its body is the length of the encoded packet
+ * followed by the deflated bytes. Anything smaller is framed as usual, so short commands cost nothing extra.
+ * The Deflater and the Inflater are created on the first frame that needs them and reused for every frame after
+ * it, frames are deflated by whichever thread sends them, one at a time.
+ */
+public class CompressedCodec extends PacketCodec {
+    public static final int DEFAULT_THRESHOLD = 1024;
+    private static final int RAW_LENGTH_LENGTH = 4;
+
+    private final PacketCodec codec;
+    private final int threshold;
+    // null on the client
+    private final Stats stats;
+
+    private final Object deflateLock = new Object();
+    private Deflater deflater;
+    // holds the deflated bytes until they are copied into the frame
+    private byte[] deflated = new byte[0];
+    private final Object inflateLock = new Object();
+    private Inflater inflater;
+    private boolean released;
+
+    /**
+     * @param codec the codec that encodes the packets
+     * @param stats where the compressed frames are counted, null to count none
+     */
+    CompressedCodec(PacketCodec codec, Stats stats) {
+        this.codec = codec;
+        this.threshold = Integer.getInteger("compression.threshold", DEFAULT_THRESHOLD);
+        this.stats = stats;
+    }
+
+    @Override
+    public byte getId() {
+        return codec.getId();
+    }
+
+    @Override
+    public int getHandshake() {
+        return codec.getId() | COMPRESSION_BIT;
+    }
+
+    @Override
+    public byte[] encode(Packet packet) throws IOException {
+        return codec.encode(packet);
+    }
+
+    @Override
+    public Packet decode(byte[] body, int offset, int length) throws IOException {
+        return codec.decode(body, offset, length);
+    }
+
+    @Override
+    public ByteBuffer frame(Packet packet) throws IOException {
+        byte[] body = codec.encode(packet);
+        if (body.length >= threshold) {
+            ByteBuffer frame = deflate(body);
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return frame(body);
+    }
+
+    /**
+     * deflate the body of a frame
+     * @param body the encoded packet
+     * @return the compressed frame, null if compressing does not make it smaller
+     */
+    private ByteBuffer deflate(byte[] body) {
+        synchronized (deflateLock) {
+            if (released) {
+                return null;
+            }
+            long start = System.nanoTime();
+            if (deflater == null) {
+                deflater = new Deflater();
+            }
+            // the frame is only worth compressing if the deflated bytes and their header fit in the body
+            int limit = body.length - RAW_LENGTH_LENGTH;
+            if (deflated.length < limit) {
+                deflated = new byte[limit];
+            }
+            deflater.reset();
+            deflater.setInput(body);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < limit) {
+                length += deflater.deflate(deflated, length, limit - length);
+            }
+            boolean smaller = deflater.finished();
+            if (stats != null) {
+                stats.deflated(body.length, smaller ? RAW_LENGTH_LENGTH + length : body.length,
+                               System.nanoTime() - start);
+            }
+            if (!smaller) {
+                return null;
+            }
+
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + RAW_LENGTH_LENGTH + length);
+            frame.putInt((RAW_LENGTH_LENGTH + length) | COMPRESSED_FLAG);
+            frame.putInt(body.length);
+            frame.put(deflated, 0, length);
+            frame.flip();
+            return frame;
+        }
+    }
+
+    @Override
+    public Packet decodeFrame(int header, byte[] body, int offset, int length) throws IOException {
+        if ((header & COMPRESSED_FLAG) == 0) {
+            return codec.decode(body, offset, length);
+        }
+        if (length < RAW_LENGTH_LENGTH) {
+            throw new IOException("Truncated compressed frame");
+        }
+        int rawLength = ByteBuffer.wrap(body, offset, RAW_LENGTH_LENGTH).getInt();
+        checkLength(rawLength);
+
+        byte[] raw = new byte[rawLength];
+        synchronized (inflateLock) {
+            if (released) {
+                throw new IOException("Connection is closed");
+            }
+            long start = System.nanoTime();
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.reset();
+            inflater.setInput(body, offset + RAW_LENGTH_LENGTH, length - RAW_LENGTH_LENGTH);
+            int inflated = 0;
+            try {
+                while (inflated < rawLength && !inflater.finished()) {
+                    int count = inflater.inflate(raw, inflated, rawLength - inflated);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += count;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed frame", e);
+            }
+            if (inflated != rawLength) {
+                throw new IOException("Compressed frame holds " + inflated + " bytes instead of " + rawLength);
+            }
+            if (stats != null) {
+                stats.inflated(rawLength, length, System.nanoTime() - start);
+            }
+        }
+        return codec.decode(raw, 0, rawLength);
+    }
+
+    /**
+     * free the native memory of the Deflater and the Inflater once the connection is closed, a packet that is
+     * still being sent afterwards goes out uncompressed
+     */
+    @Override
+    public void release() {
+        synchronized (deflateLock) {
+            released = true;
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        synchronized (inflateLock) {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * how much the compressed connections saved and what it cost, shared by every connection of the server
+     */
+    public static class Stats {
+        // frames at or above the threshold, and the ones among them that were sent uncompressed
+        private final AtomicLong deflatedFrames = new AtomicLong();
+        private final AtomicLong incompressibleFrames = new AtomicLong();
+        private final AtomicLong inflatedFrames = new AtomicLong();
+        // the encoded packets of those frames and the bytes they took on the wire
+        private final AtomicLong rawBytes = new AtomicLong();
+        private final AtomicLong wireBytes = new AtomicLong();
+        private final AtomicLong deflateNanos = new AtomicLong();
+        private final AtomicLong inflateNanos = new AtomicLong();
+
+        void deflated(int raw, int wire, long nanos) {
+            deflatedFrames.incrementAndGet();
+            if (raw == wire) {
+                incompressibleFrames.incrementAndGet();
+            }
+            rawBytes.addAndGet(raw);
+            wireBytes.addAndGet(wire);
+            deflateNanos.addAndGet(nanos);
+        }
+
+        void inflated(int raw, int wire, long nanos) {
+            inflatedFrames.incrementAndGet();
+            rawBytes.addAndGet(raw);
+            wireBytes.addAndGet(wire);
+            inflateNanos.addAndGet(nanos);
+        }
+
+        /**
+         * @return the frames sent or received compressed
+         */
+        public long getCompressedFrames() {
+            return deflatedFrames.get() - incompressibleFrames.get() + inflatedFrames.get();
+        }
+
+        /**
+         * @return the frames above the threshold that were sent as they were since deflating did not shrink them
+         */
+        public long getIncompressibleFrames() {
+            return incompressibleFrames.get();
+        }
+
+        /**
+         * @return the size of the packets above the threshold divided by what they took on the wire
+         */
+        public double getRatio() {
+            long wire = wireBytes.get();
+            return wire == 0 ? 1 : (double) rawBytes.get() / wire;
+        }
+
+        /**
+         * @return the bytes the compression kept off the wire
+         */
+        public long getSavedBytes() {
+            return rawBytes.get() - wireBytes.get();
+        }
+
+        public double getDeflateMillis() {
+            return deflateNanos.get() / 1e6;
+        }
+
+        public double getInflateMillis() {
+            return inflateNanos.get() / 1e6;
+        }
+    }
+}
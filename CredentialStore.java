@@ -0,0 +1,645 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The login credentials of every registered user.
+ * The credential file stays an append-only log of "username password" lines. Next to it an on-disk hash table
+ * maps every username to the position of its line, so that the server neither has to read the whole file when it
+ * starts nor keep every user in memory. Both files are memory-mapped for lookups. When the table is missing, or the
+ * file was modified by anything but the store since the table was written, the table is built from the mapped log,
+ * which is split into chunks that are scanned in parallel.
+ * Registrations are appended by a single writer thread that writes everything that queued up in one go, the
+ * thread that registers a user never waits for it. Every line the store writes ends with a newline, so a line
+ * without one after the part of the log the table covers was cut short by a crash and is cut off when the store
+ * opens.
+ */
+public class CredentialStore implements Closeable {
+
+    /**
+     * when a registration is acknowledged
+     */
+    public enum Durability {
+        // as soon as it is queued, a crash can lose the last registrations
+        ASYNC,
+        // once it is written to the file, survives the server crashing but not the machine
+        WRITE,
+        // once it is forced to the disk
+        FSYNC
+    }
+
+    // header: magic, version, number of slots, number of users, length of the log covered by the table, time the
+    // log was last modified when the table was written
+    private static final int MAGIC = 0x43494458;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 32;
+    // slot: hash of the username, position of its line plus one so that 0 means empty
+    private static final int SLOT_LENGTH = 12;
+    private static final int MIN_CAPACITY = 1024;
+    // lines after the mapped part of the log are read with at most this many bytes
+    private static final int MAX_RECORD_LENGTH = 4096;
+    // the smallest part of the log that one thread scans when the table is built
+    private static final int MIN_CHUNK_LENGTH = 1 << 20;
+
+    private final Path logPath;
+    private final Path indexPath;
+    private final Durability durability;
+    private final FileChannel log;
+    // the log as it was when the store was opened, later lines are read from the channel
+    private final MappedByteBuffer logMap;
+    private long logLength;
+    // in milliseconds, a log that was modified after the table was written may have been edited in place
+    private long logModified;
+    private boolean endsWithNewline;
+
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+    // lookups share the table, the writer thread takes it alone to add users or to grow it
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    private final LinkedBlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private CredentialStore(Path logPath, Path indexPath, Durability durability) throws IOException {
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.durability = durability;
+        this.log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+        cutTornLine();
+        this.logLength = log.size();
+        if (logLength > Integer.MAX_VALUE) {
+            throw new IOException("Credential file is larger than 2 GB");
+        }
+        this.logMap = log.map(FileChannel.MapMode.READ_ONLY, 0, logLength);
+        this.endsWithNewline = logLength == 0 || logMap.get((int) logLength - 1) == '\n';
+
+        this.writer = new Thread(this::writeLoop, "credential-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * open the credential file and its table, only the lines that are not in the table yet are read
+     * @param logPath the credential file
+     * @param indexPath the hash table of the credential file, built if it is missing or does not match the file
+     * @param durability when a registration is acknowledged
+     * @return the opened store
+     * @throws IOException throw this exception when either file can not be read or written
+     */
+    public static CredentialStore open(Path logPath, Path indexPath, Durability durability) throws IOException {
+        CredentialStore store = new CredentialStore(logPath, indexPath, durability);
+        store.loadIndex();
+        store.writer.start();
+        return store;
+    }
+
+    /**
+     * cut off the registrations a crash left half written at the end of the log, before the log is mapped
+     * A hand-written file may end without a newline, so the last line only counts as torn if it starts after what
+     * the table says the store had written.
+     */
+    private void cutTornLine() throws IOException {
+        long length = log.size();
+        if (length == 0 || !Files.exists(indexPath) || Files.size(indexPath) < HEADER_LENGTH) {
+            return;
+        }
+        if (isLineEnd(length - 1)) {
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            channel.read(header, 0);
+        }
+        long indexedLength = header.getLong(16);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || indexedLength >= length) {
+            return;
+        }
+
+        // the store starts what it writes with a newline if the log did not end with one
+        long lineStart = length - 1;
+        while (lineStart > indexedLength && !isLineEnd(lineStart - 1)) {
+            lineStart--;
+        }
+        if (lineStart > indexedLength || isLineEnd(indexedLength - 1)) {
+            System.out.println("===== Cut a torn registration off " + logPath + " =====");
+            log.truncate(lineStart);
+        }
+    }
+
+    /**
+     * @return true if the byte at a position of the log is a newline or the position is before the log
+     */
+    private boolean isLineEnd(long position) throws IOException {
+        if (position < 0) {
+            return true;
+        }
+        ByteBuffer character = ByteBuffer.allocate(1);
+        log.read(character, position);
+        return character.get(0) == '\n';
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                              Lookups                           │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * get the password of a user
+     * @param username the username of the user
+     * @return the password of the user, null if there is no such user
+     * @throws IOException throw this exception when the credential file can not be read
+     */
+    public String getPassword(String username) throws IOException {
+        byte[] key = username.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+
+        indexLock.readLock().lock();
+        try {
+            int mask = capacity - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+                long offset = index.getLong(position + 4) - 1;
+                if (offset < 0) {
+                    return null;
+                }
+                if (index.getInt(position) == hash) {
+                    String[] record = readRecord(offset);
+                    if (record[0].equals(username)) {
+                        return record[1];
+                    }
+                }
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of registered users
+     */
+    public int size() {
+        indexLock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * read the line that starts at a position of the log
+     * @param offset the position of the line
+     * @return the username and the password on the line, the password is empty if the line has none
+     * @throws IOException throw this exception when the credential file can not be read
+     */
+    private String[] readRecord(long offset) throws IOException {
+        byte[] line;
+        if (offset < logMap.limit()) {
+            int start = (int) offset;
+            int end = start;
+            while (end < logMap.limit() && logMap.get(end) != '\n') {
+                end++;
+            }
+            line = new byte[end - start];
+            logMap.get(start, line);
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_RECORD_LENGTH);
+            log.read(buffer, offset);
+            int end = 0;
+            while (end < buffer.position() && buffer.get(end) != '\n') {
+                end++;
+            }
+            line = Arrays.copyOf(buffer.array(), end);
+        }
+
+        String[] fields = new String(line, StandardCharsets.UTF_8).trim().split(" ");
+        return new String[]{fields[0], fields.length > 1 ? fields[1] : ""};
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                            Registrations                       │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * append a new user to the credential file, the caller makes sure that the username is not taken
+     * @param username username of the new user
+     * @param password password of the new user
+     * @return completes once the user is saved as the durability asks for, completes exceptionally if it could not
+     * be written
+     * @throws IOException throw this exception when the store is closed
+     */
+    public CompletableFuture<Void> add(String username, String password) throws IOException {
+        if (closed) {
+            throw new IOException("Credential store is closed");
+        }
+        PendingWrite write = new PendingWrite(username, password);
+        pending.add(write);
+        return durability == Durability.ASYNC ? CompletableFuture.completedFuture(null) : write.done;
+    }
+
+    /**
+     * write the registrations that queued up while the previous group was being written, one write per group
+     */
+    private void writeLoop() {
+        ArrayList<PendingWrite> group = new ArrayList<>();
+        while (!closed || !pending.isEmpty()) {
+            try {
+                PendingWrite first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            pending.drainTo(group);
+
+            try {
+                commit(group);
+                for (PendingWrite write : group) {
+                    write.done.complete(null);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (PendingWrite write : group) {
+                    write.done.completeExceptionally(e);
+                }
+            }
+            group.clear();
+        }
+    }
+
+    private void commit(ArrayList<PendingWrite> group) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (!endsWithNewline) {
+            // the last line of a hand-written file may not be terminated
+            bytes.write('\n');
+        }
+        long[] offsets = new long[group.size()];
+        for (int i = 0; i < group.size(); i++) {
+            offsets[i] = logLength + bytes.size();
+            bytes.write(group.get(i).record);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        long position = logLength;
+        while (buffer.hasRemaining()) {
+            position += log.write(buffer, position);
+        }
+        if (durability == Durability.FSYNC) {
+            log.force(false);
+        }
+
+        indexLock.writeLock().lock();
+        try {
+            for (int i = 0; i < group.size(); i++) {
+                insert(group.get(i).hash, offsets[i]);
+            }
+            logLength = position;
+            logModified = Files.getLastModifiedTime(logPath).toMillis();
+            endsWithNewline = true;
+            writeHeader();
+            if (durability == Durability.FSYNC) {
+                index.force();
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * write the registrations that are still queued and release the files
+     * @throws IOException throw this exception when the files can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        index.force();
+        log.force(false);
+        indexChannel.close();
+        log.close();
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                            Hash Table                          │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * map the table of the credential file, building it again if it does not match the file, and add the lines that
+     * were appended after it was last written
+     * The table is only trusted while the log was not modified since the table was written: an edit in place keeps
+     * the length but moves the lines, so the positions in the table would point into the middle of other lines.
+     */
+    private void loadIndex() throws IOException {
+        logModified = Files.getLastModifiedTime(logPath).toMillis();
+        boolean usable = false;
+        if (Files.exists(indexPath) && Files.size(indexPath) >= HEADER_LENGTH) {
+            mapIndex();
+            long indexedLength = index.getLong(16);
+            usable = index.getInt(0) == MAGIC && index.getInt(4) == VERSION &&
+                     Integer.bitCount(index.getInt(8)) == 1 &&
+                     indexChannel.size() == HEADER_LENGTH + (long) index.getInt(8) * SLOT_LENGTH &&
+                     indexedLength <= logLength && index.getLong(24) == logModified;
+            if (usable) {
+                capacity = index.getInt(8);
+                count = index.getInt(12);
+                insertLines(scanLines(indexedLength, logLength));
+            } else {
+                indexChannel.close();
+            }
+        }
+
+        if (!usable) {
+            System.out.println("===== Building the credential index =====");
+            // the lines are counted before the table is created, so that it never has to grow while it is built
+            List<Lines> lines = scanLines(0, logLength);
+            long users = 0;
+            for (Lines chunk : lines) {
+                users += chunk.count;
+            }
+            capacity = tableSize(users);
+            count = 0;
+            createIndex(indexPath, capacity);
+            mapIndex();
+            insertLines(lines);
+        }
+        writeHeader();
+    }
+
+    /**
+     * find and hash every line in a part of the mapped log, split into chunks that -Dcredentials.loaders threads
+     * (one per processor by default) scan in parallel
+     * @param from the position of the first line
+     * @param to the end of the part
+     * @return the lines of every chunk, in the order of the log
+     */
+    private List<Lines> scanLines(long from, long to) {
+        int loaders = Integer.getInteger("credentials.loaders", Runtime.getRuntime().availableProcessors());
+        if (loaders <= 1 || to - from < 2 * MIN_CHUNK_LENGTH) {
+            return List.of(scanChunk((int) from, (int) from, (int) to, (int) to));
+        }
+
+        // a few chunks per thread, so that a thread that finishes early can take over the work of another one
+        int chunkLength = (int) Math.max(MIN_CHUNK_LENGTH, (to - from) / (loaders * 4L));
+        ForkJoinPool pool = new ForkJoinPool(loaders);
+        try {
+            return pool.invoke(new ScanTask((int) from, (int) from, (int) to, (int) to, chunkLength));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * find and hash the lines that start in a chunk of the log, the last one may end after the chunk
+     * @param first the position of the first line of the whole part
+     * @param from the start of the chunk
+     * @param to the end of the chunk
+     * @param end the end of the whole part
+     * @return the position and the hash of the username of every line that has one
+     */
+    private Lines scanChunk(int first, int from, int to, int end) {
+        Lines lines = new Lines((to - from) / 16 + 16);
+        int position = from;
+        if (position > first) {
+            // the line that runs into the chunk belongs to the chunk before it
+            while (position < to && logMap.get(position - 1) != '\n') {
+                position++;
+            }
+        }
+
+        while (position < to) {
+            int start = position;
+            int space = -1;
+            // the same FNV-1a as hash(), over the username as it is read
+            int hash = 0x811C9DC5;
+            while (position < end) {
+                byte b = logMap.get(position);
+                if (b == '\n') {
+                    break;
+                }
+                if (space < 0) {
+                    if (b == ' ') {
+                        space = position;
+                    } else {
+                        hash = (hash ^ (b & 0xFF)) * 0x01000193;
+                    }
+                }
+                position++;
+            }
+            position++;
+
+            if (space > start) {
+                lines.add(hash, start);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * add the scanned lines to the table in the order of the log, a later line of a user replaces the earlier one
+     * @param lines the lines of every chunk
+     */
+    private void insertLines(List<Lines> lines) throws IOException {
+        for (Lines chunk : lines) {
+            for (int i = 0; i < chunk.count; i++) {
+                insert(chunk.hashes[i], chunk.offsets[i]);
+            }
+        }
+    }
+
+    /**
+     * add a user to the table, a later line of the same user replaces the earlier one
+     * @param hash the hash of the username
+     * @param offset the position of the line of the user
+     */
+    private void insert(int hash, long offset) throws IOException {
+        if ((count + 1) * 10L > capacity * 7L) {
+            grow();
+        }
+
+        int mask = capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+            long existing = index.getLong(position + 4) - 1;
+            if (existing < 0) {
+                index.putInt(position, hash);
+                index.putLong(position + 4, offset + 1);
+                count++;
+                return;
+            }
+            if (index.getInt(position) == hash && readRecord(existing)[0].equals(readRecord(offset)[0])) {
+                index.putLong(position + 4, offset + 1);
+                return;
+            }
+        }
+    }
+
+    /**
+     * move every user into a table twice the size, written next to the old one and renamed over it
+     */
+    private void grow() throws IOException {
+        Path grown = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        int newCapacity = capacity * 2;
+        createIndex(grown, newCapacity);
+
+        try (FileChannel channel = FileChannel.open(grown, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int mask = newCapacity - 1;
+            for (int slot = 0; slot < capacity; slot++) {
+                int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+                long offset = index.getLong(position + 4);
+                if (offset == 0) {
+                    continue;
+                }
+                int hash = index.getInt(position);
+                int target = hash & mask;
+                while (table.getLong(HEADER_LENGTH + target * SLOT_LENGTH + 4) != 0) {
+                    target = (target + 1) & mask;
+                }
+                table.putInt(HEADER_LENGTH + target * SLOT_LENGTH, hash);
+                table.putLong(HEADER_LENGTH + target * SLOT_LENGTH + 4, offset);
+            }
+            table.force();
+        }
+
+        indexChannel.close();
+        Files.move(grown, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mapIndex();
+        capacity = newCapacity;
+        writeHeader();
+    }
+
+    private void mapIndex() throws IOException {
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+    }
+
+    private static void createIndex(Path path, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(VERSION).putInt(capacity).putInt(0).putLong(0).putLong(0);
+            header.flip();
+            channel.write(header, 0);
+            // extend the file to its full size, the slots read as zero i.e. empty
+            channel.write(ByteBuffer.allocate(1), HEADER_LENGTH + (long) capacity * SLOT_LENGTH - 1);
+        }
+    }
+
+    /**
+     * record how much of the log the table covers, written after the slots so that a table never claims a line
+     * it does not have
+     */
+    private void writeHeader() {
+        index.putInt(0, MAGIC);
+        index.putInt(4, VERSION);
+        index.putInt(8, capacity);
+        index.putInt(12, count);
+        index.putLong(16, logLength);
+        index.putLong(24, logModified);
+    }
+
+    private static int tableSize(long users) {
+        long size = MIN_CAPACITY;
+        while (size * 7 < users * 10) {
+            size *= 2;
+        }
+        return (int) size;
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes of a username, the same on every platform and every run
+     */
+    private static int hash(byte[] key) {
+        int hash = 0x811C9DC5;
+        for (byte b : key) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * splits a part of the log in halves until the halves are short enough to be scanned by one thread
+     */
+    private class ScanTask extends RecursiveTask<List<Lines>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int first;
+        private final int from;
+        private final int to;
+        private final int end;
+        private final int chunkLength;
+
+        ScanTask(int first, int from, int to, int end, int chunkLength) {
+            this.first = first;
+            this.from = from;
+            this.to = to;
+            this.end = end;
+            this.chunkLength = chunkLength;
+        }
+
+        @Override
+        protected List<Lines> compute() {
+            if (to - from <= chunkLength) {
+                return List.of(scanChunk(first, from, to, end));
+            }
+            int middle = from + (to - from) / 2;
+            ScanTask left = new ScanTask(first, from, middle, end, chunkLength);
+            left.fork();
+            List<Lines> right = new ScanTask(first, middle, to, end, chunkLength).compute();
+            ArrayList<Lines> lines = new ArrayList<>(left.join());
+            lines.addAll(right);
+            return lines;
+        }
+    }
+
+    /**
+     * the lines found in a chunk of the log, kept in two arrays instead of an object per line
+     */
+    private static class Lines {
+        private int[] hashes;
+        private int[] offsets;
+        private int count;
+
+        Lines(int capacity) {
+            hashes = new int[capacity];
+            offsets = new int[capacity];
+        }
+
+        void add(int hash, int offset) {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            hashes[count] = hash;
+            offsets[count] = offset;
+            count++;
+        }
+    }
+
+    private static class PendingWrite {
+        private final byte[] record;
+        private final int hash;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(String username, String password) {
+            this.record = (username + " " + password + "\n").getBytes(StandardCharsets.UTF_8);
+            this.hash = hash(username.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A selector thread that serves many client connections without blocking on any of them.
+ * Everything that touches the connections of a loop runs on the loop thread, other threads hand work over with
+ * execute() or schedule(). A request that waits on the disk is handed to the workers and its replies come back
+ * through execute().
+ */
+public class EventLoop extends Thread {
+    private final Server server;
+    private final Selector selector;
+    // read buffer shared by all the connections of this loop, a connection only keeps the bytes of a partial frame
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+    // shared by the loops of the server, run the requests that may block
+    private final ExecutorService workers;
+
+    EventLoop(Server server, String name, ExecutorService workers) throws IOException {
+        super(name);
+        this.server = server;
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * hand a newly accepted connection over to this loop
+     * @param channel the channel of the new connection
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioConnection connection = new NioConnection(server, this, channel);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                server.addClient(connection);
+                System.out.println("===== New connection created for user - " + connection.clientID);
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * run a task on the loop thread
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * run a task on the loop thread after a delay
+     * @param task the task to run
+     * @param delayMillis the delay in milliseconds
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        execute(() -> scheduledTasks.add(new ScheduledTask(deadline, task)));
+    }
+
+    /**
+     * check whether the caller is running on this loop
+     * @return true if the caller is the loop thread
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    ExecutorService getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(selectTimeout());
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+
+                runTasks();
+                runScheduledTasks();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * the time the selector can sleep before the next scheduled task is due, inactivity timeouts come from the
+     * timer of the server through execute()
+     * @return the timeout in milliseconds, 0 to sleep until woken up when nothing is scheduled
+     */
+    private long selectTimeout() {
+        ScheduledTask next = scheduledTasks.peek();
+        if (next == null) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime()));
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void runScheduledTasks() {
+        long now = System.nanoTime();
+        while (!scheduledTasks.isEmpty() && scheduledTasks.peek().deadline <= now) {
+            scheduledTasks.poll().task.run();
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long deadline;
+        private final Runnable task;
+
+        ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
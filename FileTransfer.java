@@ -0,0 +1,228 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * One file sent to or received from a peer, served by the selector thread of P2P on a connection of its own so
+ * that a large file does not hold up the chat.
+ * The bytes go straight between the file and the socket with transferTo and transferFrom and never pass through a
+ * buffer of the client. The sender opens the connection with a file frame of the chat holding "<sender> <size>
+ * <name>", the receiver answers with the 8-byte offset it already has, then the rest of the file follows as it is.
+ * The receiver keeps an unfinished file as <name>.<size>.part, so sending the same file again carries on where it
+ * stopped while a file of the same name but another size starts over. A sender told an offset outside the file
+ * drops the transfer.
+ */
+public class FileTransfer {
+    // where received files go, one directory per sender
+    static final Path DOWNLOADS = Paths.get("received");
+    private static final String PART_SUFFIX = ".part";
+    private static final long CHUNK_SIZE = 4L << 20;
+    // chunks moved before the selector gets to the other connections again
+    private static final int CHUNKS_PER_TURN = 16;
+
+    private final SocketChannel channel;
+    private final FileChannel file;
+    private final boolean sending;
+    private final String peer;
+    private final String name;
+    private final long size;
+    // the destination of a received file, null when sending
+    private final Path target;
+    private SelectionKey key;
+    private final ByteBuffer offsetBuffer = ByteBuffer.allocate(8);
+    private long position;
+    private long startOffset;
+    private long startTime;
+
+    private FileTransfer(SocketChannel channel, FileChannel file, boolean sending, String peer, String name,
+                         long size, Path target) {
+        this.channel = channel;
+        this.file = file;
+        this.sending = sending;
+        this.peer = peer;
+        this.name = name;
+        this.size = size;
+        this.target = target;
+    }
+
+    /**
+     * connect to a peer and offer it a file, the transfer starts once the peer said how much it already has
+     * @param sender the user
+     * @param peer the user the file is for
+     * @param address the address the peer accepts private connections on
+     * @param path the file to send
+     * @return the transfer, to be registered with the selector of P2P
+     * @throws IOException throw this exception when the file can not be opened or the peer not reached
+     */
+    static FileTransfer send(String sender, String peer, InetSocketAddress address, Path path) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            String name = path.getFileName().toString();
+            long size = file.size();
+            SocketChannel channel = SocketChannel.open(address);
+            byte[] header = (sender + " " + size + " " + name).getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = P2PConnection.frame(P2PConnection.FILE, header);
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            channel.configureBlocking(false);
+            return new FileTransfer(channel, file, true, peer, name, size, null);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * take over a connection a peer opened to send a file and tell the peer where to start
+     * @param channel the connection, already read up to the end of the header
+     * @param header "<sender> <size> <name>"
+     * @return the transfer, to be attached to the key of the connection
+     * @throws IOException throw this exception when the file can not be created
+     */
+    static FileTransfer receive(SocketChannel channel, String header) throws IOException {
+        String[] fields = header.split(" ", 3);
+        String peer = fields[0];
+        long size = Long.parseLong(fields[1]);
+        if (size < 0) {
+            throw new ProtocolException("a file of " + size + " bytes");
+        }
+        // only the last part of the name, a peer must not write outside the downloads
+        String name = Paths.get(fields[2]).getFileName().toString();
+
+        Path directory = DOWNLOADS.resolve(Paths.get(peer).getFileName());
+        Files.createDirectories(directory);
+        Path target = directory.resolve(name);
+        FileChannel file = FileChannel.open(partOf(target, size), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileTransfer transfer = new FileTransfer(channel, file, false, peer, name, size, target);
+        transfer.start(Math.min(file.size(), size));
+
+        ByteBuffer offset = ByteBuffer.allocate(8);
+        offset.putLong(transfer.position).flip();
+        while (offset.hasRemaining()) {
+            channel.write(offset);
+        }
+        return transfer;
+    }
+
+    /**
+     * the unfinished file of a file being received, the size is part of the name so that only the same file resumes
+     */
+    private static Path partOf(Path target, long size) {
+        return target.resolveSibling(target.getFileName() + "." + size + PART_SUFFIX);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    private void start(long offset) {
+        position = offset;
+        startOffset = offset;
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * move the next chunks, called by the selector thread whenever the connection is ready
+     */
+    void handle() {
+        try {
+            if (sending) {
+                if (offsetBuffer.hasRemaining()) {
+                    readOffset();
+                } else {
+                    sendChunks();
+                }
+            } else {
+                receiveChunks();
+            }
+        } catch (ProtocolException e) {
+            System.out.println("Transfer of " + name + " with " + peer + " was cancelled, the peer asked for " +
+                               e.getMessage() + ".");
+            close();
+        } catch (IOException e) {
+            System.out.println("Transfer of " + name + " with " + peer + " was interrupted at " + position + " of " +
+                               size + " bytes, send it again to resume.");
+            close();
+        }
+    }
+
+    private void readOffset() throws IOException {
+        if (channel.read(offsetBuffer) < 0) {
+            throw new EOFException();
+        }
+        if (!offsetBuffer.hasRemaining()) {
+            long offset = offsetBuffer.getLong(0);
+            if (offset < 0 || offset > size) {
+                throw new ProtocolException("byte " + offset + " of " + size);
+            }
+            start(offset);
+            key.interestOps(SelectionKey.OP_WRITE);
+            sendChunks();
+        }
+    }
+
+    private void sendChunks() throws IOException {
+        for (int i = 0; i < CHUNKS_PER_TURN && position < size; i++) {
+            long sent = file.transferTo(position, Math.min(CHUNK_SIZE, size - position), channel);
+            if (sent == 0) {
+                // the socket is full, carry on once it is writable again
+                return;
+            }
+            position += sent;
+        }
+        if (position == size) {
+            report("sent", "to");
+            close();
+        }
+    }
+
+    private void receiveChunks() throws IOException {
+        for (int i = 0; i < CHUNKS_PER_TURN && position < size; i++) {
+            long received = file.transferFrom(channel, position, Math.min(CHUNK_SIZE, size - position));
+            if (received == 0) {
+                if (i == 0) {
+                    // readable without any bytes, the peer closed the connection
+                    throw new EOFException();
+                }
+                return;
+            }
+            position += received;
+        }
+        if (position == size) {
+            // nothing a part file held before past the end of the file may end up in it
+            file.truncate(size);
+            file.close();
+            Files.move(partOf(target, size), target, StandardCopyOption.REPLACE_EXISTING);
+            report("received", "from");
+            close();
+        }
+    }
+
+    private void report(String action, String direction) {
+        double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+        double megabytes = (position - startOffset) / (1024.0 * 1024.0);
+        String resumed = startOffset > 0 ? ", resumed at byte " + startOffset : "";
+        System.out.printf("File %s %s %s %s: %d bytes in %.2f s, %.1f MB/s%s.%n", name, action, direction, peer,
+                          size, seconds, megabytes / seconds, resumed);
+    }
+
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
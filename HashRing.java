@@ -0,0 +1,72 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hashing of usernames onto the nodes of a cluster.
+ * Every node is put on a ring of 32-bit hashes at many points and a username belongs to the node of the first
+ * point at or after the hash of the username. Adding or removing a node only moves the users next to its points,
+ * and the many points per node keep the share of every node close to even.
+ */
+public class HashRing {
+    private static final int POINTS_PER_NODE = 160;
+
+    // the points in ascending order and the node at each of them
+    private final int[] points;
+    private final int[] nodes;
+
+    /**
+     * @param names a name for every node that stays the same when the node restarts, e.g. its address
+     */
+    HashRing(List<String> names) {
+        // the hash in the high half and the node in the low half, so that sorting orders the points
+        long[] entries = new long[names.size() * POINTS_PER_NODE];
+        int count = 0;
+        for (int node = 0; node < names.size(); node++) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                entries[count++] = (long) hash(names.get(node) + "#" + i) << 32 | node;
+            }
+        }
+        Arrays.sort(entries);
+
+        points = new int[count];
+        nodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = (int) (entries[i] >> 32);
+            nodes[i] = (int) entries[i];
+        }
+    }
+
+    /**
+     * get the node a username belongs to
+     * @param key the username
+     * @return the index of the node in the list the ring was built from
+     */
+    public int nodeFor(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // past the last point the ring starts over
+        return nodes[index == points.length ? 0 : index];
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes followed by the finalizer of MurmurHash3, so that names that only differ in
+     * their last character still land far apart
+     * @param key the text to hash
+     * @return the hash
+     */
+    static int hash(String key) {
+        int hash = 0x811C9DC5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * A latency histogram in the style of HdrHistogram: every power of two is split into the same number of linear
+ * sub-buckets, so a recorded value is kept to within 1% over the whole range of a long with a few thousand
+ * counters. Recording is a few shifts and atomic increments and never allocates, so it can stay on in the server.
+ * Any number of threads can record at once, a reader sees every value that was recorded before it started but the
+ * count, the buckets and the maximum are not read as one snapshot.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    // values below SUB_BUCKETS have a counter each, every higher power of two has HALF counters
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * count a value
+     * @param value the value, in nanoseconds for a latency, negative values count as 0
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // another thread raised the maximum in the meantime, try again against its value
+        }
+    }
+
+    /**
+     * add the values of another histogram to this one
+     * @param other the other histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.addAndGet(i, other.counts.get(i));
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * get the value a given share of the recorded values is at or below
+     * @param percentile the share in percent, e.g. 99.9
+     * @return the highest value of the bucket the percentile falls in, 0 when nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total.get()));
+        long highest = max.get();
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return i + 1 < counts.length() ? Math.min(lowestValue(i + 1) - 1, highest) : highest;
+            }
+        }
+        return 0;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // shift the value until it fits the upper half of the sub-buckets
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+    }
+
+    /**
+     * @param index the index of a counter
+     * @return the lowest value counted by that counter
+     */
+    private static long lowestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF + HALF;
+        return subBucket << shift;
+    }
+}
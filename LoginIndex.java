@@ -0,0 +1,64 @@
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The users ordered by their last login, so that whoelsesince only visits the users who logged in inside the
+ * requested window instead of every registered user
+ */
+public class LoginIndex {
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>();
+
+    /**
+     * move a user to the time of its latest login
+     * @param username the user who logged in
+     * @param previous the previous login of the user, null if the user never logged in
+     * @param lastLogin the time of the latest login
+     */
+    public void update(String username, LocalDateTime previous, LocalDateTime lastLogin) {
+        if (previous != null) {
+            entries.remove(new Entry(previous, username));
+        }
+        entries.add(new Entry(lastLogin, username));
+    }
+
+    /**
+     * get the users who logged in since a time, oldest login first
+     * @param dateTime the time that is being considered
+     * @return the usernames of the users whose last login is at or after the time
+     */
+    public List<String> since(LocalDateTime dateTime) {
+        ArrayList<String> usernames = new ArrayList<>();
+        // the empty username sorts before every user who logged in at exactly that time
+        for (Entry entry : entries.tailSet(new Entry(dateTime, ""))) {
+            usernames.add(entry.username);
+        }
+        return usernames;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final LocalDateTime lastLogin;
+        private final String username;
+
+        Entry(LocalDateTime lastLogin, String username) {
+            this.lastLogin = lastLogin;
+            this.username = username;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int byTime = lastLogin.compareTo(other.lastLogin);
+            return byTime != 0 ? byTime : username.compareTo(other.username);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry && compareTo((Entry) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(lastLogin, username);
+        }
+    }
+}
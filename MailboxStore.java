@@ -0,0 +1,716 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * The messages sent to users while they were offline, kept on disk so that they survive a restart and do not
+ * take up memory until the user logs in.
+ * Every user has a directory of numbered segment files. A message is appended to the newest segment as a 4-byte
+ * length followed by the packet in the binary codec, a new segment is started once the newest one is full.
+ * Messages are read in chunks from a cursor, the segment number in the high half and the position in the segment
+ * in the low half. Only acknowledging a cursor removes the messages before it, the cursor is kept in a "read" file
+ * until the segment it points into is removed. The file is replaced as a whole by renaming a new one over it.
+ * The unread messages of every user are counted in the background once the server started, a mailbox that was not
+ * counted yet is counted by the count or by the first login that asks for it, and from then on its count is kept up
+ * to date by append and acknowledge, so that a login does not read the whole backlog just to say how long it is.
+ * Messages and acknowledgements are applied by a single writer thread in the order they were queued, the thread
+ * that queues them never waits for it. The writer keeps the newest segment of the mailboxes it wrote to lately open
+ * and knows where it ends, so that a message costs one write and no look at the directory. When it opens a segment
+ * it cuts off a message that a crash left half written, so that the messages after it are not lost behind it.
+ * A read waits for the writer only if something is still queued for that mailbox.
+ */
+public class MailboxStore implements Closeable {
+    private static final int SEGMENT_SIZE = 1 << 20;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String READ_FILE = "read";
+    // a mailbox is only touched by one thread at a time, users share a fixed number of locks
+    private static final int LOCK_COUNT = 64;
+    // the writer closes the segment it used least recently beyond this many
+    private static final int MAX_OPEN_SEGMENTS = 256;
+
+    private final Path directory;
+    private final CredentialStore.Durability durability;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_COUNT];
+    // the mailboxes with something queued or with their newest segment open, by directory name
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    // only touched by the writer thread, least recently used first
+    private final LinkedHashMap<String, Mailbox> openSegments = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedBlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+    // the unread messages of the mailboxes that were counted
+    private final AtomicLong unread = new AtomicLong();
+    // the unread messages of every mailbox that was counted by its directory name, changed under its lock
+    private final ConcurrentHashMap<String, Integer> unreadOf = new ConcurrentHashMap<>();
+    // set once the count got to every mailbox, a mailbox that is not in unreadOf from then on is empty
+    private volatile boolean allCounted;
+
+    /**
+     * @param directory the directory that holds a directory for every user with messages
+     * @param durability when a message is acknowledged to its sender
+     * @throws IOException throw this exception when the directory can not be created
+     */
+    MailboxStore(Path directory, CredentialStore.Durability durability) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        Files.createDirectories(directory);
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.writer = new Thread(this::writeLoop, "mailbox-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * add a message to the mailbox of an offline user
+     * @param username the user who the message is for
+     * @param packet the message
+     * @return completes once the message is saved as the durability asks for, completes exceptionally if it could
+     * not be written
+     * @throws IOException throw this exception when the message can not be encoded or the store is closed
+     */
+    public CompletableFuture<Void> append(String username, Packet packet) throws IOException {
+        byte[] body = PacketCodec.BINARY.encode(packet);
+        ByteBuffer record = ByteBuffer.allocate(4 + body.length);
+        record.putInt(body.length).put(body).flip();
+
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            Mailbox mailbox = queue(username, lock);
+            if (mailbox.isNew || isCounted(mailbox.name)) {
+                // a new mailbox starts empty, whether or not the count gets to it
+                addUnread(mailbox.name, 1);
+            }
+            PendingWrite write = new PendingWrite(mailbox, record, 0);
+            pending.add(write);
+            return durability == CredentialStore.Durability.ASYNC ? CompletableFuture.completedFuture(null) :
+                   write.done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * count one more change queued for a mailbox, called under the lock of the mailbox
+     */
+    private Mailbox queue(String username, ReentrantLock lock) throws IOException {
+        if (closed) {
+            throw new IOException("Mailbox store is closed");
+        }
+        Path path = mailboxOf(username);
+        Mailbox mailbox = mailboxes.get(path.getFileName().toString());
+        if (mailbox == null) {
+            mailbox = new Mailbox(path, lock, !Files.isDirectory(path));
+            mailboxes.put(mailbox.name, mailbox);
+        }
+        mailbox.queued++;
+        return mailbox;
+    }
+
+    /**
+     * lock a mailbox once the writer applied everything that was queued for it, the lock is held on return
+     * @param name the name of the directory of the mailbox
+     * @param lock the lock of the mailbox
+     */
+    private void lockWritten(String name, ReentrantLock lock) throws IOException {
+        while (true) {
+            lock.lock();
+            Mailbox mailbox = mailboxes.get(name);
+            if (mailbox == null || mailbox.queued == 0) {
+                return;
+            }
+            // a message for the user was queued a moment ago, the writer is about to write it
+            CompletableFuture<Void> written = mailbox.written;
+            lock.unlock();
+            try {
+                written.get();
+            } catch (ExecutionException e) {
+                // never completed exceptionally
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private ReentrantLock lockWritten(String username) throws IOException {
+        ReentrantLock lock = lockFor(username);
+        lockWritten(nameOf(username), lock);
+        return lock;
+    }
+
+    /**
+     * get the cursor of the first message that has not been acknowledged yet
+     * @param username the user who owns the mailbox
+     * @return the cursor to read the mailbox from
+     * @throws IOException throw this exception when the mailbox can not be read
+     */
+    public long start(String username) throws IOException {
+        ReentrantLock lock = lockWritten(username);
+        try {
+            return startOf(mailboxOf(username));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long startOf(Path mailbox) throws IOException {
+        Path readFile = mailbox.resolve(READ_FILE);
+        if (Files.exists(readFile)) {
+            byte[] bytes = Files.readAllBytes(readFile);
+            // a file cut short by a crash from before the cursor was replaced atomically, read from the start
+            return bytes.length < 8 ? 0 : ByteBuffer.wrap(bytes).getLong();
+        }
+        List<Path> segments = segments(mailbox);
+        return segments.isEmpty() ? 0 : cursor(segmentNumber(segments.get(0)), 0);
+    }
+
+    /**
+     * get the number of messages that were not acknowledged, read from the mailbox only if it was not counted yet
+     * @param username the user who owns the mailbox
+     * @return the number of messages
+     * @throws IOException throw this exception when the mailbox can not be read
+     */
+    public int unread(String username) throws IOException {
+        String name = nameOf(username);
+        ReentrantLock lock = lockFor(username);
+        lockWritten(name, lock);
+        try {
+            countIfNotCounted(name);
+            return unreadOf.getOrDefault(name, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * count the unread messages of every user on a thread of its own, so that a large number of mailboxes does not
+     * hold up the start of the server
+     */
+    public void countInBackground() {
+        Thread counter = new Thread(() -> {
+            long start = System.nanoTime();
+            try (Stream<Path> mailboxes = Files.list(directory)) {
+                for (Path mailbox : (Iterable<Path>) mailboxes::iterator) {
+                    String name = mailbox.getFileName().toString();
+                    ReentrantLock lock = lockFor(new String(Base64.getUrlDecoder().decode(name),
+                                                            StandardCharsets.UTF_8));
+                    lockWritten(name, lock);
+                    try {
+                        // a mailbox created since the count started was counted by its first append
+                        countIfNotCounted(name);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                allCounted = true;
+                System.out.println("===== Counted " + unread.get() + " offline messages in " +
+                                   (System.nanoTime() - start) / 1_000_000 + " ms =====");
+            } catch (IOException | IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }, "mailbox-count");
+        counter.setDaemon(true);
+        counter.start();
+    }
+
+    /**
+     * @return the messages that were not acknowledged, only the mailboxes counted so far while the count runs
+     */
+    public long getUnread() {
+        return unread.get();
+    }
+
+    /**
+     * check whether the messages of a mailbox are part of the unread count, called under the lock of the mailbox
+     */
+    private boolean isCounted(String name) {
+        return allCounted || unreadOf.containsKey(name);
+    }
+
+    /**
+     * read how many messages a mailbox holds unless it was counted already, called once the writer applied
+     * everything queued for it and under its lock
+     */
+    private void countIfNotCounted(String name) throws IOException {
+        if (isCounted(name)) {
+            return;
+        }
+        Path mailbox = directory.resolve(name);
+        addUnread(name, Files.isDirectory(mailbox) ? count(mailbox, startOf(mailbox)) : 0);
+    }
+
+    /**
+     * change the unread messages of a mailbox, called under the lock of the mailbox
+     */
+    private void addUnread(String name, int messages) {
+        unread.addAndGet(messages);
+        int count = unreadOf.getOrDefault(name, 0) + messages;
+        if (count > 0 || !allCounted) {
+            // while the count runs an empty mailbox is kept so that the count does not read it again
+            unreadOf.put(name, Math.max(count, 0));
+        } else {
+            unreadOf.remove(name);
+        }
+    }
+
+    private static int count(Path mailbox, long cursor) throws IOException {
+        int count = 0;
+        for (Path segment : segments(mailbox)) {
+            long number = segmentNumber(segment);
+            if (number < segmentOf(cursor)) {
+                continue;
+            }
+            long position = number == segmentOf(cursor) ? positionOf(cursor) : 0;
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                while (position + 4 <= channel.size()) {
+                    length.clear();
+                    channel.read(length, position);
+                    int recordLength = length.getInt(0);
+                    if (recordLength < 0 || position + 4 + recordLength > channel.size()) {
+                        break;
+                    }
+                    position += 4 + recordLength;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * read the next chunk of messages from a cursor without removing them
+     * @param username the user who owns the mailbox
+     * @param cursor the cursor to read from
+     * @param maxMessages the most messages in the chunk
+     * @param maxBytes the chunk ends after the message that reaches this many encoded bytes
+     * @return the messages and the cursor after them
+     * @throws IOException throw this exception when the mailbox can not be read
+     */
+    public Chunk read(String username, long cursor, int maxMessages, int maxBytes) throws IOException {
+        ReentrantLock lock = lockWritten(username);
+        try {
+            ArrayList<Packet> packets = new ArrayList<>();
+            long next = cursor;
+            int bytes = 0;
+
+            for (Path segment : segments(mailboxOf(username))) {
+                long number = segmentNumber(segment);
+                if (number < segmentOf(cursor)) {
+                    continue;
+                }
+                long position = number == segmentOf(cursor) ? positionOf(cursor) : 0;
+                next = cursor(number, position);
+
+                try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                    ByteBuffer length = ByteBuffer.allocate(4);
+                    while (position + 4 <= channel.size()) {
+                        if (packets.size() >= maxMessages || bytes >= maxBytes) {
+                            return new Chunk(packets, next, true);
+                        }
+                        length.clear();
+                        channel.read(length, position);
+                        int recordLength = length.getInt(0);
+                        if (recordLength < 0 || position + 4 + recordLength > channel.size()) {
+                            // cut short by a crash, nothing after it in this segment can be trusted
+                            break;
+                        }
+                        ByteBuffer body = ByteBuffer.allocate(recordLength);
+                        channel.read(body, position + 4);
+                        packets.add(PacketCodec.BINARY.decode(body.array(), 0, recordLength));
+                        bytes += recordLength;
+                        position += 4 + recordLength;
+                        next = cursor(number, position);
+                    }
+                }
+            }
+            return new Chunk(packets, next, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * remove every message before a cursor once the user confirmed that it received them
+     * @param username the user who owns the mailbox
+     * @param cursor the cursor after the last message that was received
+     * @param messages the number of messages the cursor moves past
+     * @return completes once the messages are removed, completes exceptionally if the mailbox could not be changed
+     * @throws IOException throw this exception when the store is closed
+     */
+    public CompletableFuture<Void> acknowledge(String username, long cursor, int messages) throws IOException {
+        ReentrantLock lock = lockFor(username);
+        lock.lock();
+        try {
+            Mailbox mailbox = queue(username, lock);
+            if (isCounted(mailbox.name)) {
+                addUnread(mailbox.name, -messages);
+            }
+            PendingWrite write = new PendingWrite(mailbox, null, cursor);
+            pending.add(write);
+            return write.done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                              Writer                            │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * apply the changes that queued up while the previous group was being applied, forcing every segment written
+     * to once per group under FSYNC
+     */
+    private void writeLoop() {
+        ArrayList<PendingWrite> group = new ArrayList<>();
+        Set<FileChannel> written = new HashSet<>();
+        while (!closed || !pending.isEmpty()) {
+            try {
+                PendingWrite first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            pending.drainTo(group);
+
+            for (PendingWrite write : group) {
+                Mailbox mailbox = write.mailbox;
+                mailbox.lock.lock();
+                try {
+                    if (write.record != null) {
+                        written.add(append(mailbox, write.record));
+                    } else {
+                        acknowledge(mailbox, write.cursor);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    write.done.completeExceptionally(e);
+                } finally {
+                    doneWith(mailbox);
+                    mailbox.lock.unlock();
+                }
+            }
+
+            IOException failure = null;
+            if (durability == CredentialStore.Durability.FSYNC) {
+                for (FileChannel channel : written) {
+                    try {
+                        channel.force(false);
+                    } catch (ClosedChannelException e) {
+                        // the segment was read and removed in the same group
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        failure = e;
+                    }
+                }
+            }
+            for (PendingWrite write : group) {
+                if (failure != null && write.record != null) {
+                    write.done.completeExceptionally(failure);
+                } else {
+                    write.done.complete(null);
+                }
+            }
+            group.clear();
+            written.clear();
+            closeLeastRecentlyUsed();
+        }
+        for (Mailbox mailbox : new ArrayList<>(openSegments.values())) {
+            try {
+                mailbox.segment.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            closeSegment(mailbox);
+        }
+    }
+
+    /**
+     * append a record to the newest segment of a mailbox, starting a new segment once it is full
+     * @return the channel of the segment the record was written to
+     */
+    private FileChannel append(Mailbox mailbox, ByteBuffer record) throws IOException {
+        if (mailbox.segment == null) {
+            Files.createDirectories(mailbox.path);
+            List<Path> segments = segments(mailbox.path);
+            openSegment(mailbox, segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1)));
+        }
+        if (mailbox.segmentSize >= SEGMENT_SIZE) {
+            closeSegment(mailbox);
+            openSegment(mailbox, mailbox.segmentNumber + 1);
+        }
+        // the segment is now the one used most recently
+        openSegments.get(mailbox.name);
+        while (record.hasRemaining()) {
+            mailbox.segmentSize += mailbox.segment.write(record);
+        }
+        return mailbox.segment;
+    }
+
+    /**
+     * open a segment to append to, cutting off a record that a crash left half written at its end so that the
+     * messages appended after it can be read
+     */
+    private void openSegment(Mailbox mailbox, long number) throws IOException {
+        // only the writer thread writes to the segment, so it appends at the position it leaves the channel at
+        mailbox.segment = FileChannel.open(segmentPath(mailbox.path, number), StandardOpenOption.CREATE,
+                                           StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = endOfRecords(mailbox.segment);
+        if (end < mailbox.segment.size()) {
+            System.out.println("===== Cut a torn message off " + segmentPath(mailbox.path, number) + " =====");
+            mailbox.segment.truncate(end);
+        }
+        mailbox.segment.position(end);
+        mailbox.segmentNumber = number;
+        mailbox.segmentSize = end;
+        openSegments.put(mailbox.name, mailbox);
+    }
+
+    /**
+     * @return the position after the last complete record of a segment
+     */
+    private static long endOfRecords(FileChannel channel) throws IOException {
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            length.clear();
+            channel.read(length, position);
+            int recordLength = length.getInt(0);
+            if (recordLength < 0 || position + 4 + recordLength > size) {
+                break;
+            }
+            position += 4 + recordLength;
+        }
+        return position;
+    }
+
+    private void closeSegment(Mailbox mailbox) {
+        openSegments.remove(mailbox.name);
+        try {
+            // under FSYNC it was forced with the group that wrote to it
+            mailbox.segment.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mailbox.segment = null;
+    }
+
+    private void acknowledge(Mailbox mailbox, long cursor) throws IOException {
+        List<Path> segments = segments(mailbox.path);
+        boolean everythingRead = true;
+
+        for (Path segment : segments) {
+            long number = segmentNumber(segment);
+            if (number < segmentOf(cursor) ||
+                (number == segmentOf(cursor) && positionOf(cursor) >= Files.size(segment))) {
+                if (mailbox.segment != null && number == mailbox.segmentNumber) {
+                    // the next message starts a new segment
+                    closeSegment(mailbox);
+                }
+                Files.delete(segment);
+            } else {
+                everythingRead = false;
+            }
+        }
+
+        Path readFile = mailbox.path.resolve(READ_FILE);
+        Path temporary = mailbox.path.resolve(READ_FILE + ".tmp");
+        if (everythingRead) {
+            Files.deleteIfExists(readFile);
+            Files.deleteIfExists(temporary);
+            Files.deleteIfExists(mailbox.path);
+        } else {
+            // a crash leaves either the old cursor or the new one, never a part of it
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = ByteBuffer.allocate(8).putLong(cursor).flip();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(false);
+            }
+            Files.move(temporary, readFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * count a queued change as applied, and forget a mailbox that has nothing queued and no open segment
+     */
+    private void doneWith(Mailbox mailbox) {
+        mailbox.queued--;
+        if (mailbox.queued == 0) {
+            mailbox.written.complete(null);
+            mailbox.written = new CompletableFuture<>();
+            if (mailbox.segment == null) {
+                mailboxes.remove(mailbox.name, mailbox);
+            }
+        }
+    }
+
+    private void closeLeastRecentlyUsed() {
+        while (openSegments.size() > MAX_OPEN_SEGMENTS) {
+            Mailbox mailbox = openSegments.values().iterator().next();
+            mailbox.lock.lock();
+            try {
+                closeSegment(mailbox);
+                if (mailbox.queued == 0) {
+                    mailboxes.remove(mailbox.name, mailbox);
+                }
+            } finally {
+                mailbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * apply the changes that are still queued and close the open segments
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ReentrantLock lockFor(String username) {
+        return locks[Math.floorMod(username.hashCode(), LOCK_COUNT)];
+    }
+
+    /**
+     * the directory of a user, named after the username in URL-safe Base64 so that any username is a valid name
+     */
+    private Path mailboxOf(String username) {
+        return directory.resolve(nameOf(username));
+    }
+
+    private static String nameOf(String username) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<Path> segments(Path mailbox) throws IOException {
+        if (!Files.isDirectory(mailbox)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(mailbox)) {
+            ArrayList<Path> segments = new ArrayList<>();
+            files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).forEach(segments::add);
+            segments.sort(Comparator.comparingLong(MailboxStore::segmentNumber));
+            return segments;
+        }
+    }
+
+    private static long cursor(long segment, long position) {
+        return (segment << 32) | position;
+    }
+
+    private static long segmentOf(long cursor) {
+        return cursor >>> 32;
+    }
+
+    private static long positionOf(long cursor) {
+        return cursor & 0xFFFFFFFFL;
+    }
+
+    private static Path segmentPath(Path mailbox, long number) {
+        return mailbox.resolve(String.format("%010d", number) + SEGMENT_SUFFIX);
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * a mailbox the writer has work for or keeps the newest segment of open
+     */
+    private static class Mailbox {
+        private final Path path;
+        private final String name;
+        private final ReentrantLock lock;
+        // whether the directory did not exist when the first change was queued
+        private final boolean isNew;
+        // changes queued and not applied yet, and what completes once there are none, guarded by the lock
+        private int queued;
+        private CompletableFuture<Void> written = new CompletableFuture<>();
+        // the newest segment, only touched by the writer thread, null while it is closed
+        private FileChannel segment;
+        private long segmentNumber;
+        private long segmentSize;
+
+        Mailbox(Path path, ReentrantLock lock, boolean isNew) {
+            this.path = path;
+            this.name = path.getFileName().toString();
+            this.lock = lock;
+            this.isNew = isNew;
+        }
+    }
+
+    /**
+     * a message to append or, with no record, an acknowledgement to apply
+     */
+    private static class PendingWrite {
+        private final Mailbox mailbox;
+        private final ByteBuffer record;
+        private final long cursor;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(Mailbox mailbox, ByteBuffer record, long cursor) {
+            this.mailbox = mailbox;
+            this.record = record;
+            this.cursor = cursor;
+        }
+    }
+
+    /**
+     * a chunk of messages read from a mailbox
+     */
+    public static class Chunk {
+        private final List<Packet> packets;
+        private final long next;
+        private final boolean more;
+
+        Chunk(List<Packet> packets, long next, boolean more) {
+            this.packets = packets;
+            this.next = next;
+            this.more = more;
+        }
+
+        public List<Packet> getPackets() {
+            return packets;
+        }
+
+        /**
+         * @return the cursor after the last message of the chunk
+         */
+        public long getNext() {
+            return next;
+        }
+
+        /**
+         * @return true if there are messages after the chunk
+         */
+        public boolean hasMore() {
+            return more;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves one client from an event loop: decodes frames from a non-blocking channel and queues the replies until
+ * the channel can take them.
+ * A request that may wait on the disk is handled by a worker of the loop, the loop stops reading from the client
+ * until the worker is done so that the requests of a client are still handled one after the other and in order.
+ */
+public class NioConnection extends ClientSession {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    // agreed on with the client when it connects, null until the client sent its choice
+    private PacketCodec codec;
+    // the bytes of a frame that has not been fully received yet, null when there is none
+    private ByteBuffer pending;
+    private final OutboundQueue writeQueue;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private boolean closeAfterFlush;
+    // set while the replies the client did not read fill its queue, the loop stops reading from it until they drain
+    private boolean readPaused;
+    // set while a worker handles a request of the client, the loop stops reading from it until the worker is done
+    private boolean working;
+    // the write barrier the loop asked to be called back for, so that it asks only once
+    private CompletableFuture<Void> awaitedBarrier;
+
+    NioConnection(Server server, EventLoop loop, SocketChannel channel) throws IOException {
+        super(server, (InetSocketAddress) channel.getRemoteAddress());
+        this.loop = loop;
+        this.channel = channel;
+        this.writeQueue = new OutboundQueue(server.OUTBOUND_CAPACITY, server.OVERFLOW_POLICY);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * read whatever the channel has and handle every complete packet in it, called by the loop when the channel is
+     * readable
+     */
+    void read() {
+        ByteBuffer readBuffer = loop.getReadBuffer();
+        readBuffer.clear();
+        try {
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+
+            ByteBuffer input = readBuffer;
+            if (pending != null) {
+                pending = append(pending, readBuffer);
+                pending.flip();
+                input = pending;
+            }
+
+            if (codec == null && input.hasRemaining()) {
+                // the client starts with the id of the codec it would like to use and whether it wants compression
+                codec = server.codecFor(input.get() & 0xFF);
+                writeQueue.offer(ByteBuffer.wrap(new byte[]{(byte) codec.getHandshake()}));
+                flush();
+            }
+
+            handleFrames(input);
+        } catch (Exception e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * handle the complete frames in the input and keep the rest, stopping early while the client has too many
+     * replies it did not read yet
+     * @param input the bytes received so far, in read mode
+     * @throws Exception throw exception when a packet can not be handled
+     */
+    private void handleFrames(ByteBuffer input) throws Exception {
+        while (codec != null && channel.isOpen() && !readPaused && !working &&
+               input.remaining() >= PacketCodec.HEADER_LENGTH) {
+            int header = input.getInt(input.position());
+            int length = PacketCodec.frameLength(header);
+            PacketCodec.checkLength(length);
+            if (input.remaining() < PacketCodec.HEADER_LENGTH + length) {
+                break;
+            }
+            input.position(input.position() + PacketCodec.HEADER_LENGTH);
+            byte[] body = new byte[length];
+            input.get(body);
+
+            Packet packet = codec.decodeFrame(header, body, 0, length);
+            if (mayBlock(packet)) {
+                handOff(packet);
+                break;
+            }
+            if (!handle(packet)) {
+                closeAfterFlush = true;
+                flush();
+                return;
+            }
+        }
+
+        // keep the partial frame until the rest of it arrives, or the frames left while reading is paused
+        if (input.hasRemaining()) {
+            ByteBuffer rest = ByteBuffer.allocate(Math.max(input.remaining() * 2, 256));
+            rest.put(input);
+            pending = rest;
+        } else {
+            pending = null;
+        }
+    }
+
+    /**
+     * handle a request on a worker, the loop reads from the client again once the worker handed the request back
+     * @param packet the request
+     */
+    private void handOff(Packet packet) {
+        working = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        loop.getWorkers().execute(() -> {
+            boolean alive = false;
+            boolean failed = true;
+            try {
+                alive = handle(packet);
+                failed = false;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            boolean handled = alive;
+            boolean crashed = failed;
+            loop.execute(() -> handedBack(handled, crashed));
+        });
+    }
+
+    /**
+     * go on with the client once a worker handled its request, called by the loop
+     * @param alive false if the client asked to exit
+     * @param failed true if the request could not be handled
+     */
+    private void handedBack(boolean alive, boolean failed) {
+        working = false;
+        if (!channel.isOpen()) {
+            // the connection was closed while the worker ran, the user it logged in must be logged out
+            disconnect();
+            return;
+        }
+        if (failed) {
+            close();
+        } else if (!alive) {
+            closeAfterFlush = true;
+            flush();
+        } else {
+            readOn();
+        }
+    }
+
+    /**
+     * append the bytes that were just read to the partial frame
+     * @param buffer the partial frame in write mode
+     * @param input the bytes that were just read
+     * @return the buffer that holds both, in write mode
+     */
+    private ByteBuffer append(ByteBuffer buffer, ByteBuffer input) {
+        if (buffer.remaining() < input.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+                                                             buffer.position() + input.remaining()));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        buffer.put(input);
+        return buffer;
+    }
+
+    @Override
+    protected void send(Packet packet) throws IOException {
+        queue(codec.frame(packet));
+    }
+
+    @Override
+    protected void send(SharedFrame frame) throws IOException {
+        queue(frame.frameFor(codec));
+    }
+
+    private void queue(ByteBuffer frame) {
+        // an event loop must never wait, a full queue under BLOCK drops the client as well
+        if (!writeQueue.offer(frame)) {
+            System.out.println("===== the user is too slow, dropping user - " + clientID);
+            if (loop.inLoop()) {
+                close();
+            } else {
+                loop.execute(this::close);
+            }
+            return;
+        }
+
+        if (loop.inLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * write the queued frames until the channel is full, then wait for the loop to report it writable again. While
+     * the changes the frames report are not saved yet the loop goes on with other clients and comes back once
+     * they are
+     */
+    void flush() {
+        if (!key.isValid()) {
+            return;
+        }
+        CompletableFuture<Void> barrier = getWriteBarrier();
+        if (barrier.isCompletedExceptionally()) {
+            // a change the frames report could not be saved, the client must not be told about it
+            close();
+            return;
+        }
+        if (!barrier.isDone()) {
+            if (awaitedBarrier != barrier) {
+                awaitedBarrier = barrier;
+                barrier.whenComplete((result, e) -> loop.execute(this::flush));
+            }
+            return;
+        }
+        try {
+            ByteBuffer frame;
+            while ((frame = writeQueue.peek()) != null) {
+                countOutbound(channel.write(frame));
+                if (frame.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (readPaused) {
+                resumeReading();
+            }
+
+            if (closeAfterFlush) {
+                close();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * read from the client again once its replies were written, starting with the requests it already sent
+     */
+    private void resumeReading() {
+        readPaused = false;
+        readOn();
+    }
+
+    /**
+     * read from the client and handle the requests it already sent, unless its replies fill its queue or a worker
+     * handles one of its requests
+     */
+    private void readOn() {
+        if (readPaused || working || !key.isValid()) {
+            return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        if (pending != null) {
+            ByteBuffer input = pending;
+            input.flip();
+            try {
+                handleFrames(input);
+            } catch (Exception e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+    }
+
+    @Override
+    protected void sendReply(Packet packet) throws IOException {
+        // replies are only sent while the loop or a worker handles a request of this client
+        writeQueue.add(codec.frame(packet));
+        if (loop.inLoop()) {
+            replyQueued();
+        } else {
+            loop.execute(this::replyQueued);
+        }
+    }
+
+    private void replyQueued() {
+        flush();
+        if (writeQueue.isFull() && key.isValid() && !readPaused) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        return writeQueue.size();
+    }
+
+    @Override
+    protected void sendDelayed(Packet packet, long delayMillis) {
+        loop.schedule(() -> {
+            try {
+                send(packet);
+            } catch (IOException e) {
+                close();
+            }
+        }, delayMillis);
+    }
+
+    @Override
+    protected void idleTimeoutFired() {
+        loop.execute(() -> {
+            if (!channel.isOpen() || working || !isIdleTimeoutDue()) {
+                return;
+            }
+            try {
+                timeout();
+            } catch (Exception e) {
+                close();
+            }
+        });
+    }
+
+    private void close() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        System.out.println("===== the user disconnected, user - " + clientID);
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writeQueue.close();
+        if (codec != null) {
+            codec.release();
+        }
+        if (!working) {
+            // otherwise the worker may still log the user in, the loop logs it out once the worker is done
+            disconnect();
+        }
+    }
+}
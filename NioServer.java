@@ -0,0 +1,62 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-loop server mode: one thread accepts connections and hands them out to a fixed number of event loops, so
+ * the number of threads does not grow with the number of connected clients. Requests that wait on the disk, such
+ * as a login reading the mailbox, run on a small pool of workers shared by the loops so that a loop never waits.
+ */
+public class NioServer {
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    // -Dnio.workers sets how many requests may wait on the disk at the same time
+    private final ExecutorService workers;
+
+    /**
+     * @param server the server that holds the user data
+     * @param port the port to listen on
+     * @param loopCount the number of event loops, usually one per core
+     * @throws IOException throw this exception when the port can not be bound
+     */
+    NioServer(Server server, int port, int loopCount) throws IOException {
+        this.server = server;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), 1024);
+
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Integer.getInteger("nio.workers", 4 * loopCount), task -> {
+            Thread thread = new Thread(task, "nio-worker-" + workerCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(server, "event-loop-" + i, workers);
+        }
+    }
+
+    /**
+     * start the event loops and accept connections until the server socket is closed
+     */
+    public void run() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                // spread the connections over the loops round-robin
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (Exception e) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The users that are logged in right now and their sessions.
+ * Login adds a user, logout, timeout and disconnect remove it. The whoelse list is kept rendered in segments, a
+ * user always falls into the same one of SEGMENTS segments, so a login or a logout only renders the segment of
+ * that user again and a whoelse request joins the segments into the reply in one pass.
+ * In cluster mode the users logged in on the other nodes are kept as well, without a session, so that whoelse and
+ * the check for online users who blocked a sender cover the whole cluster.
+ */
+public class OnlineUsers {
+    private static final String FRAGMENT_PREFIX = "\n" + "    ";
+    // about 1500 users per segment at 100k users, rendering one again costs microseconds
+    private static final int SEGMENTS = 64;
+
+    private final ConcurrentHashMap<String, ClientSession> sessions = new ConcurrentHashMap<>();
+    // the users logged in on other nodes of the cluster and the index of their node
+    private final ConcurrentHashMap<String, Integer> remoteUsers = new ConcurrentHashMap<>();
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public OnlineUsers() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * add a user who just logged in
+     * @param username the user who logged in
+     * @param session the session of the user
+     * @return false if the user is already logged in from another session else true
+     */
+    public boolean add(String username, ClientSession session) {
+        if (sessions.putIfAbsent(username, session) != null) {
+            return false;
+        }
+        changed(username);
+        return true;
+    }
+
+    /**
+     * remove a user who logged out
+     * @param username the user who logged out
+     * @param session the session of the user, a newer session of the same user is left untouched
+     * @return true if the user was removed
+     */
+    public boolean remove(String username, ClientSession session) {
+        if (sessions.remove(username, session)) {
+            changed(username);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * add a user who logged in on another node
+     * @param username the user who logged in
+     * @param node the index of the node
+     */
+    public void addRemote(String username, int node) {
+        if (remoteUsers.put(username, node) == null) {
+            changed(username);
+        }
+    }
+
+    /**
+     * remove a user who logged out on another node
+     * @param username the user who logged out
+     * @param node the index of the node
+     */
+    public void removeRemote(String username, int node) {
+        if (remoteUsers.remove(username, node)) {
+            changed(username);
+        }
+    }
+
+    /**
+     * remove every user of a node that can not be reached any more
+     * @param node the index of the node
+     */
+    public void removeNode(int node) {
+        for (Map.Entry<String, Integer> user : remoteUsers.entrySet()) {
+            if (user.getValue() == node && remoteUsers.remove(user.getKey(), node)) {
+                changed(user.getKey());
+            }
+        }
+    }
+
+    /**
+     * @param username the user
+     * @return the session of the user if the user is logged in on this node else null
+     */
+    public ClientSession get(String username) {
+        return sessions.get(username);
+    }
+
+    /**
+     * @param username the user
+     * @return true if the user is logged in on this or any other node
+     */
+    public boolean contains(String username) {
+        return sessions.containsKey(username) || remoteUsers.containsKey(username);
+    }
+
+    /**
+     * @return the number of users logged in on this node
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the users logged in on this node and their sessions
+     */
+    public Set<Map.Entry<String, ClientSession>> entries() {
+        return sessions.entrySet();
+    }
+
+    /**
+     * render the whoelse list for a user
+     * @param requester the user who asked
+     * @param excluded the users to leave out besides the requester, i.e. the users who blocked the requester
+     * @return the number of users in the list followed by the list itself
+     */
+    public String render(String requester, Set<String> excluded) {
+        Rendering[] parts = new Rendering[SEGMENTS];
+        int users = 0;
+        int length = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            parts[i] = segments[i].rendering();
+            users += parts[i].offsets.size();
+            length += parts[i].body.length();
+        }
+
+        // the segment, start and end of the users to cut out of the shared rendering
+        ArrayList<int[]> cuts = new ArrayList<>();
+        addCut(cuts, parts, requester);
+        for (String username : excluded) {
+            if (!username.equals(requester)) {
+                addCut(cuts, parts, username);
+            }
+        }
+        cuts.sort(Comparator.<int[]>comparingInt(cut -> cut[0]).thenComparingInt(cut -> cut[1]));
+
+        String header = (users - cuts.size()) + " other user(s) are currently online.";
+        StringBuilder builder = new StringBuilder(header.length() + length);
+        builder.append(header);
+        int next = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            String body = parts[i].body;
+            int start = 0;
+            for (; next < cuts.size() && cuts.get(next)[0] == i; next++) {
+                builder.append(body, start, cuts.get(next)[1]);
+                start = cuts.get(next)[2];
+            }
+            builder.append(body, start, body.length());
+        }
+        return builder.toString();
+    }
+
+    private static void addCut(ArrayList<int[]> cuts, Rendering[] parts, String username) {
+        int segment = segmentOf(username);
+        Integer offset = parts[segment].offsets.get(username);
+        if (offset != null) {
+            cuts.add(new int[]{segment, offset, offset + FRAGMENT_PREFIX.length() + username.length()});
+        }
+    }
+
+    private static int segmentOf(String username) {
+        return Math.floorMod(username.hashCode(), SEGMENTS);
+    }
+
+    /**
+     * bring the segment of a user in line with whether the user is online after a login or a logout. The segment
+     * looks the user up again under its lock, so a login and a logout of the same user that race each other leave
+     * it as the maps end up
+     */
+    private void changed(String username) {
+        Segment segment = segments[segmentOf(username)];
+        synchronized (segment) {
+            segment.set(segment.local, username, sessions.containsKey(username));
+            segment.set(segment.remote, username, remoteUsers.containsKey(username));
+        }
+    }
+
+    /**
+     * the online users that fall into one part of the whoelse list, and that part as it was last rendered
+     */
+    private static class Segment {
+        private final LinkedHashSet<String> local = new LinkedHashSet<>();
+        private final LinkedHashSet<String> remote = new LinkedHashSet<>();
+        // null once a user logged in or out since it was rendered
+        private Rendering rendering = new Rendering("", new HashMap<>());
+
+        private void set(Set<String> users, String username, boolean online) {
+            if (online ? users.add(username) : users.remove(username)) {
+                rendering = null;
+            }
+        }
+
+        synchronized Rendering rendering() {
+            if (rendering == null) {
+                StringBuilder body = new StringBuilder();
+                HashMap<String, Integer> offsets = new HashMap<>();
+                for (String username : local) {
+                    offsets.put(username, body.length());
+                    body.append(FRAGMENT_PREFIX).append(username);
+                }
+                for (String username : remote) {
+                    offsets.put(username, body.length());
+                    body.append(FRAGMENT_PREFIX).append(username);
+                }
+                rendering = new Rendering(body.toString(), offsets);
+            }
+            return rendering;
+        }
+    }
+
+    /**
+     * the whoelse list of the users of a segment and where each user starts in it
+     */
+    private static class Rendering {
+        private final String body;
+        private final HashMap<String, Integer> offsets;
+
+        Rendering(String body, HashMap<String, Integer> offsets) {
+            this.body = body;
+            this.offsets = offsets;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+/**
+ * The frames waiting to be written to one client. Any thread can add frames, only the writer of the connection
+ * takes them, so a client that reads slowly only fills its own queue instead of holding up the senders.
+ */
+public class OutboundQueue {
+
+    /**
+     * what a sender does when the queue of the receiving client is full
+     */
+    public enum OverflowPolicy {
+        // throw away the oldest frame that has not been written yet
+        DROP_OLDEST,
+        // drop the connection of the client that does not keep up
+        DISCONNECT,
+        // make the sender wait until the writer made room, up to a timeout and never while it holds a session lock:
+        // the reader of a blocking connection waits once it handled its request, event loops and every other thread
+        // disconnect instead
+        BLOCK
+    }
+
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // a lock rather than synchronized so that a waiting virtual thread does not pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+    private long dropped;
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * add a frame to be written to the client without waiting
+     * @param frame the frame to be written
+     * @return false if the queue is full and the policy is not DROP_OLDEST, the sender then either waits with
+     * offer(frame, timeout, unit) or drops the connection
+     */
+    public boolean offer(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                // nobody is going to write it anymore
+                return true;
+            }
+            while (frames.size() >= capacity) {
+                if (policy != OverflowPolicy.DROP_OLDEST) {
+                    return false;
+                }
+                frames.poll();
+                dropped++;
+            }
+            frames.add(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * add a frame to be written to the client, waiting for room under the BLOCK policy, must not be called while
+     * holding a session lock
+     * @param frame the frame to be written
+     * @param timeout how long to wait for room at most
+     * @param unit the unit of the timeout
+     * @return false if there was no room in time and the connection should be dropped else true
+     * @throws InterruptedException throw this exception when the sender is interrupted while waiting for room
+     */
+    public boolean offer(ByteBuffer frame, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (policy == OverflowPolicy.BLOCK && frames.size() >= capacity && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return offer(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * add a reply to a request of the client itself, waiting for room whatever the policy is, so that a client that
+     * sends requests faster than it reads the replies is slowed down instead of dropped, but only for so long: a
+     * client that stopped reading altogether is dropped like any other slow client
+     * @param frame the frame to be written
+     * @param timeout how long to wait for room at most
+     * @param unit the unit of the timeout
+     * @return false if there was no room in time and the connection should be dropped else true
+     * @throws InterruptedException throw this exception when the reader is interrupted while waiting for room
+     */
+    public boolean put(ByteBuffer frame, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (frames.size() >= capacity && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            if (!closed) {
+                frames.add(frame);
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * add a reply past the capacity, used by an event loop that stops reading from the client instead of waiting
+     * @param frame the frame to be written
+     */
+    public void add(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (!closed) {
+                frames.add(frame);
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the queue holds as many frames as it should, a client should not be read from until it drains
+     */
+    public boolean isFull() {
+        lock.lock();
+        try {
+            return frames.size() >= capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * wait for the next frame to write, used by the writer thread of a blocking connection
+     * @return the next frame or null once the queue is closed and every frame was taken
+     * @throws InterruptedException throw this exception when the writer is interrupted while waiting
+     */
+    public ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            ByteBuffer frame = frames.poll();
+            notFull.signal();
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the frame that is written next without removing it, or null if there is none
+     */
+    public ByteBuffer peek() {
+        lock.lock();
+        try {
+            return frames.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * remove the frame that was just written
+     */
+    public void poll() {
+        lock.lock();
+        try {
+            frames.poll();
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * stop accepting frames, the writer still gets the frames that are already queued
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of frames thrown away because the client did not keep up
+     */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
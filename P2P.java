@@ -1,56 +1,133 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * Private messaging of one client: a single selector thread accepts the connections of peers, connects to peers
+ * and carries every private chat over non-blocking channels, so a client can hold any number of chats with one
+ * thread. Other threads look peers up in a concurrent table and hand writes over to the selector thread.
+ * Files sent to a peer of a chat go over connections of their own on the same selector, see FileTransfer.
+ * A peer says who it is when it connects, which nothing proves, so a connection is only taken for a user whose
+ * invitation the user accepted and that has no chat open yet, and a file is only taken from the address of a chat.
+ */
 public class P2P extends Thread {
-    private ServerSocket p2pSocket;
-    private HashMap<String, P2PThread> connections;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    // read buffer shared by every peer, a peer only keeps the bytes of a partial frame
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // the peers a chat is open with, by username
+    private final ConcurrentHashMap<String, P2PConnection> connections = new ConcurrentHashMap<>();
+    // the users whose invitation the user accepted and that did not connect yet
+    private final Set<String> invited = ConcurrentHashMap.newKeySet();
 
     // text styling
     final String ANSI_RESET = "\u001B[0m";
     final String ANSI_RED = "\u001B[31m";
 
-    P2P(ServerSocket p2pSocket) {
-        this.p2pSocket = p2pSocket;
-        this.connections = new HashMap<>();
+    P2P() throws IOException {
+        super("p2p");
+        setDaemon(true);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(0));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * @return the port peers connect to, sent to the server when the user accepts an invitation
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
     }
 
     @Override
     public void run() {
-
-        Socket clientSocket = null;
         while (true) {
             try {
-                clientSocket = p2pSocket.accept();
-                DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
-                DataInputStream inputStream = new DataInputStream(clientSocket.getInputStream());
-                // the peer that initiated the connection
-                String peer = inputStream.readUTF();
-                // p2p connection for the sender
-                P2PThread p2PThread = new P2PThread(clientSocket, peer, outputStream, inputStream);
-                connections.put(peer, p2PThread);
-                p2PThread.start();
-            } catch (Exception e) {
+                selector.select();
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    if (key.attachment() instanceof FileTransfer transfer) {
+                        if (key.isValid() && (key.isReadable() || key.isWritable())) {
+                            transfer.handle();
+                        }
+                        continue;
+                    }
+                    P2PConnection connection = (P2PConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+            } catch (ClosedSelectorException e) {
                 break;
+            } catch (Exception e) {
+                e.printStackTrace();
             }
         }
     }
 
-    public boolean createConnection(String sender, String target, int port) {
+    /**
+     * accept a peer, it is added to the table once it sent its username
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            P2PConnection connection = new P2PConnection(this, channel, null, 0);
+            connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+        }
+    }
+
+    /**
+     * connect to a peer that accepted the invitation of the user
+     * @param sender the user, sent to the peer first with the port of the user so that it knows who is connecting
+     * @param target the peer
+     * @param host the address of the peer
+     * @param port the port the peer accepts private connections on
+     * @return true if the connection was made else false
+     */
+    public boolean createConnection(String sender, String target, String host, int port) {
         try {
-            Socket connectionSocket = new Socket(InetAddress.getLocalHost(), port);
-            DataOutputStream outputStream = new DataOutputStream(connectionSocket.getOutputStream());
-            DataInputStream inputStream = new DataInputStream(connectionSocket.getInputStream());
-            outputStream.writeUTF(sender);
-//            // p2p thread for the user requested the connection
-//            P2PThread senderThread = new P2PThread(connectionSocket, sender, outputStream, inputStream);
-//            connections.add(senderThread);
-            // p2p thread for the user that is being invited to the connection
-            P2PThread targetThread = new P2PThread(connectionSocket, target, outputStream, inputStream);
-            connections.put(target, targetThread);
-
-//            senderThread.start();
-            targetThread.start();
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            P2PConnection connection = new P2PConnection(this, channel, target, port);
+            P2PConnection previous = connections.put(target, connection);
+            if (previous != null) {
+                previous.stop();
+            }
+            connection.greet(sender, getPort());
+            execute(() -> {
+                try {
+                    connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                    connection.flush();
+                } catch (ClosedChannelException e) {
+                    connection.close();
+                }
+            });
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -64,28 +141,155 @@ public class P2P extends Thread {
      * @param message the message to be sent
      */
     public void sendMessage(String target, String message) {
-        P2PThread targetThread = connections.get(target);
-        if (targetThread.isAlive()) {
-            targetThread.sendMessage(message);
+        P2PConnection connection = connections.get(target);
+        if (connection != null && connection.isOpen()) {
+            connection.send(message);
             return;
         }
         System.out.println(ANSI_RED + "ERROR" + ANSI_RESET + ": private messaging to " + target + " has not been " +
                            "established.");
     }
 
+    /**
+     * send a file to a user the private messaging is established with, the rest of the file if the user already
+     * has a part of it
+     * @param sender the user
+     * @param target the targeted user
+     * @param path the file to be sent
+     */
+    public void sendFile(String sender, String target, Path path) {
+        P2PConnection connection = connections.get(target);
+        if (connection == null || !connection.isOpen()) {
+            System.out.println(ANSI_RED + "ERROR" + ANSI_RESET + ": private messaging to " + target + " has not " +
+                               "been established.");
+            return;
+        }
+        if (!Files.isRegularFile(path)) {
+            System.out.println(ANSI_RED + "ERROR" + ANSI_RESET + ": " + path + " is not a file.");
+            return;
+        }
+        try {
+            FileTransfer transfer = FileTransfer.send(sender, target, connection.getPeerAddress(), path);
+            execute(() -> {
+                try {
+                    transfer.setKey(transfer.getChannel().register(selector, SelectionKey.OP_READ, transfer));
+                } catch (ClosedChannelException e) {
+                    transfer.close();
+                }
+            });
+        } catch (IOException e) {
+            System.out.println(ANSI_RED + "ERROR" + ANSI_RESET + ": " + path + " could not be sent to " + target +
+                               ".");
+        }
+    }
+
+    /**
+     * take over an accepted connection that carries a file, only users the private messaging is established with
+     * may send one, from the address their chat comes from
+     * @param channel the connection
+     * @param key the key of the connection
+     * @param header the header of the file
+     */
+    void receiveFile(SocketChannel channel, SelectionKey key, String header) {
+        String sender = header.split(" ")[0];
+        try {
+            P2PConnection connection = connections.get(sender);
+            if (connection == null || !connection.isOpen()) {
+                throw new IOException("no private messaging with " + sender);
+            }
+            InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            if (!address.equals(connection.getPeerAddress().getAddress())) {
+                throw new IOException("a file for the chat with " + sender + " from " + address);
+            }
+            FileTransfer transfer = FileTransfer.receive(channel, header);
+            transfer.setKey(key);
+            key.attach(transfer);
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "ERROR" + ANSI_RESET + ": a file from " + sender + " was refused.");
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * end the private messaging with another user
+     * @param target the targeted user
+     */
+    public void closeConnection(String target) {
+        P2PConnection connection = connections.get(target);
+        if (connection == null) {
+            System.out.println(ANSI_RED + "ERROR" + ANSI_RESET + ": private messaging to " + target + " has not " +
+                               "been established.");
+            return;
+        }
+        connection.stop();
+    }
+
     /**
      * close the private connection when user logged out
      */
     public void closeConnections() {
-        for (P2PThread p2PThread : connections.values()) {
-            if (p2PThread.isAlive()) {
-                p2PThread.sendMessage("stopprivate");
-            }
+        for (P2PConnection connection : connections.values()) {
+            connection.stop();
         }
     }
 
     public boolean isConnectionActive(String username) {
-        return connections.get(username) != null;
+        P2PConnection connection = connections.get(username);
+        return connection != null && connection.isOpen();
+    }
+
+    /**
+     * run a task on the selector thread
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == this;
     }
 
+    /**
+     * let a user connect to the user, called when the user accepts its invitation
+     * @param peer the user who invited the user
+     */
+    public void expect(String peer) {
+        invited.add(peer);
+    }
+
+    /**
+     * add a peer that connected to the user once it said who it is, only if the user accepted its invitation and an
+     * open chat with it is never replaced
+     * @return false if the connection is refused
+     */
+    boolean connected(String peer, P2PConnection connection) {
+        if (!invited.remove(peer)) {
+            return false;
+        }
+        boolean[] added = new boolean[1];
+        connections.compute(peer, (name, existing) -> {
+            added[0] = existing == null || !existing.isOpen();
+            return added[0] ? connection : existing;
+        });
+        return added[0];
+    }
+
+    /**
+     * forget a peer once its connection is closed, a newer connection to the same peer is left untouched
+     */
+    void closed(String peer, P2PConnection connection) {
+        if (peer != null) {
+            connections.remove(peer, connection);
+        }
+    }
 }
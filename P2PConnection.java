@@ -0,0 +1,298 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One private chat, served by the selector thread of P2P.
+ * Every frame is a 4-byte length, a type byte and that many bytes of payload. The side that connects greets with
+ * its username and the port it accepts private connections on, the side that accepted refuses a greeting from a
+ * user it did not agree to chat with or already chats with. A stop frame ends the chat. A message longer than
+ * one frame goes out as a message frame followed by continuation frames, each cut on a character boundary, and is
+ * shown piece by piece as the frames arrive. A connection that starts with a file frame instead is handed over to
+ * a FileTransfer.
+ * Frames queued while the channel is busy are written together with a single gathering write.
+ */
+public class P2PConnection {
+    static final byte HELLO = 1;
+    static final byte MESSAGE = 2;
+    static final byte CONTINUATION = 3;
+    static final byte STOP = 4;
+    static final byte FILE = 5;
+    // set on the type of every frame of a message but the last
+    static final byte MORE = (byte) 0x80;
+    static final int HEADER_LENGTH = 5;
+    // characters per frame, at most 3 bytes each in UTF-8 once surrogate pairs are kept together
+    private static final int FRAME_CHARS = 16 * 1024;
+    private static final int MAX_FRAME_LENGTH = 64 * 1024;
+    // frames handed to one gathering write
+    private static final int MAX_BATCH = 64;
+
+    private final P2P engine;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    // the other user, null on an accepted connection until it sent its username
+    private volatile String peer;
+    // the port the other user accepts private connections on, 0 until it was told
+    private volatile int peerPort;
+    // the bytes of a frame that has not been fully received yet, null when there is none
+    private ByteBuffer pending;
+    // a message is being shown and more of it is on its way
+    private boolean continuing;
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    // frames taken from the queue and not fully written yet, only used by the selector thread
+    private final ArrayDeque<ByteBuffer> unwritten = new ArrayDeque<>();
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closeAfterFlush;
+    // the connection carries a file now and belongs to a FileTransfer
+    private boolean handedOver;
+
+    // Styling texts
+    final String ANSI_RESET = "\u001B[0m";
+    final String ANSI_SENDER = "\u001B[36m" + "\u001B[1m";
+
+    P2PConnection(P2P engine, SocketChannel channel, String peer, int peerPort) {
+        this.engine = engine;
+        this.channel = channel;
+        this.peer = peer;
+        this.peerPort = peerPort;
+    }
+
+    /**
+     * build a frame
+     * @param type the type of the frame, with MORE if another frame of the same message follows
+     * @param payload the payload
+     * @return the frame ready to be written
+     */
+    static ByteBuffer frame(byte type, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        frame.putInt(payload.length).put(type).put(payload).flip();
+        return frame;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * get the username of the other peer that is in the private message
+     * @return the username of the peer
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    /**
+     * @return the address the other peer accepts private connections on, used to send it files
+     */
+    InetSocketAddress getPeerAddress() {
+        return new InetSocketAddress(channel.socket().getInetAddress(), peerPort);
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen() && !closeAfterFlush;
+    }
+
+    /**
+     * read whatever the channel has and handle every complete frame, called by the selector thread
+     * @param readBuffer the buffer shared by every peer
+     */
+    void read(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        try {
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+
+            ByteBuffer input = readBuffer;
+            if (pending != null) {
+                ByteBuffer joined = ByteBuffer.allocate(pending.remaining() + readBuffer.remaining());
+                joined.put(pending).put(readBuffer).flip();
+                input = joined;
+            }
+
+            while (channel.isOpen() && !handedOver && input.remaining() >= HEADER_LENGTH) {
+                int length = input.getInt(input.position());
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    // not a peer of this client
+                    close();
+                    return;
+                }
+                if (input.remaining() < HEADER_LENGTH + length) {
+                    break;
+                }
+                input.position(input.position() + 4);
+                byte type = input.get();
+                byte[] payload = new byte[length];
+                input.get(payload);
+                receive(type, new String(payload, StandardCharsets.UTF_8));
+            }
+
+            // keep the partial frame until the rest of it arrives
+            if (input.hasRemaining() && channel.isOpen() && !handedOver) {
+                pending = ByteBuffer.allocate(input.remaining());
+                pending.put(input).flip();
+            } else {
+                pending = null;
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void receive(byte type, String info) {
+        boolean more = (type & MORE) != 0;
+        switch ((byte) (type & ~MORE)) {
+            case FILE -> {
+                if (peer == null) {
+                    // the sender waits for the offset before the bytes of the file follow, so nothing else was read
+                    handedOver = true;
+                    engine.receiveFile(channel, key, info);
+                }
+            }
+            case HELLO -> {
+                if (peer == null) {
+                    // the peer that initiated the connection
+                    String[] handshake = info.split(" ");
+                    if (handshake.length != 2 || !engine.connected(handshake[0], this)) {
+                        System.out.println("A private connection that claimed to be " + handshake[0] +
+                                           " was refused.");
+                        close();
+                        return;
+                    }
+                    peer = handshake[0];
+                    peerPort = Integer.parseInt(handshake[1]);
+                }
+            }
+            case STOP -> {
+                System.out.println("Ending a private messaging " + peer + ".");
+                close();
+            }
+            case MESSAGE, CONTINUATION -> {
+                String text = continuing ? info : ANSI_SENDER + peer + ANSI_RESET + ": " + info;
+                if (more) {
+                    System.out.print(text);
+                } else {
+                    System.out.println(text);
+                }
+                continuing = more;
+            }
+        }
+    }
+
+    /**
+     * tell the peer who the user is, the first frame on a connection the user opened
+     * @param sender the user
+     * @param port the port the user accepts private connections on
+     */
+    void greet(String sender, int port) {
+        writeQueue.add(frame(HELLO, (sender + " " + port).getBytes(StandardCharsets.UTF_8)));
+        scheduleFlush();
+    }
+
+    /**
+     * send private message to the other peer, from any thread
+     * @param message the message to be sent
+     */
+    public synchronized void send(String message) {
+        int start = 0;
+        byte type = MESSAGE;
+        do {
+            int end = Math.min(start + FRAME_CHARS, message.length());
+            if (end < message.length() && Character.isHighSurrogate(message.charAt(end - 1))) {
+                end--;
+            }
+            byte[] text = message.substring(start, end).getBytes(StandardCharsets.UTF_8);
+            writeQueue.add(frame(end < message.length() ? (byte) (type | MORE) : type, text));
+            type = CONTINUATION;
+            start = end;
+        } while (start < message.length());
+        scheduleFlush();
+    }
+
+    /**
+     * tell the peer that the chat is over and close the connection once that was written
+     */
+    public synchronized void stop() {
+        if (!isOpen()) {
+            return;
+        }
+        writeQueue.add(frame(STOP, new byte[0]));
+        closeAfterFlush = true;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (engine.inLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            engine.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * write the queued frames until the channel is full, then wait for the selector to report it writable again
+     */
+    void flush() {
+        if (key == null || !key.isValid()) {
+            // not registered yet, the registration flushes
+            return;
+        }
+        try {
+            while (true) {
+                ByteBuffer frame;
+                while (unwritten.size() < MAX_BATCH && (frame = writeQueue.poll()) != null) {
+                    unwritten.add(frame);
+                }
+                if (unwritten.isEmpty()) {
+                    break;
+                }
+                int count = 0;
+                for (ByteBuffer queued : unwritten) {
+                    batch[count++] = queued;
+                }
+                channel.write(batch, 0, count);
+                Arrays.fill(batch, 0, count, null);
+                while (!unwritten.isEmpty() && !unwritten.peek().hasRemaining()) {
+                    unwritten.poll();
+                }
+                if (!unwritten.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            if (closeAfterFlush) {
+                close();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writeQueue.clear();
+        unwritten.clear();
+        engine.closed(peer, this);
+    }
+}
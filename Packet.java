@@ -8,6 +8,8 @@ public class Packet implements Serializable {
     private String receiver;
     private String type;
     private String message;
+    // set by the client on every request and copied onto the reply, 0 on anything the server pushes on its own
+    private int requestId;
 
     Packet(String sender, String type) {
         this.sender = sender;
@@ -41,4 +43,20 @@ public class Packet implements Serializable {
     public String getMessage() {
         return message;
     }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * check whether the server sent this packet on its own instead of in reply to a request
+     * @return true for broadcasts, presence, incoming messages and the like
+     */
+    public boolean isPush() {
+        return requestId == 0;
+    }
 }
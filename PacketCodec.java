@@ -0,0 +1,203 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames packets on the wire so that the receiver can tell where a packet ends without reading it: every packet
+ * is sent as a 4-byte length followed by the encoded packet.
+ * How the packet itself is encoded is agreed on when the client connects: the client sends the id of the codec it
+ * wants as a single byte and the server answers with the id of the codec it will use. A client that also sets
+ * COMPRESSION_BIT in that byte asks for large frames to be compressed, the server sets it in its answer when it agrees
+ * and both sides then wrap the codec in a CompressedCodec.
+ */
+public abstract class PacketCodec {
+    // the largest frame accepted from the other side, protects the receiver from a corrupted length
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    public static final int HEADER_LENGTH = 4;
+    // set in the length of a frame whose body is compressed, only sent on connections that agreed on compression
+    public static final int COMPRESSED_FLAG = 0x80000000;
+    // set in the handshake byte to ask for compression or to agree to it
+    public static final int COMPRESSION_BIT = 0x80;
+
+    // codec ids exchanged when a client connects
+    public static final byte SERIALIZED_ID = 0;
+    public static final byte BINARY_ID = 1;
+
+    public static final PacketCodec SERIALIZED = new SerializedCodec();
+    public static final PacketCodec BINARY = new BinaryCodec();
+
+    /**
+     * @return the id of the codec that is sent in the handshake
+     */
+    public abstract byte getId();
+
+    /**
+     * @return the byte sent in the handshake, the id of the codec and whether it compresses
+     */
+    public int getHandshake() {
+        return getId();
+    }
+
+    /**
+     * encode a packet into the body of a frame
+     * @param packet the packet to be encoded
+     * @return the encoded packet
+     * @throws IOException throw this exception when the packet can not be encoded
+     */
+    public abstract byte[] encode(Packet packet) throws IOException;
+
+    /**
+     * decode the body of a frame
+     * @param body the buffer that holds the body
+     * @param offset the index of the first byte of the body
+     * @param length the length of the body
+     * @return the packet in the frame
+     * @throws IOException throw this exception when the body is not a packet
+     */
+    public abstract Packet decode(byte[] body, int offset, int length) throws IOException;
+
+    /**
+     * build a complete frame ready to be written to a channel
+     * @param packet the packet to be sent
+     * @return a buffer that contains the length and the body of the frame
+     * @throws IOException throw this exception when the packet can not be encoded
+     */
+    public ByteBuffer frame(Packet packet) throws IOException {
+        return frame(encode(packet));
+    }
+
+    /**
+     * build an uncompressed frame around an encoded packet
+     * @param body the encoded packet
+     * @return a buffer that contains the length and the body of the frame
+     */
+    protected static ByteBuffer frame(byte[] body) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + body.length);
+        frame.putInt(body.length);
+        frame.put(body);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * write a packet to a blocking stream
+     * @param outputStream the stream that connects to the other side
+     * @param packet the packet to be sent
+     * @throws IOException throw this exception when an error occurs with the stream
+     */
+    public void write(DataOutputStream outputStream, Packet packet) throws IOException {
+        ByteBuffer frame = frame(packet);
+        outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        outputStream.flush();
+    }
+
+    /**
+     * read the next packet from a blocking stream
+     * @param inputStream the stream that connects to the other side
+     * @return the packet that was received
+     * @throws IOException throw this exception when an error occurs with the stream
+     */
+    public Packet read(DataInputStream inputStream) throws IOException {
+        int header = inputStream.readInt();
+        int length = frameLength(header);
+        checkLength(length);
+        byte[] body = new byte[length];
+        inputStream.readFully(body);
+        return decodeFrame(header, body, 0, length);
+    }
+
+    /**
+     * decode the body of a frame whose header has been read
+     * @param header the header of the frame, its length and its flags
+     * @param body the buffer that holds the body
+     * @param offset the index of the first byte of the body
+     * @param length the length of the body
+     * @return the packet in the frame
+     * @throws IOException throw this exception when the body is not a packet or is compressed although the
+     * connection did not agree on compression
+     */
+    public Packet decodeFrame(int header, byte[] body, int offset, int length) throws IOException {
+        if ((header & COMPRESSED_FLAG) != 0) {
+            throw new IOException("Compressed frame on a connection without compression");
+        }
+        return decode(body, offset, length);
+    }
+
+    /**
+     * free what the codec holds for its connection once the connection is closed
+     */
+    public void release() {
+    }
+
+    /**
+     * @param header the header of a frame
+     * @return the length of the body of the frame
+     */
+    public static int frameLength(int header) {
+        return header & ~COMPRESSED_FLAG;
+    }
+
+    /**
+     * check the length of a frame before reading its body
+     * @param length the length read from the header of a frame
+     * @throws IOException throw this exception when the length is out of range
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    /**
+     * pick the codec the server uses for the codec a client asked for, unknown ids fall back to serialization
+     * which every client understands
+     * @param id the id sent by the client
+     * @return the codec to be used on the connection
+     */
+    public static PacketCodec forId(int id) {
+        return (id & ~COMPRESSION_BIT) == BINARY_ID ? BINARY : SERIALIZED;
+    }
+
+    /**
+     * pick the codec of a connection from the handshake byte of the other side
+     * @param handshake the byte sent by the other side
+     * @param stats where the compressed frames are counted, null to count none
+     * @return the codec to be used on the connection, compressing if the other side asked for it
+     */
+    public static PacketCodec forHandshake(int handshake, CompressedCodec.Stats stats) {
+        PacketCodec codec = forId(handshake);
+        return (handshake & COMPRESSION_BIT) != 0 ? new CompressedCodec(codec, stats) : codec;
+    }
+
+    /**
+     * the client side of the handshake, must be done before any packet is sent on the socket
+     * @param socket the socket connected to the server
+     * @param preferred the codec the client would like to use
+     * @return the codec the server agreed to use
+     * @throws IOException throw this exception when the server closes the connection during the handshake
+     */
+    public static PacketCodec negotiate(Socket socket, PacketCodec preferred) throws IOException {
+        return negotiate(socket, preferred, false);
+    }
+
+    /**
+     * the client side of the handshake, must be done before any packet is sent on the socket
+     * @param socket the socket connected to the server
+     * @param preferred the codec the client would like to use
+     * @param compression whether to ask for large frames to be compressed
+     * @return the codec the server agreed to use, compressing only if the server agreed to it as well
+     * @throws IOException throw this exception when the server closes the connection during the handshake
+     */
+    public static PacketCodec negotiate(Socket socket, PacketCodec preferred, boolean compression)
+            throws IOException {
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(preferred.getId() | (compression ? COMPRESSION_BIT : 0));
+        outputStream.flush();
+
+        int handshake = socket.getInputStream().read();
+        if (handshake < 0) {
+            throw new EOFException("Connection closed during handshake");
+        }
+        return forHandshake(compression ? handshake : handshake & ~COMPRESSION_BIT, null);
+    }
+}
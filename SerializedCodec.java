@@ -0,0 +1,37 @@
+import java.io.*;
+
+/**
+ * Encodes every packet with Java serialization, kept for clients that do not speak the binary codec.
+ * A frame from the other side may only hold a packet and its strings, anything else is refused before it is
+ * created, so a client can not have the server build objects of its choosing.
+ */
+public class SerializedCodec extends PacketCodec {
+    // a packet is one object of depth 1 with its strings, no other class and no nesting
+    private static final ObjectInputFilter PACKET_ONLY = ObjectInputFilter.Config.createFilter(
+            "Packet;java.lang.String;maxdepth=2;maxrefs=16;maxarray=0;maxbytes=" + MAX_FRAME_LENGTH + ";!*");
+
+    @Override
+    public byte getId() {
+        return SERIALIZED_ID;
+    }
+
+    @Override
+    public byte[] encode(Packet packet) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes);
+        objectOutputStream.writeObject(packet);
+        objectOutputStream.close();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Packet decode(byte[] body, int offset, int length) throws IOException {
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(body, offset, length));
+        objectInputStream.setObjectInputFilter(PACKET_ONLY);
+        try {
+            return (Packet) objectInputStream.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid packet frame", e);
+        }
+    }
+}
@@ -11,8 +11,12 @@
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 public class Server {
 
@@ -22,75 +26,568 @@ public class Server {
     public final long BLOCK_DURATION;
     public final long TIMEOUT;
     public final LocalDateTime START_TIME;
-
-    private static HashMap<String, User> data = new HashMap<>();
-    private static ArrayList<ClientThread> clients = new ArrayList<>();
+    // outbound queue of every connection: -Doutbound.capacity=<packets> -Doutbound.overflow=<policy>
+    // -Doutbound.blockMillis=<longest wait of a sender under BLOCK, and of a reply to a client under any policy>
+    public final int OUTBOUND_CAPACITY;
+    public final OutboundQueue.OverflowPolicy OVERFLOW_POLICY;
+    public final long OUTBOUND_BLOCK_MILLIS;
+    // whether clients that ask for compression get it: -Dcompression=false turns it down for every client
+    public final boolean COMPRESSION;
+    // inactivity timeouts and login blocks of every connection, a tick of 100ms on a wheel of about 50 seconds
+    private final TimerWheel timers = new TimerWheel(100, TimeUnit.MILLISECONDS, 512);
+    // per-command latencies and gauges, published over JMX and to -Dmetrics.file
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    // the other nodes in cluster mode, null when the server runs alone
+    private Cluster cluster;
+
+    // shared by every client thread, event loop or virtual thread
+    // the users that were looked up since the server started, every other user is only in the credential store
+    private static ConcurrentHashMap<String, User> data = new ConcurrentHashMap<>();
+    private static CredentialStore credentials;
+    // messages for offline users, on disk until the user logs in
+    private static MailboxStore mailboxes;
+    // logins, login blocks and blacklists, logged as they change and restored when the server starts
+    private static StateStore state;
+    private static Set<ClientSession> clients = ConcurrentHashMap.newKeySet();
+    // the session of every logged in user, so that a message can be routed without looking at every client
+    private static OnlineUsers sessions = new OnlineUsers();
+    // the channels and their members on this node
+    private static Channels channels = new Channels();
+    // every user who ever logged in, ordered by last login
+    private static LoginIndex logins = new LoginIndex();
+    // the last login of the users of other nodes, their User is only kept on their own node
+    private static ConcurrentHashMap<String, LocalDateTime> remoteLogins = new ConcurrentHashMap<>();
+    // the changes each thread queued for the stores that may not be saved yet, see takeChanges
+    private static final ThreadLocal<CompletableFuture<Void>> CHANGES = new ThreadLocal<>();
+    private static final CompletableFuture<Void> SAVED = CompletableFuture.completedFuture(null);
 
     public Server(long blockDuration, long timeout) {
         BLOCK_DURATION = blockDuration;
         TIMEOUT = timeout;
         START_TIME = LocalDateTime.now();
+        OUTBOUND_CAPACITY = Integer.getInteger("outbound.capacity", 1024);
+        OVERFLOW_POLICY = OutboundQueue.OverflowPolicy.valueOf(
+                System.getProperty("outbound.overflow", "DISCONNECT").toUpperCase());
+        OUTBOUND_BLOCK_MILLIS = Long.getLong("outbound.blockMillis", 5000);
+        COMPRESSION = Boolean.parseBoolean(System.getProperty("compression", "true"));
+    }
+
+    /**
+     * get the timer that owns the inactivity timeouts and the login blocks
+     * @return the timer shared by every connection
+     */
+    public TimerWheel getTimers() {
+        return timers;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * the server side of the handshake, pick the codec of a connection from the byte its client sent
+     * @param handshake the byte sent by the client
+     * @return the codec to be used on the connection, its handshake byte is the answer to the client
+     */
+    public PacketCodec codecFor(int handshake) {
+        if (!COMPRESSION) {
+            handshake &= ~PacketCodec.COMPRESSION_BIT;
+        }
+        return PacketCodec.forHandshake(handshake, metrics.getCompressionStats());
+    }
+
+    /**
+     * take the changes the current thread queued for the stores since it last asked. The stores save them on their
+     * own threads, so the thread never waits for the disk itself, but a reply that reports a change must not reach
+     * its client before the future completes
+     * @return completes once the changes are saved as the stores promise, or could not be saved
+     */
+    public CompletableFuture<Void> takeChanges() {
+        CompletableFuture<Void> changes = CHANGES.get();
+        if (changes == null) {
+            return SAVED;
+        }
+        CHANGES.remove();
+        return changes;
+    }
+
+    /**
+     * remember a change the current thread queued for a store until takeChanges
+     * @param saved completes once the change is saved
+     */
+    private static void changed(CompletableFuture<Void> saved) {
+        if (saved.isDone()) {
+            return;
+        }
+        CompletableFuture<Void> changes = CHANGES.get();
+        CHANGES.set(changes == null || changes.isDone() ? saved : CompletableFuture.allOf(changes, saved));
+    }
+
+    /**
+     * run as a node of a cluster, must be called before any client is accepted
+     * @param cluster the other nodes
+     * @throws IOException throw this exception when the bus port can not be bound
+     */
+    public void joinCluster(Cluster cluster) throws IOException {
+        this.cluster = cluster;
+        cluster.start();
+    }
+
+    /**
+     * check whether a user logs in on this server, always true unless the server is a node of a cluster
+     * @param username the user
+     * @return true if the data of the user is kept here
+     */
+    public boolean isHome(String username) {
+        return cluster == null || cluster.isHome(username);
+    }
+
+    /**
+     * @param username a user of another node
+     * @return "<host>:<port>" of the node the user logs in on
+     */
+    public String getHomeAddress(String username) {
+        return cluster.getHomeAddress(username);
     }
 
     /* ┌────────────────────────────────────────────────────────────────┐ */
     /* │                       Users Related Functions                  │ */
     /* └────────────────────────────────────────────────────────────────┘ */
-    // turn data into Hashmaps and return it
-    private static void generateData() {
-        File file = new File("credentials.txt");
-        BufferedReader fileReader = null;
-        // Getting user login information from the credential file
+    /**
+     * open the credential file and the offline mailboxes, only the credentials appended since the last run are read
+     * -Dcredentials.durability=async|write|fsync decides when a registration is acknowledged and
+     * -Dmailbox.durability when a message for an offline user is
+     * @param directory the directory that holds the credential file and the mailboxes
+     * @return true if both could be opened else false
+     */
+    static boolean generateData(Path directory) {
+        CredentialStore.Durability durability = CredentialStore.Durability.valueOf(
+                System.getProperty("credentials.durability", "WRITE").toUpperCase());
         try {
-            fileReader = new BufferedReader(new FileReader(file));
-            String line = null;
+            credentials = CredentialStore.open(directory.resolve("credentials.txt"),
+                                               directory.resolve("credentials.idx"), durability);
+            mailboxes = new MailboxStore(directory.resolve("mailbox"), CredentialStore.Durability.valueOf(
+                    System.getProperty("mailbox.durability", "WRITE").toUpperCase()));
+            mailboxes.countInBackground();
+            return true;
+        } catch (Exception e) {
+            System.out.println("Credential File Does Not Exist!");
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-            while ((line = fileReader.readLine()) != null) {
-                String[] userInfo = line.split(" ");
-                String username = userInfo[0];
-                String password = userInfo[1];
+    /**
+     * load the state of the users from the last snapshot and the log written after it, and take a new snapshot
+     * every -Dstate.snapshot.interval seconds (60 by default) if anything changed
+     * -Dstate.durability=async|write|fsync decides when a change is acknowledged, as for the credentials
+     * @param directory the directory that holds the directory of the state
+     * @return true if the state could be loaded else false
+     */
+    boolean restoreState(Path directory) {
+        CredentialStore.Durability durability = CredentialStore.Durability.valueOf(
+                System.getProperty("state.durability", "WRITE").toUpperCase());
+        try {
+            state = StateStore.open(directory.resolve("state"), durability, this::getUser);
+        } catch (IOException e) {
+            System.out.println("===== State of the users could not be restored =====");
+            e.printStackTrace();
+            return false;
+        }
 
-                data.put(username, new User(username, password));
+        long now = System.currentTimeMillis();
+        for (User user : data.values()) {
+            if (!user.getLastLogin().equals(User.NEVER)) {
+                logins.update(user.getUsername(), null, user.getLastLogin());
             }
-        } catch (Exception e) {
-            System.out.println("Credential File Does Not Exist!");
+            if (user.isBlocked()) {
+                timers.schedule(user::unblock, Math.max(0, user.getBlockedUntil() - now), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        long interval = Long.getLong("state.snapshot.interval", 60);
+        ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "state-snapshot-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleWithFixedDelay(Server::takeSnapshot, interval, interval, TimeUnit.SECONDS);
+        return true;
+    }
+
+    private static void takeSnapshot() {
+        state.snapshot(data.values()).whenComplete((taken, e) -> {
+            if (e != null) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * register a new user and save it to the credential file. The reply to the client waits for the write, if the
+     * write fails the username is free again and the client is disconnected instead of being told it registered
+     * @param username username of the new user
+     * @param password password of the new user
+     * @return false if the username is already taken else true
+     * @throws IOException throw this exception when the user can not be saved, the username is free again then
+     */
+    public boolean addUser(String username, String password) throws IOException {
+        // claim the username first so that two clients can not register the same name at the same time
+        User newUser = new User(username, password);
+        if (getUser(username) != null || data.putIfAbsent(username, newUser) != null) {
+            return false;
+        }
+
+        CompletableFuture<Void> saved;
+        try {
+            saved = credentials.add(username, password);
+        } catch (IOException e) {
+            data.remove(username, newUser);
+            throw e;
+        }
+        saved.whenComplete((result, e) -> {
+            if (e != null) {
+                data.remove(username, newUser);
+            }
+        });
+        changed(saved);
+        return true;
+    }
+
+    /**
+     * get a user, loading it from the credential store the first time it is needed
+     * @param username the username of the user
+     * @return the user, null if there is no such user
+     */
+    public User getUser(String username) {
+        User user = data.get(username);
+        if (user != null) {
+            return user;
+        }
+
+        String password;
+        try {
+            password = credentials.getPassword(username);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (password == null) {
+            return null;
+        }
+        return data.computeIfAbsent(username, name -> new User(name, password));
+    }
+
+    /**
+     * set the last login of a user and move the user in the login history
+     * @param user the user who logged in
+     * @param lastLogin the time of the login
+     */
+    public void recordLogin(User user, LocalDateTime lastLogin) {
+        LocalDateTime previous = user.getLastLogin();
+        user.setLastLogin(lastLogin);
+        logins.update(user.getUsername(), previous, lastLogin);
+        try {
+            changed(state.logLogin(user.getUsername(), lastLogin));
+        } catch (IOException e) {
             e.printStackTrace();
         }
+        if (cluster != null) {
+            cluster.publishLogin(user.getUsername(), lastLogin);
+        }
     }
 
-    // Save all the changes to a user's information
-    public void addUser(String username, String password) {
-        BufferedWriter fileWriter = null;
+    /**
+     * block a user from logging in for BLOCK_DURATION seconds after too many wrong passwords
+     * @param user the user who is blocked
+     */
+    public void blockLogin(User user) {
+        long until = System.currentTimeMillis() + BLOCK_DURATION * 1000;
+        user.blockLogin(until);
+        timers.schedule(user::unblock, BLOCK_DURATION, TimeUnit.SECONDS);
+        try {
+            changed(state.logLoginBlock(user.getUsername(), until));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * add a user to the blacklist of another user
+     * @param blocker the user who blocks
+     * @param username the user who is blocked
+     */
+    public void addBlacklistUser(User blocker, String username) {
+        blocker.addBlacklistUser(username);
         try {
-            fileWriter = new BufferedWriter(new FileWriter("credentials.txt", true));
-            fileWriter.write(username + " " + password);
-            fileWriter.newLine();
-            fileWriter.close();
+            changed(state.logBlacklist(blocker.getUsername(), username, true));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            data.put(username, new User(username, password));
-        } catch (Exception e) {
-            System.out.println("Credential File Does Not Exist!");
+    /**
+     * remove a user from the blacklist of another user
+     * @param blocker the user who unblocks
+     * @param username the user who is unblocked
+     */
+    public void removeBlacklistUser(User blocker, String username) {
+        blocker.removeBlacklistUser(username);
+        try {
+            changed(state.logBlacklist(blocker.getUsername(), username, false));
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public User getUser(String username) {
-        return data.get(username);
+    /**
+     * @return every user who logged in since the server started, on this node or on another one
+     */
+    public List<String> getLoginHistory() {
+        return logins.since(LocalDateTime.MIN);
+    }
+
+    /**
+     * a user of another node logged in
+     * @param username the user who logged in
+     * @param lastLogin the time of the login
+     * @param node the index of the node
+     */
+    public void remoteLogin(String username, LocalDateTime lastLogin, int node) {
+        sessions.addRemote(username, node);
+        LocalDateTime previous = remoteLogins.put(username, lastLogin);
+        logins.update(username, previous, lastLogin);
+    }
+
+    /**
+     * a user of another node logged out
+     * @param username the user who logged out
+     * @param node the index of the node
+     */
+    public void remoteLogout(String username, int node) {
+        sessions.removeRemote(username, node);
+    }
+
+    /**
+     * forget who is logged in on a node that can not be reached any more, they are sent again when it is back
+     * @param node the index of the node
+     */
+    public void nodeLeft(int node) {
+        sessions.removeNode(node);
+    }
+
+    /**
+     * keep a direct message for a user who is offline
+     * @param username the user who the message is for
+     * @param packet the message
+     * @throws IOException throw this exception when the message can not be saved
+     */
+    public void addOfflineMessage(String username, Packet packet) throws IOException {
+        changed(mailboxes.append(username, packet));
+    }
+
+    /**
+     * get where a user left off reading the messages sent while the user was offline
+     * @param username the user who logged in
+     * @return the cursor of the first message the user did not acknowledge
+     * @throws IOException throw this exception when the mailbox can not be read
+     */
+    public long offlineMessagesStart(String username) throws IOException {
+        return mailboxes.start(username);
+    }
+
+    /**
+     * count the unread messages of a user, kept up to date by the store rather than read from the mailbox
+     * @param username the user who logged in
+     * @return the number of unread messages
+     * @throws IOException throw this exception when the mailbox can not be read
+     */
+    public int countOfflineMessages(String username) throws IOException {
+        return mailboxes.unread(username);
+    }
+
+    /**
+     * read the next chunk of the messages that were sent to a user while the user was offline
+     * @param username the user who logged in
+     * @param cursor the cursor of the first message in the chunk
+     * @param maxMessages the most messages in the chunk
+     * @param maxBytes the chunk ends once it holds this many bytes
+     * @return the messages in the order they were sent and the cursor after them
+     * @throws IOException throw this exception when the messages can not be read
+     */
+    public MailboxStore.Chunk readOfflineMessages(String username, long cursor, int maxMessages, int maxBytes)
+            throws IOException {
+        return mailboxes.read(username, cursor, maxMessages, maxBytes);
+    }
+
+    /**
+     * forget the offline messages that a user confirmed it received
+     * @param username the user who received the messages
+     * @param cursor the cursor after the last message that was received
+     * @param messages the number of messages the cursor moves past
+     * @throws IOException throw this exception when the mailbox can not be changed
+     */
+    public void acknowledgeOfflineMessages(String username, long cursor, int messages) throws IOException {
+        changed(mailboxes.acknowledge(username, cursor, messages));
     }
 
     public void updateUser(User user) {
         data.put(user.getUsername(), user);
     }
 
-    public ClientThread getClientServer(String target) {
-        for (ClientThread client : clients) {
-            if (client.getUser().getUsername().equals(target)) {
-                return client;
-            }
+    public void addClient(ClientSession client) {
+        clients.add(client);
+    }
+
+    /**
+     * forget a connection once it is closed
+     * @param client the session of the closed connection
+     */
+    public void removeClient(ClientSession client) {
+        clients.remove(client);
+    }
+
+    /**
+     * @return every open connection
+     */
+    public Set<ClientSession> getClients() {
+        return Collections.unmodifiableSet(clients);
+    }
+
+    public int countOnlineUsers() {
+        return sessions.size();
+    }
+
+    public int countRegisteredUsers() {
+        return credentials.size();
+    }
+
+    /**
+     * @return the offline messages that were not acknowledged, counted in the background after the server started
+     */
+    public long countOfflineBacklog() {
+        return mailboxes.getUnread();
+    }
+
+    /**
+     * claim a username for the session that just logged in as that user
+     * @param username the user who logged in
+     * @param client the session of the user
+     * @return false if the user is already logged in from another session else true
+     */
+    public boolean addSession(String username, ClientSession client) {
+        return sessions.add(username, client);
+    }
+
+    /**
+     * release a username when the user logs out, times out or disconnects
+     * @param username the user who logged out
+     * @param client the session of the user, a newer session of the same user is left untouched
+     */
+    public void removeSession(String username, ClientSession client) {
+        if (sessions.remove(username, client) && cluster != null) {
+            cluster.publishLogout(username);
+        }
+    }
+
+    /**
+     * get the session of a logged in user
+     * @param target the username of the user
+     * @return the session of the user if the user is logged in else null
+     */
+    public ClientSession getClientServer(String target) {
+        return sessions.get(target);
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                        Users of Other Nodes                    │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * handle the part of a command that concerns another user on the node of that user, right away if that is
+     * this node
+     * @param username the other user
+     * @param request the command, its receiver is the other user
+     * @param onStatus called with the status once another node answered, UNAVAILABLE if it can not be reached
+     * @return the status if the user belongs to this node, null if the status is passed to onStatus later
+     * @throws IOException throw this exception when a message can not be kept for an offline user
+     */
+    public String ask(String username, Packet request, Consumer<String> onStatus) throws IOException {
+        if (isHome(username)) {
+            return answer(request);
         }
+        cluster.request(username, request, onStatus);
         return null;
     }
 
+    /**
+     * handle the part of a command that concerns a user of this node
+     * @param request "broadcast": a direct message for the user, as it is shown to the user
+     *                "startprivate": an invitation to private messaging for the user
+     *                "block" and "unblock": the sender changed whether it blocks the user
+     * @return the status of the command, USERNAME if the user does not exist
+     * @throws IOException throw this exception when a message can not be kept for an offline user
+     */
+    public String answer(Packet request) throws IOException {
+        String sender = request.getSender();
+        User target = getUser(request.getReceiver());
+        if (target == null) {
+            return "USERNAME";
+        }
+
+        switch (request.getType()) {
+            case "broadcast" -> {
+                if (target.isUserBlacklisted(sender)) {
+                    return "BLOCKED";
+                } else if (request.getMessage().equals("")) {
+                    return "EMPTY";
+                } else if (!target.getLoginStatus().equals("ONLINE")) {
+                    addOfflineMessage(target.getUsername(), request);
+                    return "OFFLINE";
+                }
+                deliver(target.getUsername(), request);
+                return "SUCCESS";
+            }
+            case "startprivate" -> {
+                if (target.isUserBlacklisted(sender)) {
+                    return "BLOCKED";
+                }
+                // send a request to target user to ask for permission
+                Packet requestInvite = new Packet(sender, "startprivate");
+                requestInvite.setMessage("INVITE " + sender);
+                deliver(target.getUsername(), requestInvite);
+                return "SENT";
+            }
+            case "block" -> {
+                target.addBlockedBy(sender);
+                changed(state.logBlockedBy(target.getUsername(), sender, true));
+                return "SUCCESS";
+            }
+            case "unblock" -> {
+                target.removeBlockedBy(sender);
+                changed(state.logBlockedBy(target.getUsername(), sender, false));
+                return "SUCCESS";
+            }
+        }
+        return "USERNAME";
+    }
+
+    /**
+     * send a packet to a logged in user, on whichever node the user is
+     * @param username the user
+     * @param packet the packet to be sent
+     * @throws IOException throw this exception when an error occurs with the connection to the user
+     */
+    public void deliver(String username, Packet packet) throws IOException {
+        if (!isHome(username)) {
+            cluster.deliver(username, packet);
+            return;
+        }
+        ClientSession session = sessions.get(username);
+        if (session != null) {
+            session.receiveBroadcast(packet);
+        }
+    }
+
     /* ┌────────────────────────────────────────────────────────────────┐ */
     /* │                            Broadcasts                          │ */
     /* └────────────────────────────────────────────────────────────────┘ */
@@ -102,38 +599,144 @@ public class Server {
      *               presence: to notify users whenever a user logged in and logged out
      *               message: sender being one of the users trying to send a broadcast message to all online users
      * @param packet the packet that contains the information about the message
+     * @return true if an online user who blocked the sender did not get the message
      * @throws Exception throw exception when an error occurs
      */
-    public void broadcast(String type, Packet packet) throws IOException {
+    public boolean broadcast(String type, Packet packet) throws IOException {
         String sender = packet.getSender();
         User senderInfo = getUser(sender);
         boolean blockedBroadcast = false;
 
-        for (ClientThread client : clients) {
-            User user = client.getUser();
-            if (user != null && (!user.getUsername().equals(sender))) {
-                if (type.equals("presence")) {
-                    if (!senderInfo.isUserBlacklisted(user.getUsername())) {
-                        packet.setSender("SERVER");
-                        client.receiveBroadcast(packet);
-                    }
-                } else {
-                    if (!user.isUserBlacklisted(sender)) {
-                        client.receiveBroadcast(packet);
-                    } else {
-                        // when another user blocked the sender
-                        blockedBroadcast = true;
-                    }
+        // every other node delivers it to its own users
+        if (cluster != null) {
+            cluster.publish(type.equals("presence") ? Cluster.PRESENCE : Cluster.BROADCAST, packet);
+        }
+
+        // presence skips the users the sender blocked, a message skips the users who blocked the sender
+        Set<String> excluded;
+        if (type.equals("presence")) {
+            excluded = senderInfo.getBlacklist();
+            packet.setSender("SERVER");
+        } else {
+            excluded = senderInfo.getBlockedBy();
+            for (String username : excluded) {
+                if (sessions.contains(username)) {
+                    // when another user blocked the sender
+                    blockedBroadcast = true;
+                    break;
                 }
             }
         }
 
-        if (blockedBroadcast) {
-            // inform the sender about the status of the message
-            ClientThread senderServer = getClientServer(sender);
-            Packet confirmationMsg = new Packet("server", "broadcast");
-            confirmationMsg.setMessage("the message is successfully sent to most users except for some.");
-            senderServer.receiveBroadcast(confirmationMsg);
+        // framed once for all the recipients with the same codec
+        SharedFrame frame = new SharedFrame(packet);
+        for (Map.Entry<String, ClientSession> session : sessions.entries()) {
+            String username = session.getKey();
+            if (!username.equals(sender) && (excluded.isEmpty() || !excluded.contains(username))) {
+                session.getValue().receiveBroadcast(frame);
+            }
+        }
+
+        return blockedBroadcast;
+    }
+
+    /**
+     * deliver a broadcast of a user of another node to the users of this node, leaving out the same users as
+     * broadcast(), found from the side of the recipients since the sender is not kept here
+     * @param type "presence" or "message", as in broadcast()
+     * @param packet the packet that contains the information about the message
+     * @throws IOException throw this exception when an error occurs with the connection to a user
+     */
+    public void receiveBroadcast(String type, Packet packet) throws IOException {
+        String sender = packet.getSender();
+        boolean presence = type.equals("presence");
+        if (presence) {
+            packet.setSender("SERVER");
+        }
+
+        SharedFrame frame = new SharedFrame(packet);
+        for (Map.Entry<String, ClientSession> session : sessions.entries()) {
+            User recipient = getUser(session.getKey());
+            // presence skips the users the sender blocked, a message skips the users who blocked the sender
+            boolean excluded = presence ? recipient.isBlockedBy(sender) : recipient.isUserBlacklisted(sender);
+            if (!excluded) {
+                session.getValue().receiveBroadcast(frame);
+            }
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                             Channels                           │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * add a logged in user to a channel
+     * @param channel the name of the channel
+     * @param username the user who joins
+     * @param client the session of the user
+     * @return false if the user is already a member else true
+     */
+    public boolean joinChannel(String channel, String username, ClientSession client) {
+        return channels.join(channel, username, client);
+    }
+
+    /**
+     * remove a user from a channel
+     * @param channel the name of the channel
+     * @param username the user who leaves
+     * @return false if the user was not a member else true
+     */
+    public boolean leaveChannel(String channel, String username) {
+        return channels.leave(channel, username);
+    }
+
+    /**
+     * send a message to the members of a channel excluding the sender and the members who blocked the sender,
+     * the same users broadcast() leaves out of a message
+     * @param channel the name of the channel
+     * @param packet the packet of type "channel", its message starts with the name of the channel
+     * @return true if a member of the channel who blocked the sender did not get the message
+     * @throws IOException throw this exception when an error occurs with the connection to a member
+     */
+    public boolean sendToChannel(String channel, Packet packet) throws IOException {
+        String sender = packet.getSender();
+        Set<String> excluded = getUser(sender).getBlockedBy();
+        boolean blockedMessage = false;
+
+        // every other node delivers it to its own members
+        if (cluster != null) {
+            cluster.publish(Cluster.CHANNEL, packet);
+        }
+
+        SharedFrame frame = new SharedFrame(packet);
+        for (Map.Entry<String, ClientSession> member : channels.members(channel)) {
+            String username = member.getKey();
+            if (username.equals(sender)) {
+                continue;
+            }
+            if (!excluded.isEmpty() && excluded.contains(username)) {
+                blockedMessage = true;
+            } else {
+                member.getValue().receiveBroadcast(frame);
+            }
+        }
+        return blockedMessage;
+    }
+
+    /**
+     * deliver a message of a user of another node to the members of the channel on this node, leaving out the
+     * members who blocked the sender
+     * @param packet the packet of type "channel", its message starts with the name of the channel
+     * @throws IOException throw this exception when an error occurs with the connection to a member
+     */
+    public void receiveChannel(Packet packet) throws IOException {
+        String sender = packet.getSender();
+        String channel = packet.getMessage().split(" ", 2)[0];
+        SharedFrame frame = new SharedFrame(packet);
+        for (Map.Entry<String, ClientSession> member : channels.members(channel)) {
+            if (!getUser(member.getKey()).isUserBlacklisted(sender)) {
+                member.getValue().receiveBroadcast(frame);
+            }
         }
     }
 
@@ -150,21 +753,8 @@ public class Server {
      */
     public Packet listAllOnlineUsers(String requester) {
         Packet packet = new Packet("SERVER", "whoelse");
-        String messageBody = "";
-        int onlineCount = 0;
-
-        for (ClientThread client : clients) {
-            User user = client.getUser();
-            if (user != null && (!user.getUsername().equals(requester))) {
-                String username = user.getUsername();
-                if (!user.isUserBlacklisted(requester) && user.getLoginStatus().equals("ONLINE")) {
-                    messageBody += ("\n" + "    " + username);
-                    onlineCount += 1;
-                }
-            }
-        }
-
-        packet.setMessage(String.valueOf(onlineCount) + " other user(s) are currently online." + messageBody);
+        User requesterInfo = getUser(requester);
+        packet.setMessage(sessions.render(requester, requesterInfo.getBlockedBy()));
         return packet;
     }
 
@@ -182,17 +772,15 @@ public class Server {
      */
     public Packet getUsersSince(String requester, LocalDateTime dateTime) {
         Packet packet = new Packet("SERVER", "whoelsesince");
-        String messageBody = "";
+        StringBuilder messageBody = new StringBuilder();
         int onlineCount = 0;
 
-        for (User user : data.values()) {
-            boolean isBlocked = user.isUserBlacklisted(requester);
-            String username = user.getUsername();
-            if (!isBlocked && (!username.equals(requester))) {
-                if (user.getLastLogin().compareTo(dateTime) >= 0) {
-                    messageBody += ("\n" + "    " + username);
-                    onlineCount += 1;
-                }
+        User requesterInfo = getUser(requester);
+
+        for (String username : logins.since(dateTime)) {
+            if (!username.equals(requester) && !requesterInfo.isBlockedBy(username)) {
+                messageBody.append("\n" + "    ").append(username);
+                onlineCount += 1;
             }
         }
 
@@ -204,8 +792,8 @@ public class Server {
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 3) {
-            System.out.println("===== Error usage: java TCPServer SERVER_PORT =====");
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("===== Error usage: java Server SERVER_PORT BLOCK_DURATION TIMEOUT [thread|virtual|nio] =====");
             return;
         }
 
@@ -213,14 +801,54 @@ public class Server {
         serverPort = Integer.parseInt(args[0]);
         long blockDuration = Integer.parseInt(args[1]);
         long timeout = Integer.parseInt(args[2]);
+        // "thread": one thread per client, "virtual": one virtual thread per client,
+        // "nio": a fixed number of event loops serve all clients
+        String mode = args.length == 4 ? args[3] : "thread";
 
         Server server = new Server(blockDuration, timeout);
 
+        // get login credential data from txt file
+        if (!generateData(Paths.get("")) || !server.restoreState(Paths.get(""))) {
+            return;
+        }
+        // cluster mode: -Dcluster.nodes=<host>:<client port>:<bus port>,... -Dcluster.node=<index of this node>
+        String clusterNodes = System.getProperty("cluster.nodes");
+        if (clusterNodes != null) {
+            Cluster cluster = new Cluster(server, clusterNodes, Integer.getInteger("cluster.node", 0));
+            if (cluster.getClientPort() != serverPort) {
+                System.out.println("===== Error: cluster.node " + Integer.getInteger("cluster.node", 0) +
+                                   " accepts clients on port " + cluster.getClientPort() + " =====");
+                return;
+            }
+            server.joinCluster(cluster);
+        }
+        String metricsFile = System.getProperty("metrics.file");
+        server.getMetrics().start(metricsFile == null ? null : Paths.get(metricsFile),
+                                  Long.getLong("metrics.interval", 10));
+        // write the registrations and changes that are still queued when the server is stopped, and a snapshot so
+        // that the next start has no log to replay
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                credentials.close();
+                mailboxes.close();
+                state.snapshot(data.values()).join();
+                state.close();
+            } catch (IOException | CompletionException e) {
+                e.printStackTrace();
+            }
+        }));
+
+        if (mode.equals("nio")) {
+            NioServer nioServer = new NioServer(server, serverPort, Runtime.getRuntime().availableProcessors());
+            System.out.println("===== Server is running with event loops =====");
+            nioServer.run();
+            return;
+        }
+
         // define server socket with the input port number, by default the host would be localhost i.e., 127.0.0.1
-        serverSocket = new ServerSocket(serverPort);
+        serverSocket = new ServerSocket(serverPort, 1024);
 
-        // get login credential data from txt file and parse it into hashmaps;
-        generateData();
+        ExecutorService executor = mode.equals("virtual") ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
 
         // make serverSocket listen connection request from clients
         System.out.println("===== Server is running =====");
@@ -234,12 +862,27 @@ public class Server {
                 // for each user there would be one thread, all the request/response for that user would be processed in
                 // that thread
                 // different users will be working in different thread which is multi-threading (i.e., concurrent)
-                ClientThread clientThread = new ClientThread(server, clientSocket);
+                ClientThread clientThread = new ClientThread(server, clientSocket, executor);
                 clients.add(clientThread);
-                clientThread.start();
+                executor.execute(clientThread);
             } catch (Exception e) {
                 break;
             }
         }
     }
+
+    /**
+     * create an executor that starts a virtual thread for every client
+     * Virtual threads are only available from Java 21, older JVMs fall back to platform threads
+     * @return the executor for the client threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("===== Virtual threads are not supported by this JVM, using platform threads =====");
+            return Executors.newCachedThreadPool();
+        }
+    }
 }
@@ -0,0 +1,311 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+/**
+ * What the server is doing, for the people who run it: a count and a latency histogram for every command, and
+ * gauges for the online users, the registered users, the offline backlog, the outbound traffic of every
+ * connection and what compression saves on the connections that asked for it.
+ * Every command a session handles is recorded into counters that exist from the start, so recording never
+ * allocates and can stay on in production. The numbers are published as the MXBean comp3331:type=ServerMetrics and,
+ * with -Dmetrics.file=<path>, written to that file every -Dmetrics.interval seconds (10 by default).
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final List<String> COMMANDS = List.of("login", "register", "message", "broadcast", "whoelse",
+                                                         "whoelsesince", "block", "unblock", "logout", "startprivate",
+                                                         "private", "messagesack", "join", "leave", "channel",
+                                                         "exit");
+    // anything a client sends that is not a command
+    private static final String OTHER = "other";
+
+    private final Server server;
+    // filled once by the constructor, only read afterwards
+    private final Map<String, Command> commands = new LinkedHashMap<>();
+    private final Command other = new Command();
+    // shared by the codecs of every compressed connection
+    private final CompressedCodec.Stats compression = new CompressedCodec.Stats();
+
+    ServerMetrics(Server server) {
+        this.server = server;
+        for (String command : COMMANDS) {
+            commands.put(command, new Command());
+        }
+        commands.put(OTHER, other);
+    }
+
+    /**
+     * publish the metrics over JMX and start writing snapshots
+     * @param snapshotFile the file the snapshots are written to, null to write none
+     * @param intervalSeconds the time between two snapshots
+     */
+    void start(Path snapshotFile, long intervalSeconds) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                                                                     new ObjectName("comp3331:type=ServerMetrics"));
+        } catch (Exception e) {
+            System.out.println("===== Metrics could not be published over JMX =====");
+            e.printStackTrace();
+        }
+
+        if (snapshotFile != null) {
+            ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            writer.scheduleAtFixedRate(() -> writeSnapshot(snapshotFile), intervalSeconds, intervalSeconds,
+                                       TimeUnit.SECONDS);
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                            Recording                           │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * count a command that a session handled, called for every packet so it must not allocate
+     * @param type the type of the packet
+     * @param nanos how long handling it took
+     * @param failed true if handling it threw
+     */
+    public void recordCommand(String type, long nanos, boolean failed) {
+        Command command = commands.get(type);
+        if (command == null) {
+            command = other;
+        }
+        command.latency.record(nanos);
+        if (failed) {
+            command.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the counters the compressed connections record their frames into
+     */
+    public CompressedCodec.Stats getCompressionStats() {
+        return compression;
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                            Reading                             │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    @Override
+    public int getOnlineUsers() {
+        return server.countOnlineUsers();
+    }
+
+    @Override
+    public int getRegisteredUsers() {
+        return server.countRegisteredUsers();
+    }
+
+    @Override
+    public long getOfflineBacklog() {
+        return server.countOfflineBacklog();
+    }
+
+    @Override
+    public int getConnections() {
+        return server.getClients().size();
+    }
+
+    @Override
+    public long getOutboundBytes() {
+        long bytes = 0;
+        for (ClientSession client : server.getClients()) {
+            bytes += client.getOutboundBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        int depth = 0;
+        for (ClientSession client : server.getClients()) {
+            depth += client.getOutboundQueueDepth();
+        }
+        return depth;
+    }
+
+    @Override
+    public Map<String, Long> getOutboundBytesByConnection() {
+        Map<String, Long> bytes = new TreeMap<>();
+        for (ClientSession client : server.getClients()) {
+            bytes.put(describe(client), client.getOutboundBytes());
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String, Integer> getOutboundQueueDepthByConnection() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (ClientSession client : server.getClients()) {
+            depths.put(describe(client), client.getOutboundQueueDepth());
+        }
+        return depths;
+    }
+
+    @Override
+    public long getCompressedFrames() {
+        return compression.getCompressedFrames();
+    }
+
+    @Override
+    public long getIncompressibleFrames() {
+        return compression.getIncompressibleFrames();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return compression.getRatio();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compression.getSavedBytes();
+    }
+
+    @Override
+    public double getDeflateMillis() {
+        return compression.getDeflateMillis();
+    }
+
+    @Override
+    public double getInflateMillis() {
+        return compression.getInflateMillis();
+    }
+
+    @Override
+    public Map<String, CommandStats> getCommands() {
+        Map<String, CommandStats> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, Command> command : commands.entrySet()) {
+            stats.put(command.getKey(), new CommandStats(command.getValue()));
+        }
+        return stats;
+    }
+
+    /**
+     * @return the address of a connection and the user logged in on it, if any
+     */
+    private static String describe(ClientSession client) {
+        User user = client.getUser();
+        return user == null ? client.clientID : client.clientID + " " + user.getUsername();
+    }
+
+    /**
+     * write every number to a file, replacing the previous snapshot at once so that a reader never sees half of it
+     */
+    private void writeSnapshot(Path file) {
+        StringBuilder snapshot = new StringBuilder();
+        snapshot.append("# server metrics at ").append(LocalDateTime.now()).append("\n");
+        snapshot.append("online_users ").append(getOnlineUsers()).append("\n");
+        snapshot.append("registered_users ").append(getRegisteredUsers()).append("\n");
+        snapshot.append("offline_backlog ").append(getOfflineBacklog()).append("\n");
+        snapshot.append("connections ").append(getConnections()).append("\n");
+        snapshot.append("outbound_bytes ").append(getOutboundBytes()).append("\n");
+        snapshot.append("outbound_queue_depth ").append(getOutboundQueueDepth()).append("\n");
+        snapshot.append("compressed_frames ").append(getCompressedFrames()).append("\n");
+        snapshot.append("incompressible_frames ").append(getIncompressibleFrames()).append("\n");
+        snapshot.append(String.format("compression_ratio %.3f%n", getCompressionRatio()));
+        snapshot.append("compression_saved_bytes ").append(getCompressionSavedBytes()).append("\n");
+        snapshot.append(String.format("deflate_ms %.3f%n", getDeflateMillis()));
+        snapshot.append(String.format("inflate_ms %.3f%n", getInflateMillis()));
+
+        snapshot.append(String.format("%n%-13s %10s %8s %9s %9s %9s %9s %9s %9s%n", "command", "count", "failed",
+                                      "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (Map.Entry<String, CommandStats> command : getCommands().entrySet()) {
+            CommandStats stats = command.getValue();
+            snapshot.append(String.format("%-13s %10d %8d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", command.getKey(),
+                                          stats.getCount(), stats.getFailures(), stats.getMeanMillis(),
+                                          stats.getP50Millis(), stats.getP90Millis(), stats.getP99Millis(),
+                                          stats.getP999Millis(), stats.getMaxMillis()));
+        }
+
+        snapshot.append(String.format("%n%-40s %14s %6s%n", "connection", "outbound bytes", "queued"));
+        for (ClientSession client : server.getClients()) {
+            snapshot.append(String.format("%-40s %14d %6d%n", describe(client), client.getOutboundBytes(),
+                                          client.getOutboundQueueDepth()));
+        }
+
+        try {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temporary, snapshot.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * the counters of one command
+     */
+    private static class Command {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong failures = new AtomicLong();
+    }
+
+    /**
+     * the numbers of one command at the time they were read, latencies in milliseconds
+     */
+    public static class CommandStats {
+        private final long count;
+        private final long failures;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double p999Millis;
+        private final double maxMillis;
+
+        CommandStats(Command command) {
+            LatencyHistogram latency = command.latency;
+            this.count = latency.getCount();
+            this.failures = command.failures.get();
+            this.meanMillis = latency.getMean() / 1e6;
+            this.p50Millis = latency.getValueAtPercentile(50) / 1e6;
+            this.p90Millis = latency.getValueAtPercentile(90) / 1e6;
+            this.p99Millis = latency.getValueAtPercentile(99) / 1e6;
+            this.p999Millis = latency.getValueAtPercentile(99.9) / 1e6;
+            this.maxMillis = latency.getMax() / 1e6;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP90Millis() {
+            return p90Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getP999Millis() {
+            return p999Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+}
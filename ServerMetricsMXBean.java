@@ -0,0 +1,84 @@
+import java.util.Map;
+
+/**
+ * The numbers ServerMetrics publishes over JMX as comp3331:type=ServerMetrics
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * @return the number of users who are logged in
+     */
+    int getOnlineUsers();
+
+    /**
+     * @return the number of users in the credential store
+     */
+    int getRegisteredUsers();
+
+    /**
+     * @return the number of offline messages that were not acknowledged by their user yet, it grows to the full
+     * backlog while the mailboxes are counted after the server started
+     */
+    long getOfflineBacklog();
+
+    /**
+     * @return the number of open client connections
+     */
+    int getConnections();
+
+    /**
+     * @return the bytes written to the connections that are open
+     */
+    long getOutboundBytes();
+
+    /**
+     * @return the packets queued for the connections that are open
+     */
+    int getOutboundQueueDepth();
+
+    /**
+     * @return the bytes written to every open connection, by connection
+     */
+    Map<String, Long> getOutboundBytesByConnection();
+
+    /**
+     * @return the packets queued for every open connection, by connection
+     */
+    Map<String, Integer> getOutboundQueueDepthByConnection();
+
+    /**
+     * @return the frames sent or received compressed, on the connections that agreed on compression
+     */
+    long getCompressedFrames();
+
+    /**
+     * @return the frames above the compression threshold that were sent uncompressed since deflating did not
+     * shrink them
+     */
+    long getIncompressibleFrames();
+
+    /**
+     * @return the size of the packets above the compression threshold divided by the bytes they took on the wire
+     */
+    double getCompressionRatio();
+
+    /**
+     * @return the bytes compression kept off the wire
+     */
+    long getCompressionSavedBytes();
+
+    /**
+     * @return the CPU time spent deflating frames, in milliseconds
+     */
+    double getDeflateMillis();
+
+    /**
+     * @return the CPU time spent inflating frames, in milliseconds
+     */
+    double getInflateMillis();
+
+    /**
+     * @return the count and the latencies of every command since the server started, by command
+     */
+    Map<String, ServerMetrics.CommandStats> getCommands();
+}
@@ -0,0 +1,43 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A packet that is sent to many clients at once, such as a broadcast or a message to a channel.
+ * It is encoded, and deflated for the connections that agreed on compression, once for every kind of codec among
+ * its recipients instead of once per recipient. Every recipient gets a buffer of its own over the same bytes, so
+ * that the connections can write it at their own pace.
+ */
+public class SharedFrame {
+    // one frame for every codec id, plain and compressed
+    private static final int FLAVORS = 4;
+
+    private final Packet packet;
+    private final ByteBuffer[] frames = new ByteBuffer[FLAVORS];
+
+    /**
+     * @param packet the packet to be sent, it must not change once the first frame is built
+     */
+    public SharedFrame(Packet packet) {
+        this.packet = packet;
+    }
+
+    public Packet getPacket() {
+        return packet;
+    }
+
+    /**
+     * get the frame of the packet for a connection, built by the first connection with the same kind of codec
+     * @param codec the codec of the connection
+     * @return a buffer over the frame that only this connection reads from
+     * @throws IOException throw this exception when the packet can not be encoded
+     */
+    public synchronized ByteBuffer frameFor(PacketCodec codec) throws IOException {
+        int handshake = codec.getHandshake();
+        int flavor = ((handshake & ~PacketCodec.COMPRESSION_BIT) << 1) |
+                     ((handshake & PacketCodec.COMPRESSION_BIT) != 0 ? 1 : 0);
+        if (frames[flavor] == null) {
+            frames[flavor] = codec.frame(packet);
+        }
+        return frames[flavor].duplicate();
+    }
+}
@@ -0,0 +1,505 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * What the server knows about its users besides their credentials and offline messages: the last login, a login
+ * block that has not ended yet, the blacklist and who blocked the user.
+ * Every change is appended to a write-ahead log of numbered segment files once it is made in memory and before
+ * the client is answered, which the caller makes sure of with the future it gets back: the thread that makes the
+ * change never waits for the disk. From time to time a snapshot of every user with such state is written next to it
+ * on a thread of its own while the server keeps serving, so that a restart only reads the snapshot and the part of
+ * the log written after it.
+ * A log record is a 4-byte length, a CRC-32 of the body and the body: a kind byte, the username and the change.
+ * Records are written by a single writer thread that writes everything that queued up in one go.
+ */
+public class StateStore implements Closeable {
+    // kinds of the log records
+    // the user logged in, followed by the time of the login
+    private static final byte LOGIN = 1;
+    // the user was blocked from logging in, followed by the end of the block
+    private static final byte LOGIN_BLOCK = 2;
+    // the user blocked or unblocked another user
+    private static final byte BLACKLIST_ADD = 3;
+    private static final byte BLACKLIST_REMOVE = 4;
+    // another user blocked or unblocked the user, kept apart since the other user can be on another node
+    private static final byte BLOCKED_BY_ADD = 5;
+    private static final byte BLOCKED_BY_REMOVE = 6;
+
+    // snapshot header: magic, version, first segment of the log that is not in the snapshot
+    private static final int MAGIC = 0x53544154;
+    private static final int VERSION = 1;
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // a record longer than this can only be a torn write
+    private static final int MAX_RECORD_LENGTH = 1 << 16;
+
+    private final Path directory;
+    private final CredentialStore.Durability durability;
+    private FileChannel segment;
+    // changed by the writer thread, read by the snapshot thread
+    private volatile long segmentNumber;
+    // bytes logged since the last snapshot, no new snapshot is needed while it is 0
+    private volatile long logged;
+
+    private final LinkedBlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+    // one snapshot at a time, the periodic one and the one when the server stops
+    private final Object snapshotLock = new Object();
+    private final ExecutorService snapshots = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "state-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private StateStore(Path directory, CredentialStore.Durability durability) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        Files.createDirectories(directory);
+        this.writer = new Thread(this::writeLoop, "state-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * read the snapshot and the log written after it into the users, then start a new segment of the log
+     * @param directory the directory that holds the snapshot and the log
+     * @param durability when a change is acknowledged
+     * @param users looks up a user by username, null if there is no such user any more
+     * @return the opened store
+     * @throws IOException throw this exception when the snapshot or the log can not be read
+     */
+    public static StateStore open(Path directory, CredentialStore.Durability durability,
+                                  Function<String, User> users) throws IOException {
+        StateStore store = new StateStore(directory, durability);
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+
+        long firstSegment = 0;
+        int restored = 0;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("State snapshot " + snapshot + " is not a snapshot of this version");
+                }
+                firstSegment = in.readLong();
+                while (in.readBoolean()) {
+                    readUser(in, users, now);
+                    restored++;
+                }
+            }
+        }
+
+        int replayed = 0;
+        long lastSegment = firstSegment - 1;
+        for (Path path : segments(directory)) {
+            long number = segmentNumber(path);
+            if (number >= firstSegment) {
+                replayed += replay(path, users, now);
+                lastSegment = number;
+            }
+        }
+
+        // a new segment, the last one may end in a torn record
+        store.openSegment(lastSegment + 1);
+        store.writer.start();
+        System.out.println("===== Restored " + restored + " users from the snapshot and " + replayed +
+                           " changes from the log in " + (System.nanoTime() - start) / 1_000_000 + " ms =====");
+        return store;
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                            Logging                             │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * @param username the user who logged in
+     * @param lastLogin the time of the login
+     * @return completes once the change is saved as the durability asks for, completes exceptionally if it could
+     * not be written
+     * @throws IOException throw this exception when the store is closed
+     */
+    public CompletableFuture<Void> logLogin(String username, LocalDateTime lastLogin) throws IOException {
+        return append(LOGIN, username, out -> {
+            out.writeLong(lastLogin.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(lastLogin.getNano());
+        });
+    }
+
+    /**
+     * @param username the user who was blocked from logging in
+     * @param until the end of the block in milliseconds since the epoch
+     * @return completes once the change is saved as the durability asks for, completes exceptionally if it could
+     * not be written
+     * @throws IOException throw this exception when the store is closed
+     */
+    public CompletableFuture<Void> logLoginBlock(String username, long until) throws IOException {
+        return append(LOGIN_BLOCK, username, out -> out.writeLong(until));
+    }
+
+    /**
+     * @param username the user who blocked or unblocked another user
+     * @param other the other user
+     * @param added true if the other user was blocked, false if it was unblocked
+     * @return completes once the change is saved as the durability asks for, completes exceptionally if it could
+     * not be written
+     * @throws IOException throw this exception when the store is closed
+     */
+    public CompletableFuture<Void> logBlacklist(String username, String other, boolean added) throws IOException {
+        return append(added ? BLACKLIST_ADD : BLACKLIST_REMOVE, username, out -> out.writeUTF(other));
+    }
+
+    /**
+     * @param username the user who was blocked or unblocked
+     * @param other the user who blocked or unblocked it
+     * @param added true if the user was blocked, false if it was unblocked
+     * @return completes once the change is saved as the durability asks for, completes exceptionally if it could
+     * not be written
+     * @throws IOException throw this exception when the store is closed
+     */
+    public CompletableFuture<Void> logBlockedBy(String username, String other, boolean added) throws IOException {
+        return append(added ? BLOCKED_BY_ADD : BLOCKED_BY_REMOVE, username, out -> out.writeUTF(other));
+    }
+
+    private CompletableFuture<Void> append(byte kind, String username, Fields fields) throws IOException {
+        if (closed) {
+            throw new IOException("State store is closed");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(kind);
+        out.writeUTF(username);
+        fields.write(out);
+        byte[] body = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        PendingWrite write = new PendingWrite(ByteBuffer.allocate(8 + body.length).putInt(body.length)
+                                                        .putInt((int) crc.getValue()).put(body).array());
+        pending.add(write);
+        return durability == CredentialStore.Durability.ASYNC ? CompletableFuture.completedFuture(null) : write.done;
+    }
+
+    /**
+     * write the changes that queued up while the previous group was being written, one write per group
+     */
+    private void writeLoop() {
+        ArrayList<PendingWrite> group = new ArrayList<>();
+        while (!closed || !pending.isEmpty()) {
+            try {
+                PendingWrite first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            pending.drainTo(group);
+
+            // the changes queued before a new segment was asked for go to the old one, so that they are all in
+            // the part of the log the next snapshot replaces
+            int from = 0;
+            for (int i = 0; i <= group.size(); i++) {
+                boolean rotate = i < group.size() && group.get(i).record == null;
+                if (!rotate && i < group.size()) {
+                    continue;
+                }
+                List<PendingWrite> done = group.subList(from, rotate ? i + 1 : i);
+                try {
+                    commit(group.subList(from, i));
+                    if (rotate) {
+                        openSegment(segmentNumber + 1);
+                    }
+                    for (PendingWrite write : done) {
+                        write.done.complete(null);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    for (PendingWrite write : done) {
+                        write.done.completeExceptionally(e);
+                    }
+                }
+                from = i + 1;
+            }
+            group.clear();
+        }
+    }
+
+    private void commit(List<PendingWrite> group) throws IOException {
+        if (group.isEmpty()) {
+            return;
+        }
+        int length = 0;
+        for (PendingWrite write : group) {
+            length += write.record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (PendingWrite write : group) {
+            buffer.put(write.record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        if (durability == CredentialStore.Durability.FSYNC) {
+            segment.force(false);
+        }
+        logged += length;
+    }
+
+    private void openSegment(long number) throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        segmentNumber = number;
+        segment = FileChannel.open(segmentPath(directory, number), StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                            Snapshots                           │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * write every user with state to a new snapshot while the users keep changing, and remove the part of the log
+     * it replaces
+     * A change made after the user was written is in a segment after the new one the snapshot starts from, and
+     * replaying a change that is already in the snapshot leaves the user the same, so nothing has to stop. The
+     * snapshot is written by the snapshot thread once the writer thread started the new segment, the caller does
+     * not wait for either.
+     * @param users every user that was looked up since the server started
+     * @return completes with false if nothing changed since the last snapshot else with true once the snapshot is
+     * written, completes exceptionally if it could not be written
+     */
+    public CompletableFuture<Boolean> snapshot(Collection<User> users) {
+        synchronized (snapshotLock) {
+            if (logged == 0) {
+                return CompletableFuture.completedFuture(false);
+            }
+            logged = 0;
+            // every change made before this point is in memory and in a segment before the new one
+            PendingWrite rotate = new PendingWrite(null);
+            pending.add(rotate);
+            return rotate.done.thenApplyAsync(rotated -> {
+                try {
+                    writeSnapshot(users, segmentNumber);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+            }, snapshots);
+        }
+    }
+
+    private void writeSnapshot(Collection<User> users, long firstSegment) throws IOException {
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(firstSegment);
+            for (User user : users) {
+                if (hasState(user)) {
+                    out.writeBoolean(true);
+                    writeUser(out, user);
+                }
+            }
+            out.writeBoolean(false);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+
+        for (Path path : segments(directory)) {
+            if (segmentNumber(path) < firstSegment) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static boolean hasState(User user) {
+        return !user.getLastLogin().equals(User.NEVER) || user.isBlocked() || !user.getBlacklist().isEmpty() ||
+               !user.getBlockedBy().isEmpty();
+    }
+
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        out.writeUTF(user.getUsername());
+        LocalDateTime lastLogin = user.getLastLogin();
+        out.writeLong(lastLogin.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(lastLogin.getNano());
+        out.writeLong(user.isBlocked() ? user.getBlockedUntil() : 0);
+        writeNames(out, user.getBlacklist());
+        writeNames(out, user.getBlockedBy());
+    }
+
+    private static void writeNames(DataOutputStream out, Set<String> names) throws IOException {
+        // the set changes while it is written, the names are counted as they are written
+        ArrayList<String> copy = new ArrayList<>(names);
+        out.writeInt(copy.size());
+        for (String name : copy) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static void readUser(DataInputStream in, Function<String, User> users, long now) throws IOException {
+        User user = users.apply(in.readUTF());
+        LocalDateTime lastLogin = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        long blockedUntil = in.readLong();
+        int blacklist = in.readInt();
+        for (int i = 0; i < blacklist; i++) {
+            String name = in.readUTF();
+            if (user != null) {
+                user.addBlacklistUser(name);
+            }
+        }
+        int blockedBy = in.readInt();
+        for (int i = 0; i < blockedBy; i++) {
+            String name = in.readUTF();
+            if (user != null) {
+                user.addBlockedBy(name);
+            }
+        }
+        if (user != null) {
+            user.setLastLogin(lastLogin);
+            if (blockedUntil > now) {
+                user.blockLogin(blockedUntil);
+            }
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                              Replay                            │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * apply every whole record of a segment to the users
+     * @return the number of records
+     */
+    private static int replay(Path path, Function<String, User> users, long now) throws IOException {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return count;
+                }
+                int checksum;
+                byte[] body;
+                try {
+                    checksum = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_LENGTH) {
+                        throw new EOFException();
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    // cut short by a crash, nothing after it in this segment can be trusted
+                    return count;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    return count;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(body)), users, now);
+                count++;
+            }
+        }
+    }
+
+    private static void apply(DataInputStream record, Function<String, User> users, long now) throws IOException {
+        byte kind = record.readByte();
+        User user = users.apply(record.readUTF());
+        if (user == null) {
+            return;
+        }
+        switch (kind) {
+            case LOGIN -> user.setLastLogin(LocalDateTime.ofEpochSecond(record.readLong(), record.readInt(),
+                                                                        ZoneOffset.UTC));
+            case LOGIN_BLOCK -> {
+                long until = record.readLong();
+                if (until > now) {
+                    user.blockLogin(until);
+                }
+            }
+            case BLACKLIST_ADD -> user.addBlacklistUser(record.readUTF());
+            case BLACKLIST_REMOVE -> user.removeBlacklistUser(record.readUTF());
+            case BLOCKED_BY_ADD -> user.addBlockedBy(record.readUTF());
+            case BLOCKED_BY_REMOVE -> user.removeBlockedBy(record.readUTF());
+        }
+    }
+
+    /**
+     * write the changes that are still queued and release the log, a snapshot that is being written is finished
+     * first
+     * @throws IOException throw this exception when the log can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        snapshots.shutdown();
+        try {
+            snapshots.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.force(false);
+        segment.close();
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            ArrayList<Path> segments = new ArrayList<>();
+            files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).forEach(segments::add);
+            segments.sort(Comparator.comparingLong(StateStore::segmentNumber));
+            return segments;
+        }
+    }
+
+    private static Path segmentPath(Path directory, long number) {
+        return directory.resolve(String.format("%010d", number) + SEGMENT_SUFFIX);
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * writes the fields of a record after its kind and username
+     */
+    private interface Fields {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static class PendingWrite {
+        // null to start a new segment
+        private final byte[] record;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(byte[] record) {
+            this.record = record;
+        }
+    }
+}
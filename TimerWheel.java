@@ -0,0 +1,220 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel that owns every deadline of the server: the inactivity timeout of each logged in user and
+ * the end of each login block.
+ * Deadlines are kept in buckets of a fixed number of ticks on a ring, a deadline further away than one turn of the
+ * ring waits in its bucket for the remaining turns. Only the wheel thread touches the buckets, other threads hand
+ * new deadlines over through a queue. Pushing a deadline back, which happens on every packet, is a single write and
+ * the wheel moves the deadline to its new bucket once it gets to the old one.
+ * Time is measured with System.nanoTime so that changes to the wall clock do not fire or hold back any deadline.
+ * The tasks run on the wheel thread and must only hand the real work over to the thread that owns it.
+ */
+public class TimerWheel {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    // deadlines that are new or were pushed back after they fired, placed in their bucket by the wheel thread
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    // deadlines found pushed back during a tick, placed once the tick is over so that none is visited twice
+    private final ArrayList<Timeout> pushedBack = new ArrayList<>();
+    private final Thread worker;
+    private long tick;
+
+    /**
+     * @param tickDuration how long one tick lasts, deadlines fire up to one tick late
+     * @param unit the unit of the tick duration
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     */
+    TimerWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel - 1, 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, "timer-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * run a task once a delay has passed
+     * @param task the task to run on the wheel thread, it must not block
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the handle to push the deadline back or cancel it
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, unit.toNanos(delay));
+        timeout.deadline = now() + timeout.delayNanos;
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    private long now() {
+        return System.nanoTime() - startTime;
+    }
+
+    private void run() {
+        while (true) {
+            long tickDeadline = tickNanos * (tick + 1);
+            long sleepNanos = tickDeadline - now();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            placeIncoming();
+            expire(wheel[(int) (tick & mask)], tickDeadline);
+            tick++;
+            for (Timeout timeout : pushedBack) {
+                place(timeout);
+            }
+            pushedBack.clear();
+        }
+    }
+
+    private void placeIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+            if (timeout.state.get() == PENDING) {
+                place(timeout);
+            }
+        }
+    }
+
+    /**
+     * put a deadline in the bucket of the tick it falls in, a deadline that already passed goes in the current one
+     */
+    private void place(Timeout timeout) {
+        long ticks = Math.max(timeout.deadline / tickNanos, tick);
+        timeout.rounds = (ticks - tick) / wheel.length;
+        wheel[(int) (ticks & mask)].add(timeout);
+    }
+
+    /**
+     * fire the deadlines of a bucket that are due and move the ones that were pushed back
+     */
+    private void expire(Bucket bucket, long tickDeadline) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state.get() != PENDING) {
+                bucket.remove(timeout);
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else if (timeout.deadline <= tickDeadline) {
+                bucket.remove(timeout);
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                bucket.remove(timeout);
+                pushedBack.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * a deadline on the wheel
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long delayNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // nanoseconds since the wheel started
+        private volatile long deadline;
+        // only used by the wheel thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        Timeout(Runnable task, long delayNanos) {
+            this.task = task;
+            this.delayNanos = delayNanos;
+        }
+
+        /**
+         * push the deadline back to the original delay from now, fire it again if it already fired
+         */
+        public void reschedule() {
+            deadline = now() + delayNanos;
+            if (state.compareAndSet(EXPIRED, PENDING)) {
+                incoming.add(this);
+            }
+        }
+
+        /**
+         * stop the deadline from firing, the wheel drops it the next time it visits its bucket
+         */
+        public void cancel() {
+            state.set(CANCELLED);
+        }
+
+        /**
+         * @return true if the deadline fired and was not pushed back since
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * the deadlines of one slot of the wheel, linked both ways so that any of them can be taken out directly
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous == null) {
+                head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.previous;
+            } else {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+    }
+}
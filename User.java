@@ -1,24 +1,34 @@
 import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class User {
+    // the last login of a user who never logged in
+    public static final LocalDateTime NEVER = LocalDateTime.of(0, 1, 1, 0, 0, 0);
+
     private String username;
     private String password;
-    private String loginStatus;
+    // set to OFFLINE by the timer when a login block ends
+    private volatile String loginStatus;
+    // the end of the login block in milliseconds since the epoch, only meaningful while BLOCKED
+    private volatile long blockedUntil;
+    // counted by the sessions that try to log in and reset by the timer when a block ends, guarded by the user
     private int loginAttempts;
-    private LocalDateTime blockedTime;
-    private LocalDateTime lastLogin;
-    private ArrayList<String> blacklist;
-    private ArrayList<Packet> packets;
+    // read by the snapshot of the server while the user logs in
+    private volatile LocalDateTime lastLogin;
+    // users this user blocked
+    private Set<String> blacklist;
+    // users who blocked this user, kept in step with their blacklists so that a broadcast from this user only has
+    // to skip these instead of asking every recipient
+    private Set<String> blockedBy;
 
     User(String username, String password) {
         this.username = username;
         this.password = password;
         this.loginStatus = "OFFLINE";
-        blacklist = new ArrayList<>();
-        packets = new ArrayList<>();
-        lastLogin = LocalDateTime.of(0, 1, 1, 0, 0, 0);
+        blacklist = ConcurrentHashMap.newKeySet();
+        blockedBy = ConcurrentHashMap.newKeySet();
+        lastLogin = NEVER;
     }
 
     public String getUsername() {
@@ -36,40 +46,49 @@ public class User {
 
     /**
      * determines whether a user is still being blocked by the server from logging in
-     * @param blockDuration the block duration of the server for three failed-login attempts
      * @return return true if user is still being blocked else false;
      */
-    public boolean isBlocked(long blockDuration) {
-        if (loginStatus.equals("BLOCKED")){
-            long diff = blockedTime.until(LocalDateTime.now(), ChronoUnit.SECONDS);
-            if (diff >= blockDuration) {
-                this.loginStatus = "OFFLINE";
-                return false;
-            } else {
-                return true;
-            }
-        }
-        return false;
+    public boolean isBlocked() {
+        return loginStatus.equals("BLOCKED");
     }
 
-    public void setBlockedTime(LocalDateTime blockedTime) {
-        this.blockedTime = blockedTime;
+    /**
+     * block the user from logging in after too many wrong passwords
+     * @param until the end of the block in milliseconds since the epoch
+     */
+    public synchronized void blockLogin(long until) {
+        blockedUntil = until;
+        loginStatus = "BLOCKED";
+    }
+
+    public long getBlockedUntil() {
+        return blockedUntil;
+    }
+
+    /**
+     * lift the block once BLOCK_DURATION has passed, called by the timer of the server
+     */
+    public synchronized void unblock() {
+        if (loginStatus.equals("BLOCKED")) {
+            loginAttempts = 0;
+            loginStatus = "OFFLINE";
+        }
     }
 
     public void addBlacklistUser(String username) {
         blacklist.add(username);
     }
 
-    public boolean isCorrectPassword (String password) {
+    public synchronized boolean isCorrectPassword (String password) {
         loginAttempts += 1;
         return this.password.equals(password);
     }
 
-    public void resetAttempts() {
+    public synchronized void resetAttempts() {
         loginAttempts = 0;
     }
 
-    public int getLoginAttempts() {
+    public synchronized int getLoginAttempts() {
         return loginAttempts;
     }
 
@@ -82,22 +101,36 @@ public class User {
     }
 
     /**
-     * add a message to user's to-read list when another user tried to send the user a message but the user is offline
-     * @param packet the message to be read by the user later
+     * get the users this user blocked
+     * @return a live view of the users this user blocked
      */
-    public void addOfflineMessage(Packet packet) {
-        packets.add(packet);
+    public Set<String> getBlacklist() {
+        return Collections.unmodifiableSet(blacklist);
+    }
+
+    public void addBlockedBy(String username) {
+        blockedBy.add(username);
+    }
+
+    public void removeBlockedBy(String username) {
+        blockedBy.remove(username);
     }
 
     /**
-     * reset messages after user is logged in and read them
+     * check whether a user blocked this user
+     * @param username the user who might have blocked this user
+     * @return true if the user blocked this user
      */
-    public void resetMessages() {
-        packets.clear();
+    public boolean isBlockedBy(String username) {
+        return blockedBy.contains(username);
     }
 
-    public ArrayList<Packet> getMessages() {
-        return packets;
+    /**
+     * get the users who blocked this user
+     * @return a live view of the users who blocked this user
+     */
+    public Set<String> getBlockedBy() {
+        return Collections.unmodifiableSet(blockedBy);
     }
 
     public void setLastLogin(LocalDateTime lastLogin) {
@@ -0,0 +1,205 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.Supplier;
+
+import benchmarks.MessagingCore;
+
+/**
+ * Sets up the messaging system for the benchmarks in the package benchmarks, which can only reach the default
+ * package through MessagingCore.
+ * The server keeps its users and sessions in static fields, so the benchmarks run every fixture in a JVM of its
+ * own.
+ */
+public class CoreFixtures implements MessagingCore {
+    private final Path directory;
+    private final Server server;
+
+    public CoreFixtures() throws IOException {
+        directory = Files.createTempDirectory("messaging-bench");
+        Files.createFile(directory.resolve("credentials.txt"));
+        if (!Server.generateData(directory)) {
+            throw new IOException("the stores could not be opened in " + directory);
+        }
+        // long enough that no user is logged out while being measured
+        server = new Server(60, 3600);
+        // logins and blacklists are logged to the state store like on a running server
+        if (!server.restoreState(directory)) {
+            throw new IOException("the state could not be opened in " + directory);
+        }
+    }
+
+    @Override
+    public Supplier<Object> packetRoundTrip(String codec, int messageLength) {
+        PacketCodec packetCodec = codec.equals("binary") ? PacketCodec.BINARY : PacketCodec.SERIALIZED;
+        Packet packet = new Packet("hans", "message");
+        packet.setReceiver("yoda");
+        packet.setMessage("x".repeat(messageLength));
+        packet.setRequestId(42);
+        return () -> {
+            try {
+                byte[] body = packetCodec.encode(packet);
+                return packetCodec.decode(body, 0, body.length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    @Override
+    public Supplier<Object> broadcast(int recipients) {
+        addUser("sender");
+        logIn(recipients);
+        Packet packet = new Packet("sender", "broadcast");
+        packet.setMessage("hello everyone");
+        return () -> {
+            try {
+                return server.broadcast("message", packet);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    @Override
+    public Supplier<Object> listAllOnlineUsers(int online) {
+        User requester = addUser("requester");
+        logIn(online);
+        // a few of the online users blocked the requester and are cut out of the list
+        for (int i = 0; i < Math.min(online, 8); i++) {
+            requester.addBlockedBy(username(i * (online / 8)));
+        }
+        return () -> server.listAllOnlineUsers("requester");
+    }
+
+    @Override
+    public Supplier<Object> sessionChurn() {
+        addUser("churner");
+        QuietSession session = new QuietSession(server, 0);
+        boolean[] online = new boolean[1];
+        return () -> {
+            if (online[0]) {
+                server.removeSession("churner", session);
+            } else {
+                server.addSession("churner", session);
+            }
+            online[0] = !online[0];
+            return online[0];
+        };
+    }
+
+    @Override
+    public Supplier<Object> getUsersSince(int users) {
+        User requester = addUser("requester");
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < users; i++) {
+            server.recordLogin(addUser(username(i)), now.minusSeconds(i));
+        }
+        for (int i = 0; i < Math.min(users, 8); i++) {
+            requester.addBlockedBy(username(i));
+        }
+        LocalDateTime since = now.minusSeconds(users / 2);
+        return () -> server.getUsersSince("requester", since);
+    }
+
+    @Override
+    public Supplier<Object> isUserBlacklisted(int blacklistSize) {
+        User user = addUser("requester");
+        for (int i = 0; i < blacklistSize; i++) {
+            user.addBlacklistUser(username(i));
+        }
+        Random random = new Random(1);
+        String[] probes = new String[1024];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = i % 2 == 0 ? username(random.nextInt(blacklistSize)) : "stranger" + i;
+        }
+        int[] next = new int[1];
+        return () -> user.isUserBlacklisted(probes[next[0]++ & (probes.length - 1)]);
+    }
+
+    @Override
+    public Supplier<Object> loginLogout() {
+        addUser("hans");
+        QuietSession session = new QuietSession(server, 0);
+        Packet login = new Packet(null, "login");
+        login.setMessage("hans password");
+        Packet logout = new Packet(null, "logout");
+        logout.setMessage("N/A");
+        return () -> {
+            try {
+                session.handle(login);
+                return session.handle(logout);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        try (var paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String username(int i) {
+        return "user" + i;
+    }
+
+    private User addUser(String username) {
+        User user = new User(username, "password");
+        server.updateUser(user);
+        return user;
+    }
+
+    /**
+     * log users in with sessions that drop what they are sent
+     * @param count the number of users
+     */
+    private void logIn(int count) {
+        for (int i = 0; i < count; i++) {
+            User user = addUser(username(i));
+            user.setLoginStatus("ONLINE");
+            server.addSession(user.getUsername(), new QuietSession(server, i & 0xFFFF));
+        }
+    }
+
+    /**
+     * a session without a connection, it only counts the packets it is sent
+     */
+    private static class QuietSession extends ClientSession {
+        private long sent;
+
+        QuietSession(Server server, int port) {
+            super(server, new InetSocketAddress("127.0.0.1", port));
+        }
+
+        @Override
+        protected void send(Packet packet) {
+            sent++;
+        }
+
+        @Override
+        protected void sendReply(Packet packet) {
+            sent++;
+        }
+
+        @Override
+        protected void sendDelayed(Packet packet, long delayMillis) {
+            sent++;
+        }
+
+        @Override
+        protected void idleTimeoutFired() {
+        }
+
+        @Override
+        public int getOutboundQueueDepth() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,588 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A headless client that puts load on a running Server to size hardware and to check server changes end to end.
+ * It opens many sessions, logs every session in as load<n> (registering it the first time) and has it run a
+ * weighted mix of message, broadcast, whoelse, block and logout commands, then reports the throughput and the
+ * latency percentiles of every command.
+ * Sessions are spread over a few selector threads and send one request at a time, replies are matched to their
+ * request by the request id. Some sessions can be made slow readers that leave their socket unread for a while,
+ * to see how the server treats them. Against a cluster the sessions can all be pointed at one node, a session
+ * follows the node its login is moved to.
+ *
+ * usage: java -cp benchmarks/target/benchmarks.jar LoadGenerator HOST PORT SESSIONS SECONDS
+ *   -Dload.mix=message:40,broadcast:5,whoelse:30,block:20,logout:5   weights of the commands
+ *   -Dload.think=100          milliseconds a session waits between a reply and its next request
+ *   -Dload.slowReaders=0.05   share of the sessions that read slowly
+ *   -Dload.slowPause=2000     milliseconds a slow reader leaves its socket unread after each read
+ *   -Dload.ramp=1000          sessions opened per second, latencies are only recorded once all are open
+ *   -Dload.loops=<cores>      selector threads
+ *   -Dcodec=serialized        use the serialized codec instead of the binary one
+ *   -Dcompression=true        ask the server to compress large frames
+ */
+public class LoadGenerator {
+    private static final List<String> COMMANDS = List.of("message", "broadcast", "whoelse", "block", "logout");
+    private static final String PASSWORD = "load";
+
+    private final InetSocketAddress address;
+    private final int sessionCount;
+    private final PacketCodec preferredCodec;
+    private final boolean compression;
+    private final String[] mix;
+    private final int[] weights;
+    private final int totalWeight;
+    private final long thinkMillis;
+    private final double slowReaders;
+    private final long slowPauseMillis;
+
+    // shared by every loop
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder pushes = new LongAdder();
+    private final AtomicInteger loggedIn = new AtomicInteger();
+    private final AtomicInteger failedLogins = new AtomicInteger();
+    private final AtomicInteger disconnected = new AtomicInteger();
+    // latencies are recorded once every session was opened
+    private volatile boolean measuring;
+
+    // Styling texts
+    final String ANSI_RESET = "\u001B[0m";
+    final String ANSI_BOLD = "\u001B[1m";
+
+    LoadGenerator(InetSocketAddress address, int sessionCount, String mix) {
+        this.address = address;
+        this.sessionCount = sessionCount;
+        this.preferredCodec = "serialized".equals(System.getProperty("codec")) ? PacketCodec.SERIALIZED :
+                              PacketCodec.BINARY;
+        this.compression = Boolean.getBoolean("compression");
+        this.thinkMillis = Long.getLong("load.think", 100);
+        this.slowReaders = Double.parseDouble(System.getProperty("load.slowReaders", "0.05"));
+        this.slowPauseMillis = Long.getLong("load.slowPause", 2000);
+
+        String[] entries = mix.split(",");
+        this.mix = new String[entries.length];
+        this.weights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] entry = entries[i].split(":");
+            if (!COMMANDS.contains(entry[0])) {
+                throw new IllegalArgumentException("unknown command " + entry[0]);
+            }
+            this.mix[i] = entry[0];
+            total += Integer.parseInt(entry[1]);
+            this.weights[i] = total;
+        }
+        this.totalWeight = total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.out.println("===== Error usage: java LoadGenerator HOST PORT SESSIONS SECONDS =====");
+            return;
+        }
+        InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        int sessions = Integer.parseInt(args[2]);
+        long seconds = Long.parseLong(args[3]);
+        String mix = System.getProperty("load.mix", "message:40,broadcast:5,whoelse:30,block:20,logout:5");
+        int loopCount = Integer.getInteger("load.loops", Runtime.getRuntime().availableProcessors());
+        int ramp = Integer.getInteger("load.ramp", 1000);
+
+        new LoadGenerator(address, sessions, mix).run(loopCount, ramp, seconds);
+    }
+
+    /**
+     * open the sessions, let them run for the given time and report
+     * @param loopCount the number of selector threads
+     * @param ramp the number of sessions opened per second
+     * @param seconds how long to measure once every session was opened
+     * @throws Exception throw exception when a selector can not be opened or the thread is interrupted
+     */
+    private void run(int loopCount, int ramp, long seconds) throws Exception {
+        Loop[] loops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new Loop("load-" + i);
+            loops[i].start();
+        }
+
+        System.out.println("===== Opening " + sessionCount + " sessions to " + address + " =====");
+        long rampStart = System.nanoTime();
+        Random random = new Random();
+        for (int i = 0; i < sessionCount; i++) {
+            Loop loop = loops[i % loopCount];
+            Session session = new Session(loop, i, random.nextDouble() < slowReaders);
+            loop.execute(session::open);
+            // keep to the ramp so that the accept backlog of the server is not overrun
+            long due = rampStart + TimeUnit.SECONDS.toNanos(i + 1) / ramp;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        System.out.println("===== Measuring for " + seconds + " seconds =====");
+        completed.reset();
+        measuring = true;
+        long start = System.nanoTime();
+        for (long second = 1; second <= seconds; second++) {
+            TimeUnit.NANOSECONDS.sleep(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            if (second % 5 == 0 || second == seconds) {
+                System.out.printf("===== %ds: %.0f requests/s, %d logged in, %d disconnected =====%n", second,
+                                  completed.sum() / (double) second, loggedIn.get(), disconnected.get());
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        measuring = false;
+        int loggedInAtEnd = loggedIn.get();
+
+        Map<String, LatencyHistogram> histograms = new TreeMap<>();
+        for (Loop loop : loops) {
+            loop.shutdown();
+            loop.join();
+            for (Map.Entry<String, LatencyHistogram> entry : loop.histograms.entrySet()) {
+                histograms.computeIfAbsent(entry.getKey(), command -> new LatencyHistogram()).add(entry.getValue());
+            }
+        }
+        report(histograms, elapsed, loggedInAtEnd);
+    }
+
+    private void report(Map<String, LatencyHistogram> histograms, long elapsedNanos, int loggedInAtEnd) {
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram histogram : histograms.values()) {
+            all.add(histogram);
+        }
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println(ANSI_BOLD + "\n============= Load Report =============" + ANSI_RESET);
+        System.out.printf("%d sessions, %.1f s, %d requests, %.1f requests/s%n", sessionCount, seconds,
+                          all.getCount(), all.getCount() / seconds);
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %10s %10s%n", "command", "count", "mean ms", "p50 ms",
+                          "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            printRow(entry.getKey(), entry.getValue());
+        }
+        printRow("all", all);
+        System.out.println("logged in at the end: " + loggedInAtEnd + ", failed logins: " + failedLogins.get() +
+                           ", disconnected by the server: " + disconnected.get() + ", pushes received: " +
+                           pushes.sum());
+    }
+
+    private static void printRow(String command, LatencyHistogram histogram) {
+        System.out.printf("%-10s %10d %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f%n", command, histogram.getCount(),
+                          histogram.getMean() / 1e6, histogram.getValueAtPercentile(50) / 1e6,
+                          histogram.getValueAtPercentile(90) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+                          histogram.getValueAtPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    /**
+     * pick the next command of a session by the weights of the mix
+     */
+    private String nextCommand(Random random) {
+        int pick = random.nextInt(totalWeight);
+        for (int i = 0; i < weights.length; i++) {
+            if (pick < weights[i]) {
+                return mix[i];
+            }
+        }
+        return mix[mix.length - 1];
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                           Event Loops                          │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * a selector thread that drives many sessions, everything that touches its sessions runs on it
+     */
+    private class Loop extends Thread {
+        private final Selector selector;
+        // read buffer shared by the sessions of this loop, a session only keeps the bytes of a partial frame
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+        // the latencies of every command, only touched by this loop until it ended
+        private final Map<String, LatencyHistogram> histograms = new HashMap<>();
+        private final Random random = new Random();
+        private volatile boolean running = true;
+
+        Loop(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * run a task after a delay, only called on the loop thread
+         */
+        void schedule(Runnable task, long delayMillis) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            scheduledTasks.add(new ScheduledTask(deadline, task));
+        }
+
+        void record(String command, long nanos) {
+            if (measuring) {
+                histograms.computeIfAbsent(command, name -> new LatencyHistogram()).record(nanos);
+                completed.increment();
+            }
+        }
+
+        /**
+         * close every session and stop the loop
+         */
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    ScheduledTask next = scheduledTasks.peek();
+                    selector.select(next == null ? 0 :
+                                    Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime())));
+
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        ((Session) key.attachment()).handle(key);
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while (!scheduledTasks.isEmpty() && scheduledTasks.peek().deadline <= now) {
+                        scheduledTasks.poll().task.run();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((Session) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long deadline;
+        private final Runnable task;
+
+        ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    /* ┌────────────────────────────────────────────────────────────────┐ */
+    /* │                             Sessions                           │ */
+    /* └────────────────────────────────────────────────────────────────┘ */
+
+    /**
+     * one simulated user, with at most one request in flight
+     */
+    private class Session {
+        private final Loop loop;
+        private final String username;
+        private final boolean slowReader;
+        // the server the session talks to, another node once a cluster answered with the node of the user
+        private InetSocketAddress address = LoadGenerator.this.address;
+        private SocketChannel channel;
+        private SelectionKey key;
+        // null until the server answered the handshake
+        private PacketCodec codec;
+        // the bytes of a frame that has not been fully received yet, null when there is none
+        private ByteBuffer pending;
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private int nextRequestId = 1;
+        // the request in flight, 0 when the session is thinking
+        private int awaitedId;
+        private String awaitedCommand;
+        private long sentAt;
+        // the user this session blocked, unblocked by its next block command
+        private String blockedUser;
+        private boolean isLoggedIn;
+        private boolean closed;
+
+        Session(Loop loop, int number, boolean slowReader) {
+            this.loop = loop;
+            this.username = "load" + number;
+            this.slowReader = slowReader;
+        }
+
+        void open() {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                if (channel.connect(address)) {
+                    connected();
+                }
+            } catch (IOException e) {
+                System.out.println("===== " + username + " could not connect: " + e.getMessage() + " =====");
+                close();
+            }
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+                    connected();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    disconnected.incrementAndGet();
+                }
+                close();
+            }
+        }
+
+        private void connected() throws IOException {
+            key.interestOps(SelectionKey.OP_READ);
+            // the client starts with the id of the codec it would like to use
+            int handshake = preferredCodec.getId() | (compression ? PacketCodec.COMPRESSION_BIT : 0);
+            writeQueue.add(ByteBuffer.wrap(new byte[]{(byte) handshake}));
+            flush();
+        }
+
+        private void read() throws IOException {
+            SocketChannel current = channel;
+            ByteBuffer readBuffer = loop.readBuffer;
+            readBuffer.clear();
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException();
+            }
+            readBuffer.flip();
+
+            ByteBuffer input = readBuffer;
+            if (pending != null) {
+                ByteBuffer joined = ByteBuffer.allocate(pending.remaining() + readBuffer.remaining());
+                joined.put(pending).put(readBuffer).flip();
+                input = joined;
+            }
+
+            if (codec == null && input.hasRemaining()) {
+                codec = PacketCodec.forHandshake(input.get() & 0xFF, null);
+                request("register", username + " " + PASSWORD);
+            }
+            while (!closed && channel == current && input.remaining() >= PacketCodec.HEADER_LENGTH) {
+                int header = input.getInt(input.position());
+                int length = PacketCodec.frameLength(header);
+                if (input.remaining() < PacketCodec.HEADER_LENGTH + length) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                input.position(input.position() + PacketCodec.HEADER_LENGTH);
+                input.get(body);
+                receive(codec.decodeFrame(header, body, 0, length));
+            }
+
+            if (channel != current) {
+                // moved to another node, what is left belongs to the old connection
+                return;
+            }
+            // keep the partial frame until the rest of it arrives
+            if (input.hasRemaining() && !closed) {
+                pending = ByteBuffer.allocate(input.remaining());
+                pending.put(input).flip();
+            } else {
+                pending = null;
+            }
+
+            if (slowReader && !closed) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.schedule(() -> {
+                    if (!closed) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    }
+                }, slowPauseMillis);
+            }
+        }
+
+        private void receive(Packet packet) throws IOException {
+            if (packet.isPush()) {
+                pushes.increment();
+                switch (packet.getType()) {
+                    case "messages" -> {
+                        // acknowledge every chunk of unread messages so that the mailbox is emptied
+                        String message = packet.getMessage();
+                        if (message.startsWith("CHUNK ")) {
+                            send("messagesack", message.split("[ \n]")[1], 0);
+                        }
+                    }
+                    case "timeout" -> {
+                        isLoggedIn = false;
+                        loggedIn.decrementAndGet();
+                        request("login", username + " " + PASSWORD);
+                    }
+                }
+                return;
+            }
+            if (packet.getRequestId() != awaitedId) {
+                return;
+            }
+            awaitedId = 0;
+            // the replies of a slow reader wait in its socket, they would drown the latencies of the others
+            loop.record(slowReader ? "slow-reader" : awaitedCommand, System.nanoTime() - sentAt);
+
+            switch (awaitedCommand) {
+                case "register", "login" -> {
+                    String status = packet.getMessage().split(" ")[1];
+                    if (status.equals("SUCCESS")) {
+                        isLoggedIn = true;
+                        loggedIn.incrementAndGet();
+                        think();
+                    } else if (status.equals("MOVED")) {
+                        move(packet.getMessage().split(" ")[2]);
+                    } else if (status.equals("USERNAME") && awaitedCommand.equals("register")) {
+                        // registered by an earlier run
+                        request("login", username + " " + PASSWORD);
+                    } else {
+                        failedLogins.incrementAndGet();
+                        close();
+                    }
+                }
+                case "logout" -> {
+                    isLoggedIn = false;
+                    loggedIn.decrementAndGet();
+                    request("login", username + " " + PASSWORD);
+                }
+                default -> think();
+            }
+        }
+
+        private void think() {
+            loop.schedule(this::nextRequest, thinkMillis);
+        }
+
+        private void nextRequest() {
+            if (closed || !isLoggedIn) {
+                return;
+            }
+            String command = nextCommand(loop.random);
+            try {
+                switch (command) {
+                    case "message" -> {
+                        String target = "load" + loop.random.nextInt(sessionCount);
+                        request("message", target + " hello from " + username);
+                    }
+                    case "broadcast" -> request("broadcast", "load test broadcast from " + username);
+                    case "whoelse" -> request("whoelse", "N/A");
+                    case "block" -> {
+                        if (blockedUser == null) {
+                            blockedUser = "load" + loop.random.nextInt(sessionCount);
+                            request("block", blockedUser);
+                        } else {
+                            request("unblock", blockedUser);
+                            blockedUser = null;
+                        }
+                    }
+                    case "logout" -> request("logout", "N/A");
+                }
+            } catch (IOException e) {
+                disconnected.incrementAndGet();
+                close();
+            }
+        }
+
+        private void request(String type, String message) throws IOException {
+            awaitedId = nextRequestId++;
+            awaitedCommand = type;
+            sentAt = System.nanoTime();
+            send(type, message, awaitedId);
+        }
+
+        private void send(String type, String message, int requestId) throws IOException {
+            Packet packet = new Packet(null, type);
+            packet.setMessage(message);
+            packet.setRequestId(requestId);
+            writeQueue.add(codec.frame(packet));
+            flush();
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer frame;
+            while ((frame = writeQueue.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * start over on the node of a cluster that keeps the user, the registration is sent again from there
+         * @param node "<host>:<port>" of the node
+         */
+        private void move(String node) throws IOException {
+            int colon = node.lastIndexOf(':');
+            address = new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+            key.cancel();
+            channel.close();
+            if (codec != null) {
+                codec.release();
+            }
+            codec = null;
+            pending = null;
+            writeQueue.clear();
+            open();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (isLoggedIn) {
+                loggedIn.decrementAndGet();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                if (codec != null) {
+                    codec.release();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * User.isUserBlacklisted against blacklists of growing size, half of the checks are for blocked users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlacklistBenchmark {
+    @Param({"10", "10000", "1000000"})
+    public int blacklistSize;
+
+    private MessagingCore core;
+    private Supplier<Object> check;
+
+    @Setup
+    public void setUp() {
+        core = MessagingCore.load();
+        check = core.isUserBlacklisted(blacklistSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public Object isUserBlacklisted() {
+        return check.get();
+    }
+}
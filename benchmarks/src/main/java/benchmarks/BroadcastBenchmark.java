@@ -0,0 +1,40 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Server.broadcast of one message to every logged in user, the sessions only count what they are sent so this is
+ * the cost of the fan-out itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int recipients;
+
+    private MessagingCore core;
+    private Supplier<Object> broadcast;
+
+    @Setup
+    public void setUp() {
+        core = MessagingCore.load();
+        broadcast = core.broadcast(recipients);
+    }
+
+    @TearDown
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public Object broadcast() {
+        return broadcast.get();
+    }
+}
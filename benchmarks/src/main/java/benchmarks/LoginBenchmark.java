@@ -0,0 +1,37 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Logins handled per millisecond, each followed by a logout so that the user can log in again. Both go through
+ * the command handling that ClientThread and NioConnection share, without a connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginBenchmark {
+    private MessagingCore core;
+    private Supplier<Object> loginLogout;
+
+    @Setup
+    public void setUp() {
+        core = MessagingCore.load();
+        loginLogout = core.loginLogout();
+    }
+
+    @TearDown
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public Object loginLogout() {
+        return loginLogout.get();
+    }
+}
@@ -0,0 +1,69 @@
+package benchmarks;
+
+import java.util.function.Supplier;
+
+/**
+ * The operations of the messaging system that the benchmarks measure.
+ * The messaging system lives in the default package, which JMH does not accept benchmarks in and which a named
+ * package can not refer to, so CoreFixtures in the default package implements this interface and is loaded by
+ * name. Every method prepares the state an operation needs and returns the operation, ready to be called in the
+ * measured loop.
+ */
+public interface MessagingCore extends AutoCloseable {
+
+    /**
+     * @return the fixtures of the messaging system, each with a server of its own in a temporary directory
+     */
+    static MessagingCore load() {
+        try {
+            return (MessagingCore) Class.forName("CoreFixtures").getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("CoreFixtures is not on the class path", e);
+        }
+    }
+
+    /**
+     * @param codec "serialized" or "binary"
+     * @param messageLength the length of the message in the packet
+     * @return an operation that encodes a packet and decodes it again
+     */
+    Supplier<Object> packetRoundTrip(String codec, int messageLength);
+
+    /**
+     * @param recipients the number of logged in users besides the sender
+     * @return an operation that broadcasts a message to every logged in user
+     */
+    Supplier<Object> broadcast(int recipients);
+
+    /**
+     * @param online the number of logged in users besides the requester
+     * @return an operation that answers whoelse
+     */
+    Supplier<Object> listAllOnlineUsers(int online);
+
+    /**
+     * @return an operation that adds a session for a user who is not logged in and removes it again on the next
+     * call, the churn of logins and logouts the online users see
+     */
+    Supplier<Object> sessionChurn();
+
+    /**
+     * @param users the number of users in the login history, half of them logged in within the asked period
+     * @return an operation that answers whoelsesince
+     */
+    Supplier<Object> getUsersSince(int users);
+
+    /**
+     * @param blacklistSize the number of users the user blocked
+     * @return an operation that checks whether a user is blocked, every other check is for a blocked user
+     */
+    Supplier<Object> isUserBlacklisted(int blacklistSize);
+
+    /**
+     * @return an operation that logs a user in and out again through the command handling of a session
+     */
+    Supplier<Object> loginLogout();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,55 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The answers to whoelse and whoelsesince, for a requester that a few of the listed users blocked, and whoelse
+ * while another user logs in or out before every request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OnlineUsersBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int users;
+
+    private MessagingCore core;
+    private Supplier<Object> whoelse;
+    private Supplier<Object> whoelsesince;
+    private Supplier<Object> churn;
+
+    @Setup
+    public void setUp() {
+        core = MessagingCore.load();
+        whoelse = core.listAllOnlineUsers(users);
+        whoelsesince = core.getUsersSince(users);
+        churn = core.sessionChurn();
+    }
+
+    @TearDown
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public Object listAllOnlineUsers() {
+        return whoelse.get();
+    }
+
+    @Benchmark
+    public Object listAllOnlineUsersUnderChurn() {
+        churn.get();
+        return whoelse.get();
+    }
+
+    @Benchmark
+    public Object getUsersSince() {
+        return whoelsesince.get();
+    }
+}
@@ -0,0 +1,42 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding a packet and decoding it again with either codec, the cost every packet pays on both ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+    @Param({"serialized", "binary"})
+    public String codec;
+
+    @Param({"16", "1024"})
+    public int messageLength;
+
+    private MessagingCore core;
+    private Supplier<Object> roundTrip;
+
+    @Setup
+    public void setUp() {
+        core = MessagingCore.load();
+        roundTrip = core.packetRoundTrip(codec, messageLength);
+    }
+
+    @TearDown
+    public void tearDown() {
+        core.close();
+    }
+
+    @Benchmark
+    public Object roundTrip() {
+        return roundTrip.get();
+    }
+}
@@ -0,0 +1,50 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Every command of the protocol survives the binary codec and is sent with its own opcode rather than as a string.
+ */
+class BinaryCodecTest {
+    private final PacketCodec codec = PacketCodec.BINARY;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"login", "register", "message", "broadcast", "whoelse", "whoelsesince", "block",
+                            "unblock", "logout", "startprivate", "private", "exit", "messages", "timeout", "SERVER",
+                            "messagesack", "ack", "join", "leave", "channel"})
+    void roundTripsWithAnOpcode(String type) throws IOException {
+        Packet packet = new Packet("hans", type);
+        packet.setReceiver("yoda");
+        packet.setMessage("general hello there");
+        packet.setRequestId(42);
+
+        byte[] body = codec.encode(packet);
+        assertNotEquals(0, body[0], type + " has no opcode");
+
+        Packet decoded = codec.decode(body, 0, body.length);
+        assertEquals(type, decoded.getType());
+        assertEquals("hans", decoded.getSender());
+        assertEquals("yoda", decoded.getReceiver());
+        assertEquals("general hello there", decoded.getMessage());
+        assertEquals(42, decoded.getRequestId());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"result", "some-future-command"})
+    void roundTripsWithoutAnOpcode(String type) throws IOException {
+        Packet packet = new Packet(null, type);
+        packet.setMessage("N/A");
+
+        byte[] body = codec.encode(packet);
+        assertEquals(0, body[0]);
+
+        Packet decoded = codec.decode(body, 0, body.length);
+        assertEquals(type, decoded.getType());
+        assertNull(decoded.getSender());
+        assertEquals("N/A", decoded.getMessage());
+        assertEquals(0, decoded.getRequestId());
+    }
+}
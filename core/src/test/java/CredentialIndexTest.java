@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The table of the credential file is built from chunks of the file scanned in parallel, whenever it is missing,
+ * damaged or older than an edit of the file, and finds every user the file has.
+ */
+class CredentialIndexTest {
+    // enough for several chunks of 1 MB
+    private static final int USERS = 150_000;
+
+    @TempDir
+    Path directory;
+    private String loaders;
+
+    @BeforeEach
+    void scanInParallel() throws IOException {
+        loaders = System.setProperty("credentials.loaders", "4");
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < USERS; i++) {
+            // lines of different lengths so that chunks end in the middle of a line
+            log.append("user").append(i).append(' ').append("pw").append(Integer.toString(i, 36).repeat(i % 3 + 1))
+               .append('\n');
+        }
+        // a later line of a user replaces the earlier one, even from another chunk
+        log.append("user0 changed\n");
+        Files.writeString(log(), log);
+    }
+
+    @AfterEach
+    void restoreLoaders() {
+        if (loaders == null) {
+            System.clearProperty("credentials.loaders");
+        } else {
+            System.setProperty("credentials.loaders", loaders);
+        }
+    }
+
+    @Test
+    void findsEveryUserOfAScannedFile() throws IOException {
+        assertTrue(Files.size(log()) > 2 << 20);
+        CredentialStore store = open();
+        assertEveryUser(store);
+        store.close();
+    }
+
+    @Test
+    void rebuildsAMissingOrDamagedTable() throws IOException {
+        open().close();
+
+        Files.delete(index());
+        CredentialStore store = open();
+        assertEveryUser(store);
+        store.close();
+
+        Files.write(index(), new byte[64], StandardOpenOption.WRITE);
+        store = open();
+        assertEveryUser(store);
+        store.close();
+    }
+
+    @Test
+    void rebuildsTheTableAfterAnEditInPlace() throws IOException {
+        CredentialStore store = open();
+        store.add("luke", "sky").join();
+        store.close();
+
+        // the same length, so only the time the file was modified gives the edit away
+        String edited = Files.readString(log()).replace("\nuser42 pw16\n", "\nuser42 pw17\n");
+        Files.writeString(log(), edited);
+        Files.setLastModifiedTime(log(), FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+
+        store = open();
+        assertEquals("pw17", store.getPassword("user42"));
+        assertEquals("sky", store.getPassword("luke"));
+        assertEquals(USERS + 1, store.size());
+        store.close();
+    }
+
+    private static void assertEveryUser(CredentialStore store) throws IOException {
+        assertEquals(USERS, store.size());
+        assertEquals("changed", store.getPassword("user0"));
+        for (int i = 1; i < USERS; i++) {
+            assertEquals("pw" + Integer.toString(i, 36).repeat(i % 3 + 1), store.getPassword("user" + i));
+        }
+        assertNull(store.getPassword("user" + USERS));
+    }
+
+    private CredentialStore open() throws IOException {
+        return CredentialStore.open(log(), index(), CredentialStore.Durability.WRITE);
+    }
+
+    private Path log() {
+        return directory.resolve("credentials.txt");
+    }
+
+    private Path index() {
+        return directory.resolve("credentials.idx");
+    }
+}
@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Registrations are still there after the store is closed and opened again, and a registration that a crash left
+ * half written is cut off instead of being taken for a user.
+ */
+class CredentialStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void keepsRegistrationsAcrossARestart() throws IOException {
+        CredentialStore store = open();
+        store.add("hans", "falcon").join();
+        store.add("yoda", "wise").join();
+        store.close();
+
+        store = open();
+        assertEquals("falcon", store.getPassword("hans"));
+        assertEquals("wise", store.getPassword("yoda"));
+        assertNull(store.getPassword("luke"));
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    @Test
+    void cutsOffATornRegistration() throws IOException {
+        CredentialStore store = open();
+        store.add("hans", "falcon").join();
+        store.close();
+
+        // the crash came in the middle of the line of the next user
+        Files.write(log(), "luke sk".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        store = open();
+        assertNull(store.getPassword("luke"));
+        assertEquals("falcon", store.getPassword("hans"));
+        store.add("luke", "sky").join();
+        store.close();
+
+        assertEquals("hans falcon\nluke sky\n", Files.readString(log()));
+        store = open();
+        assertEquals("sky", store.getPassword("luke"));
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    @Test
+    void keepsTheLastLineOfAHandWrittenFile() throws IOException {
+        Files.writeString(log(), "hans falcon\nyoda wise");
+
+        CredentialStore store = open();
+        assertEquals("wise", store.getPassword("yoda"));
+        store.add("luke", "sky").join();
+        store.close();
+
+        store = open();
+        assertEquals("wise", store.getPassword("yoda"));
+        assertEquals("sky", store.getPassword("luke"));
+        assertEquals(3, store.size());
+        store.close();
+    }
+
+    @Test
+    void readsALaterLineOfAUserOverAnEarlierOne() throws IOException {
+        Files.writeString(log(), "hans falcon\nyoda wise\nhans solo\n");
+
+        CredentialStore store = open();
+        assertEquals("solo", store.getPassword("hans"));
+        assertEquals(2, store.size());
+        store.close();
+    }
+
+    private CredentialStore open() throws IOException {
+        return CredentialStore.open(log(), directory.resolve("credentials.idx"), CredentialStore.Durability.WRITE);
+    }
+
+    private Path log() {
+        return directory.resolve("credentials.txt");
+    }
+}
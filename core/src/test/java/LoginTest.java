@@ -0,0 +1,136 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A user is blocked from logging in after three wrong passwords until the timer lifts the block, and the attempts
+ * are counted right while several clients guess at the same time.
+ * The server keeps its users in static fields, so every test uses users of its own.
+ */
+class LoginTest {
+    private static final long BLOCK_SECONDS = 1;
+
+    @TempDir
+    static Path directory;
+    private static Server server;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        Files.writeString(directory.resolve("credentials.txt"), "hans falcon\nyoda wise\nluke sky\nleia rebel\n");
+        assertTrue(Server.generateData(directory));
+        server = new Server(BLOCK_SECONDS, 3600);
+        assertTrue(server.restoreState(directory));
+    }
+
+    @Test
+    void blocksAfterThreeWrongPasswordsUntilTheBlockEnds() throws Exception {
+        TestSession session = new TestSession();
+        assertEquals("hans PASSWORD", session.request("login", "hans wrong"));
+        assertEquals("hans PASSWORD", session.request("login", "hans wrong"));
+        assertEquals("hans BLOCKED", session.request("login", "hans wrong"));
+        // the right password does not help while the block lasts
+        assertEquals("hans BLOCKED", session.request("login", "hans falcon"));
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(BLOCK_SECONDS) + 500);
+        assertFalse(server.getUser("hans").isBlocked());
+        assertEquals(0, server.getUser("hans").getLoginAttempts());
+        assertEquals("hans SUCCESS", session.request("login", "hans falcon"));
+    }
+
+    @Test
+    void startsCountingAgainAfterALogin() throws Exception {
+        TestSession session = new TestSession();
+        assertEquals("yoda PASSWORD", session.request("login", "yoda wrong"));
+        assertEquals("yoda PASSWORD", session.request("login", "yoda wrong"));
+        assertEquals("yoda SUCCESS", session.request("login", "yoda wise"));
+        assertEquals(0, server.getUser("yoda").getLoginAttempts());
+
+        session.request("logout", "N/A");
+        assertEquals("yoda PASSWORD", session.request("login", "yoda wrong"));
+        assertEquals("yoda PASSWORD", session.request("login", "yoda wrong"));
+    }
+
+    @Test
+    void refusesASecondLoginOfAnOnlineUser() throws Exception {
+        assertEquals("luke SUCCESS", new TestSession().request("login", "luke sky"));
+        assertEquals("luke ONLINE", new TestSession().request("login", "luke sky"));
+    }
+
+    @Test
+    void countsEveryAttemptOfClientsGuessingAtTheSameTime() throws Exception {
+        User user = server.getUser("leia");
+        int threads = 8;
+        int attempts = 10_000;
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<?>> done = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            done.add(clients.submit(() -> {
+                for (int j = 0; j < attempts; j++) {
+                    user.isCorrectPassword("wrong");
+                }
+            }));
+        }
+        for (Future<?> client : done) {
+            client.get();
+        }
+        clients.shutdown();
+        assertEquals(threads * attempts, user.getLoginAttempts());
+
+        // a block that ends resets the count, and only a block does
+        user.unblock();
+        assertEquals(threads * attempts, user.getLoginAttempts());
+        user.blockLogin(System.currentTimeMillis());
+        user.unblock();
+        assertEquals(0, user.getLoginAttempts());
+        assertFalse(user.isBlocked());
+    }
+
+    /**
+     * a session without a connection that hands the replies to the test
+     */
+    private static class TestSession extends ClientSession {
+        private final LinkedBlockingQueue<Packet> replies = new LinkedBlockingQueue<>();
+
+        TestSession() {
+            super(LoginTest.server, new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        String request(String type, String message) throws Exception {
+            Packet packet = new Packet(null, type);
+            packet.setMessage(message);
+            handle(packet);
+            Packet reply = replies.poll();
+            return reply == null ? null : reply.getMessage();
+        }
+
+        @Override
+        protected void send(Packet packet) {
+        }
+
+        @Override
+        protected void sendReply(Packet packet) {
+            replies.add(packet);
+        }
+
+        @Override
+        protected void sendDelayed(Packet packet, long delayMillis) {
+        }
+
+        @Override
+        protected void idleTimeoutFired() {
+        }
+
+        @Override
+        public int getOutboundQueueDepth() {
+            return 0;
+        }
+    }
+}
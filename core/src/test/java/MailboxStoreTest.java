@@ -0,0 +1,145 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Offline messages are still there after the store is closed and opened again, and neither a message nor a read
+ * cursor that a crash left half written keeps the user from reading the mailbox.
+ */
+class MailboxStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void keepsMessagesAcrossARestart() throws IOException {
+        MailboxStore store = open();
+        for (int i = 0; i < 3; i++) {
+            store.append("yoda", message("hello " + i)).join();
+        }
+        store.close();
+
+        store = open();
+        assertEquals(List.of("hello 0", "hello 1", "hello 2"), readAll(store, "yoda"));
+        assertEquals(3, store.unread("yoda"));
+        store.close();
+    }
+
+    @Test
+    void cutsOffATornMessageBeforeAppending() throws IOException {
+        MailboxStore store = open();
+        store.append("yoda", message("before the crash")).join();
+        store.close();
+
+        // the crash came after the length of the next message and a part of its body
+        Path segment = onlySegment();
+        long complete = Files.size(segment);
+        Files.write(segment, ByteBuffer.allocate(14).putInt(100).put(new byte[10]).array(),
+                    StandardOpenOption.APPEND);
+
+        store = open();
+        store.append("yoda", message("after the crash")).join();
+        assertEquals(List.of("before the crash", "after the crash"), readAll(store, "yoda"));
+        assertEquals(2, store.unread("yoda"));
+        store.close();
+        assertTrue(Files.size(segment) > complete);
+    }
+
+    @Test
+    void forgetsAMailboxOnceEverythingIsAcknowledged() throws IOException {
+        MailboxStore store = open();
+        store.append("yoda", message("one")).join();
+        store.append("yoda", message("two")).join();
+
+        MailboxStore.Chunk chunk = store.read("yoda", store.start("yoda"), 1, Integer.MAX_VALUE);
+        assertEquals(1, chunk.getPackets().size());
+        assertTrue(chunk.hasMore());
+        store.acknowledge("yoda", chunk.getNext(), 1).join();
+        store.close();
+
+        store = open();
+        assertEquals(List.of("two"), readAll(store, "yoda"));
+        assertEquals(1, store.unread("yoda"));
+        MailboxStore.Chunk rest = store.read("yoda", store.start("yoda"), 10, Integer.MAX_VALUE);
+        store.acknowledge("yoda", rest.getNext(), rest.getPackets().size()).join();
+        assertEquals(List.of(), readAll(store, "yoda"));
+        assertEquals(0, store.unread("yoda"));
+        store.close();
+    }
+
+    @Test
+    void readsFromTheStartWhenTheCursorFileIsCutShort() throws IOException {
+        MailboxStore store = open();
+        store.append("yoda", message("one")).join();
+        store.append("yoda", message("two")).join();
+        MailboxStore.Chunk chunk = store.read("yoda", store.start("yoda"), 1, Integer.MAX_VALUE);
+        store.acknowledge("yoda", chunk.getNext(), 1).join();
+        store.close();
+
+        Path readFile = onlySegment().resolveSibling("read");
+        assertEquals(8, Files.size(readFile));
+        Files.write(readFile, new byte[3]);
+
+        // the acknowledgement is lost with the cursor, the message is delivered again rather than never
+        store = open();
+        assertEquals(List.of("one", "two"), readAll(store, "yoda"));
+        store.close();
+    }
+
+    @Test
+    void keepsTheUnreadCountOfEveryMailboxUpToDate() throws IOException {
+        MailboxStore store = open();
+        store.append("yoda", message("before the count")).join();
+        store.append("hans", message("before the count")).join();
+        store.close();
+
+        store = open();
+        // yoda is counted on the first ask, hans by the count in the background
+        assertEquals(1, store.unread("yoda"));
+        store.countInBackground();
+        for (int i = 0; i < 3; i++) {
+            store.append("yoda", message("after " + i));
+        }
+        store.append("leia", message("new mailbox"));
+        assertEquals(4, store.unread("yoda"));
+        assertEquals(1, store.unread("leia"));
+
+        MailboxStore.Chunk chunk = store.read("yoda", store.start("yoda"), 2, Integer.MAX_VALUE);
+        store.acknowledge("yoda", chunk.getNext(), 2);
+        assertEquals(2, store.unread("yoda"));
+        assertEquals(1, store.unread("hans"));
+        assertEquals(0, store.unread("nobody"));
+        store.close();
+    }
+
+    private MailboxStore open() throws IOException {
+        return new MailboxStore(directory, CredentialStore.Durability.WRITE);
+    }
+
+    private static Packet message(String text) {
+        Packet packet = new Packet("hans", "message");
+        packet.setReceiver("yoda");
+        packet.setMessage(text);
+        return packet;
+    }
+
+    private static List<String> readAll(MailboxStore store, String username) throws IOException {
+        return store.read(username, store.start(username), Integer.MAX_VALUE, Integer.MAX_VALUE).getPackets()
+                    .stream().map(Packet::getMessage).collect(Collectors.toList());
+    }
+
+    private Path onlySegment() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            List<Path> segments = files.filter(file -> file.toString().endsWith(".seg")).collect(Collectors.toList());
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+}
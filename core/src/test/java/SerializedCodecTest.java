@@ -0,0 +1,49 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The serialized codec still reads packets but refuses a frame holding any other object.
+ */
+class SerializedCodecTest {
+    private final PacketCodec codec = PacketCodec.SERIALIZED;
+
+    @Test
+    void roundTripsAPacket() throws IOException {
+        Packet packet = new Packet("hans", "message");
+        packet.setReceiver("yoda");
+        packet.setMessage("hello there");
+        packet.setRequestId(42);
+
+        byte[] body = codec.encode(packet);
+        Packet decoded = codec.decode(body, 0, body.length);
+        assertEquals("message", decoded.getType());
+        assertEquals("hans", decoded.getSender());
+        assertEquals("yoda", decoded.getReceiver());
+        assertEquals("hello there", decoded.getMessage());
+        assertEquals(42, decoded.getRequestId());
+    }
+
+    @Test
+    void refusesAnythingButAPacket() throws IOException {
+        HashMap<String, String> map = new HashMap<>();
+        map.put("hans", "falcon");
+        for (Object object : new Object[]{map, new ArrayList<>(), new int[1 << 16]}) {
+            byte[] body = serialize(object);
+            assertThrows(InvalidClassException.class, () -> codec.decode(body, 0, body.length),
+                         object.getClass().getName());
+        }
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes)) {
+            objectOutputStream.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,136 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The state of the users is restored from the log alone, from a snapshot and the log after it, and from a log whose
+ * last record a crash left half written.
+ */
+class StateStoreTest {
+    private static final LocalDateTime LOGIN = LocalDateTime.of(2026, 10, 18, 12, 30, 15, 123_000_000);
+
+    @TempDir
+    Path directory;
+    private Map<String, User> users;
+
+    @BeforeEach
+    void newUsers() {
+        users = new HashMap<>();
+    }
+
+    @Test
+    void restoresTheChangesInTheLog() throws IOException {
+        StateStore store = open();
+        store.logLogin("hans", LOGIN).join();
+        store.logBlacklist("hans", "yoda", true).join();
+        store.logBlacklist("hans", "luke", true).join();
+        store.logBlacklist("hans", "luke", false).join();
+        store.logBlockedBy("yoda", "hans", true).join();
+        long until = System.currentTimeMillis() + 60_000;
+        store.logLoginBlock("luke", until).join();
+        store.close();
+
+        newUsers();
+        open().close();
+        assertEquals(LOGIN, user("hans").getLastLogin());
+        assertEquals(Set.of("yoda"), user("hans").getBlacklist());
+        assertTrue(user("yoda").isBlockedBy("hans"));
+        assertTrue(user("luke").isBlocked());
+        assertEquals(until, user("luke").getBlockedUntil());
+    }
+
+    @Test
+    void forgetsABlockThatEndedWhileTheServerWasDown() throws IOException {
+        StateStore store = open();
+        store.logLoginBlock("luke", System.currentTimeMillis() - 1).join();
+        store.close();
+
+        newUsers();
+        open().close();
+        assertFalse(user("luke").isBlocked());
+    }
+
+    @Test
+    void restoresASnapshotAndTheLogAfterIt() throws IOException {
+        StateStore store = open();
+        store.logLogin("hans", LOGIN).join();
+        user("hans").setLastLogin(LOGIN);
+        store.logBlacklist("hans", "yoda", true).join();
+        user("hans").addBlacklistUser("yoda");
+        assertTrue(store.snapshot(users.values()).join());
+        // only the segment started for the changes after the snapshot is left
+        assertEquals(1, segments().size());
+
+        store.logBlacklist("hans", "yoda", false).join();
+        store.logBlacklist("hans", "leia", true).join();
+        store.close();
+
+        newUsers();
+        open().close();
+        assertEquals(LOGIN, user("hans").getLastLogin());
+        assertEquals(Set.of("leia"), user("hans").getBlacklist());
+    }
+
+    @Test
+    void skipsNothingButATornRecord() throws IOException {
+        StateStore store = open();
+        store.logBlacklist("hans", "yoda", true).join();
+        store.close();
+
+        // the crash came in the middle of the next record
+        Path segment = segments().get(segments().size() - 1);
+        Files.write(segment, new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+        newUsers();
+        store = open();
+        assertEquals(Set.of("yoda"), user("hans").getBlacklist());
+        // the store goes on in a new segment, after the torn one
+        store.logBlacklist("hans", "leia", true).join();
+        store.close();
+
+        newUsers();
+        open().close();
+        assertEquals(Set.of("yoda", "leia"), user("hans").getBlacklist());
+    }
+
+    @Test
+    void skipsARecordWhoseChecksumDoesNotMatch() throws IOException {
+        StateStore store = open();
+        store.logBlacklist("hans", "yoda", true).join();
+        store.logBlacklist("hans", "leia", true).join();
+        store.close();
+
+        // flip the last byte of the second record
+        Path segment = segments().get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(segment, bytes);
+
+        newUsers();
+        open().close();
+        assertEquals(Set.of("yoda"), user("hans").getBlacklist());
+    }
+
+    private StateStore open() throws IOException {
+        return StateStore.open(directory, CredentialStore.Durability.WRITE, this::user);
+    }
+
+    private User user(String username) {
+        return users.computeIfAbsent(username, name -> new User(name, "password"));
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Deadlines further away than one turn of the wheel wait out their turns instead of firing the first time the
+ * wheel gets to their bucket, and a deadline that is pushed back or cancelled does not fire early.
+ */
+class TimerWheelTest {
+    // 8 buckets of 10 ms, one turn of the wheel takes 80 ms
+    private static final long TICK_MILLIS = 10;
+    private static final int TICKS = 8;
+    // how late a deadline may fire on a busy machine
+    private static final long SLACK_MILLIS = 150;
+
+    private final TimerWheel wheel = new TimerWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS);
+
+    @Test
+    void firesDeadlinesOfLaterTurnsInTheirOwnTurn() throws InterruptedException {
+        // 30 ms and 110 ms share a bucket, 170 ms and 250 ms are two and three turns away
+        long[] delays = {30, 110, 170, 250};
+        long start = System.nanoTime();
+        long[] fired = new long[delays.length];
+        CountDownLatch done = new CountDownLatch(delays.length);
+        for (int i = 0; i < delays.length; i++) {
+            int deadline = i;
+            wheel.schedule(() -> {
+                fired[deadline] = (System.nanoTime() - start) / 1_000_000;
+                done.countDown();
+            }, delays[i], TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(fired[i] >= delays[i], delays[i] + " ms fired after " + fired[i] + " ms");
+            assertTrue(fired[i] <= delays[i] + SLACK_MILLIS, delays[i] + " ms fired after " + fired[i] + " ms");
+        }
+    }
+
+    @Test
+    void firesAPushedBackDeadlineOnlyOnceItsNewDelayPassed() throws InterruptedException {
+        CompletableFuture<Long> fired = new CompletableFuture<>();
+        long start = System.nanoTime();
+        TimerWheel.Timeout timeout = wheel.schedule(() -> fired.complete(System.nanoTime()), 60,
+                                                    TimeUnit.MILLISECONDS);
+        // pushed back past the end of the turn the deadline was placed in, several times
+        long pushed = start;
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(40);
+            pushed = System.nanoTime();
+            timeout.reschedule();
+        }
+
+        long firedAt = fired.join();
+        assertTrue(firedAt - pushed >= TimeUnit.MILLISECONDS.toNanos(60),
+                   "fired " + (firedAt - pushed) / 1_000_000 + " ms after it was pushed back");
+        assertTrue(timeout.isExpired());
+    }
+
+    @Test
+    void firesAnExpiredDeadlineAgainOncePushedBack() throws InterruptedException {
+        Semaphore fired = new Semaphore(0);
+        TimerWheel.Timeout timeout = wheel.schedule(fired::release, 20, TimeUnit.MILLISECONDS);
+        assertTrue(fired.tryAcquire(1, TimeUnit.SECONDS));
+        assertTrue(timeout.isExpired());
+
+        timeout.reschedule();
+        assertFalse(timeout.isExpired());
+        assertTrue(fired.tryAcquire(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dropsACancelledDeadline() throws InterruptedException {
+        Semaphore fired = new Semaphore(0);
+        TimerWheel.Timeout timeout = wheel.schedule(fired::release, 100, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+
+        // two turns of the wheel
+        assertFalse(fired.tryAcquire(2 * TICK_MILLIS * TICKS + 100, TimeUnit.MILLISECONDS));
+        assertFalse(timeout.isExpired());
+    }
+}